@@ -0,0 +1,81 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.util.Random;
+
+import org.toporin.yubikey4java.Frame;
+
+/**
+ * Deterministic inputs shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData(){
+    }
+
+    static byte[] random(int size){
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    /** 64-byte payload of the given shape: full, short or zeros. */
+    static byte[] payload(String shape){
+        byte[] payload = new byte[Frame.SLOT_DATA_SIZE];
+        if ("full".equals(shape)){
+            payload = random(Frame.SLOT_DATA_SIZE);
+            // avoid an accidental all-zero block
+            for (int i=0; i<payload.length; i++){
+                if (payload[i] == 0)
+                    payload[i] = 1;
+            }
+        }
+        else if ("short".equals(shape)){
+            System.arraycopy(challenge("short"), 0, payload, 0, 9);
+        }
+        else if ("zeros".equals(shape)){
+            byte[] data = random(Frame.SLOT_DATA_SIZE);
+            for (int block=0; block<9; block++){
+                if (block % 2 == 1)
+                    continue;
+                for (int i=block*7; i<Math.min(block*7+7, Frame.SLOT_DATA_SIZE); i++){
+                    payload[i] = (byte)(data[i] | 1);
+                }
+            }
+        }
+        else{
+            throw new IllegalArgumentException("Unknown challenge shape:"+shape);
+        }
+        return payload;
+    }
+
+    /** Challenge of the given shape, before padding: full is 64 bytes, short 9. */
+    static byte[] challenge(String shape){
+        if ("short".equals(shape))
+            return new byte[]{0x53, 0x61, 0x6D, 0x70, 0x6C, 0x65, 0x20, 0x23, 0x32};
+        return payload(shape);
+    }
+
+}
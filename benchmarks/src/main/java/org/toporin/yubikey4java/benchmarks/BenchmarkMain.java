@@ -0,0 +1,56 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler (allocation rate per op) and
+ * writes the results as JSON, by default to jmh-result.json.
+ *
+ * Accepts the usual JMH command line options, e.g. a benchmark regexp,
+ * -p latencyMicros=250 or -rff results/0.2.json.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmd);
+        builder.addProfiler(GCProfiler.class);
+        builder.jvmArgsAppend("-Dyubikey4java.debug=false");
+        if (!cmd.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue())
+            builder.result("jmh-result.json");
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.toporin.yubikey4java.EmulatedYubikey;
+import org.toporin.yubikey4java.YubikeyChannel;
+import org.toporin.yubikey4java.YubikeyConnector;
+
+/**
+ * Full challenge-response transaction against an EmulatedYubikey.
+ * latencyMicros is added to every feature report transfer, computeMicros
+ * to the HMAC computation; 0 measures the host-side protocol cost alone.
+ * challengeResponseInto writes into a caller buffer and should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dyubikey4java.debug=false")
+public class ChallengeResponseBenchmark {
+
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    @Param({"0"})
+    public long computeMicros;
+
+    @Param({"full", "short"})
+    public String challenge;
+
+    private EmulatedYubikey device;
+    private YubikeyChannel channel;
+    private byte[] data;
+    private final byte[] out = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+
+    @Setup
+    public void setup(){
+        byte[] secret = BenchmarkData.random(20);
+        device = new EmulatedYubikey(secret, secret);
+        device.setTransferLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        device.setComputeLatency(computeMicros, TimeUnit.MICROSECONDS);
+        channel = new YubikeyChannel(device);
+        data = BenchmarkData.challenge(challenge);
+    }
+
+    @Benchmark
+    public byte[] challengeResponse(){
+        return YubikeyConnector.challenge_response(channel, data, YubikeyConnector.MODE_HMAC,
+                YubikeyConnector.SLOT_2, true, false);
+    }
+
+    @Benchmark
+    public byte[] challengeResponseInto(){
+        YubikeyConnector.challenge_response(channel, data, YubikeyConnector.MODE_HMAC,
+                YubikeyConnector.SLOT_2, true, false, out, 0);
+        return out;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.toporin.yubikey4java.YubikeyUtil;
+
+/**
+ * CRC16 throughput on heap arrays and direct buffers. 22 bytes is a
+ * response with its CRC tail, 64 bytes a frame payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dyubikey4java.debug=false")
+public class CrcBenchmark {
+
+    @Param({"22", "64", "1024"})
+    public int size;
+
+    private byte[] data;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup(){
+        data = BenchmarkData.random(size);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(data);
+        direct.clear();
+    }
+
+    @Benchmark
+    public short array(){
+        return YubikeyUtil.crc16(data, 0, size);
+    }
+
+    @Benchmark
+    public short directBuffer(){
+        return YubikeyUtil.crc16(direct, 0, size);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.toporin.yubikey4java.Frame;
+
+/**
+ * Frame encoding into feature reports. The challenge shape decides how many
+ * reports getByteArray() emits: all-zero 7-byte blocks are skipped.
+ * <ul>
+ * <li>full: 64 random bytes, 10 reports</li>
+ * <li>short: 9-byte challenge padded with zeros, 3 reports</li>
+ * <li>zeros: every other block zero, 6 reports</li>
+ * </ul>
+ * encodeReports encodes the same reports in place into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dyubikey4java.debug=false")
+public class FrameBenchmark {
+
+    @Param({"full", "short", "zeros"})
+    public String challenge;
+
+    private byte[] payload;
+    private final Frame frame = new Frame();
+    private final byte[] report = new byte[8];
+
+    @Setup
+    public void setup(){
+        payload = BenchmarkData.payload(challenge);
+        System.arraycopy(payload, 0, frame.payload, 0, payload.length);
+        frame.setSlot(2);
+    }
+
+    @Benchmark
+    public List<byte[]> newFrame(){
+        return new Frame(payload, 2).getByteArray();
+    }
+
+    @Benchmark
+    public int encodeReports(){
+        frame.setCRC();
+        int sent = 0;
+        for (int seq=0; seq<=Frame.LAST_SEQ; seq++){
+            if (frame.encodeReport(seq, report))
+                sent += report[7];
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public Frame newFrameOnly(){
+        return new Frame(Arrays.copyOf(payload, payload.length), 2);
+    }
+
+}
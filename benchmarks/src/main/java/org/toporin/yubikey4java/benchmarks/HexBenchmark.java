@@ -0,0 +1,116 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.toporin.yubikey4java.HexCodec;
+import org.toporin.yubikey4java.YubikeyUtil;
+
+/**
+ * Hex encoding of a feature report (8 bytes), of an HMAC response (20 bytes)
+ * and of an OTP token (16 bytes), and modhex decoding of the same data.
+ * The legacy methods are the StringBuffer and indexOf implementations that
+ * HexCodec replaced, kept here as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dyubikey4java.debug=false")
+public class HexBenchmark {
+
+    private static final String MODHEX_CHARS = "cbdefghijklnrtuv";
+
+    @Param({"8", "16", "20"})
+    public int size;
+
+    private byte[] data;
+    private String modhex;
+    private char[] chars;
+    private byte[] bytes;
+
+    @Setup
+    public void setup(){
+        data = BenchmarkData.random(size);
+        modhex = HexCodec.MODHEX.encode(data);
+        chars = new char[2*size];
+        bytes = new byte[size];
+    }
+
+    @Benchmark
+    public String toHexString(){
+        return YubikeyUtil.toHexString(data);
+    }
+
+    @Benchmark
+    public String legacyToHexString(){
+        final String hexChars = "0123456789ABCDEF";
+        StringBuffer sbTmp = new StringBuffer();
+        char[] cTmp = new char[2];
+        for (int i = 0; i < data.length; i++) {
+            cTmp[0] = hexChars.charAt((data[i] & 0xF0) >>> 4);
+            cTmp[1] = hexChars.charAt(data[i] & 0x0F);
+            sbTmp.append(cTmp);
+        }
+        return sbTmp.toString();
+    }
+
+    @Benchmark
+    public char[] encodeInto(){
+        HexCodec.HEX.encode(data, 0, size, chars, 0);
+        return chars;
+    }
+
+    @Benchmark
+    public byte[] decodeModhex(){
+        HexCodec.MODHEX.decode(modhex, 0, modhex.length(), bytes, 0);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] legacyDecodeModhex(){
+        for (int i=0; i<modhex.length(); i+=2){
+            int hi = MODHEX_CHARS.indexOf(Character.toLowerCase(modhex.charAt(i)));
+            int lo = MODHEX_CHARS.indexOf(Character.toLowerCase(modhex.charAt(i+1)));
+            if (hi < 0 || lo < 0)
+                return null;
+            bytes[i/2] = (byte)((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+}
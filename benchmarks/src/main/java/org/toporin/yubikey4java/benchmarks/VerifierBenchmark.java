@@ -0,0 +1,106 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.toporin.yubikey4java.EmulatedYubikey;
+import org.toporin.yubikey4java.HmacVerifier;
+import org.toporin.yubikey4java.YubikeyChannel;
+import org.toporin.yubikey4java.YubikeyConnector;
+
+/**
+ * Server-side verification of responses: one at a time (run with -t to
+ * use several threads) and in batches of 4096 spread over the common pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dyubikey4java.debug=false")
+public class VerifierBenchmark {
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int KEYS = 1000;
+
+    @Param({"full", "short"})
+    public String challenge;
+
+    private HmacVerifier verifier;
+    private byte[] input;
+    private byte[] response;
+
+    @Setup
+    public void setup(){
+        byte[] secret = BenchmarkData.random(20);
+        verifier = new HmacVerifier();
+        for (int serial=0; serial<KEYS; serial++){
+            verifier.enroll(serial, YubikeyConnector.SLOT_1, secret, true);
+        }
+        input = BenchmarkData.challenge(challenge);
+        EmulatedYubikey device = new EmulatedYubikey(secret, null);
+        device.setVariableLength(YubikeyConnector.SLOT_1, true);
+        response = YubikeyConnector.challenge_response(new YubikeyChannel(device), input,
+                YubikeyConnector.MODE_HMAC, YubikeyConnector.SLOT_1, true, false);
+    }
+
+    @State(Scope.Thread)
+    public static class BatchState {
+        HmacVerifier.Batch batch = new HmacVerifier.Batch(BATCH_SIZE);
+
+        @Setup(Level.Trial)
+        public void fill(VerifierBenchmark benchmark){
+            for (int i=0; i<BATCH_SIZE; i++){
+                batch.add(i % KEYS, YubikeyConnector.SLOT_1, benchmark.input, benchmark.response);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean verify(){
+        return verifier.verify(7, YubikeyConnector.SLOT_1, input, response);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean verifyBatch(BatchState state){
+        verifier.verify(state.batch);
+        return state.batch.getResult(BATCH_SIZE-1);
+    }
+
+}
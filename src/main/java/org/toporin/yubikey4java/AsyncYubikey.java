@@ -0,0 +1,523 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+
+import static org.toporin.yubikey4java.YubikeyConnector.RESP_PENDING_FLAG;
+import static org.toporin.yubikey4java.YubikeyConnector.RESP_TIMEOUT_WAIT_FLAG;
+import static org.toporin.yubikey4java.YubikeyConnector.RESP_TIMEOUT_WAIT_MASK;
+import static org.toporin.yubikey4java.YubikeyConnector.SLOT_WRITE_FLAG;
+
+/**
+ * Non-blocking challenge-response with one Yubikey.
+ *
+ * The protocol of YubikeyConnector (write the frame report by report, each
+ * after a status poll; poll until RESP_PENDING_FLAG; read the response;
+ * reset) runs as a state machine advanced by transfer callbacks and timer
+ * tasks of a YubikeyEventLoop, so no thread waits for the device. Polling
+ * delays, touch-wait timeouts, lean mode, metrics and flight recorder come
+ * from the channel, as for the blocking API.
+ *
+ * Requests are queued and run one at a time. The returned future completes
+ * on the event loop: dependent stages that block must use the async
+ * variants of CompletableFuture. Cancelling the future aborts the
+ * transaction at its next step and resets the device.
+ */
+public class AsyncYubikey implements Closeable {
+
+    // transfer in flight
+    private static final int S_NEW = 0;
+    private static final int S_LEAN_RESET = 1;
+    private static final int S_WRITE = 2;
+    private static final int S_POLL_DELAY = 3;
+    private static final int S_POLL = 4;
+    private static final int S_READ = 5;
+    private static final int S_RESET = 6;
+    private static final int S_ABORT_RESET = 7;
+
+    // what follows a successful wait
+    private static final int W_WRITE = 0;
+    private static final int W_RESPONSE = 1;
+    private static final int W_RESET = 2;
+
+    private static final byte MODE_AND = 0;
+    private static final byte MODE_NAND = 1;
+
+    private final AsyncYubikeyTransport transport;
+    private final YubikeyEventLoop loop;
+    private final YubikeyChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // guarded by lock
+    private Transaction current;
+    private boolean closed;
+    // completed once the transport is closed
+    private final CompletableFuture<Void> terminated = new CompletableFuture<Void>();
+
+    public AsyncYubikey(AsyncYubikeyTransport transport, YubikeyEventLoop loop){
+        this.transport = transport;
+        this.loop = loop;
+        this.channel = new YubikeyChannel(transport);
+    }
+
+    /**
+     * The channel holding the protocol state. Configure it (polling strategy,
+     * lean mode, flight recorder) before the first request.
+     */
+    public YubikeyChannel getChannel(){
+        return channel;
+    }
+
+    public YubikeyEventLoop getEventLoop(){
+        return loop;
+    }
+
+    /** Requests queued or running. */
+    public int getPending(){
+        return pending.get();
+    }
+
+    /**
+     * Queues a challenge-response.
+     *
+     * @return the HMAC, or a YubikeyException / LibUsbException
+     */
+    public CompletableFuture<byte[]> challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        Transaction tx = new Transaction(challenge.clone(), mode, slot, variable, may_block);
+        lock.lock();
+        try{
+            if (closed){
+                tx.future.completeExceptionally(new YubikeyException("Yubikey is closed"));
+                return tx.future;
+            }
+            pending.incrementAndGet();
+            if (current != null){
+                queue.add(tx);
+                return tx.future;
+            }
+            current = tx;
+        }
+        finally{
+            lock.unlock();
+        }
+        loop.execute(tx);
+        return tx.future;
+    }
+
+    /**
+     * Fails the queued requests and closes the transport (if Closeable) once
+     * the running one finished.
+     */
+    @Override
+    public void close(){
+        boolean idle;
+        lock.lock();
+        try{
+            if (closed)
+                return;
+            closed = true;
+            Transaction tx;
+            while ((tx = queue.poll()) != null){
+                pending.decrementAndGet();
+                tx.future.completeExceptionally(new YubikeyException("Yubikey is closed"));
+            }
+            idle = current == null;
+        }
+        finally{
+            lock.unlock();
+        }
+        if (idle)
+            closeTransport();
+    }
+
+    /**
+     * Closes the device like close(), also cancelling the running request,
+     * which resets the device at its next step.
+     *
+     * @return a future completed once the transport is closed, when no
+     *         transfer of this device is in flight any more
+     */
+    public CompletableFuture<Void> shutdown(){
+        Transaction running;
+        lock.lock();
+        try{
+            running = current;
+        }
+        finally{
+            lock.unlock();
+        }
+        close();
+        if (running != null)
+            running.future.cancel(false);
+        return terminated;
+    }
+
+    // starts the next queued request, called on the loop when a transaction ends
+    private void next(){
+        Transaction tx;
+        boolean idleClosed;
+        lock.lock();
+        try{
+            pending.decrementAndGet();
+            tx = current = queue.poll();
+            idleClosed = tx == null && closed;
+        }
+        finally{
+            lock.unlock();
+        }
+        if (tx != null)
+            loop.execute(tx);
+        else if (idleClosed)
+            closeTransport();
+    }
+
+    private void closeTransport(){
+        try{
+            if (transport instanceof Closeable)
+                ((Closeable)transport).close();
+        }
+        catch (Exception ex){
+            YubikeyConnector.debug("Error closing yubikey: "+ex.getMessage());
+        }
+        finally{
+            terminated.complete(null);
+        }
+    }
+
+    /**
+     * One challenge-response. Runs as a task of the loop (start, delayed
+     * poll) and as the callback of its transfers.
+     */
+    private final class Transaction implements AsyncYubikeyTransport.ReportCallback, Runnable {
+
+        final byte[] challenge;
+        final byte mode;
+        final int slot;
+        final boolean variable;
+        final boolean may_block;
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        int state = S_NEW;
+        long startNanos;
+        long phaseNanos;
+        int seq;
+        int responseLen;
+        int len;
+
+        // current wait
+        byte waitMode;
+        byte waitMask;
+        boolean waitMayBlock;
+        int afterWait;
+        long deadline;
+
+        Transaction(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+            this.challenge = challenge;
+            this.mode = mode;
+            this.slot = slot;
+            this.variable = variable;
+            this.may_block = may_block;
+        }
+
+        @Override
+        public void run(){
+            if (state == S_NEW){
+                start();
+            }
+            else if (future.isCancelled()){
+                abort();
+            }
+            else{
+                poll();
+            }
+        }
+
+        @Override
+        public void completed(RuntimeException error){
+            if (state == S_ABORT_RESET){
+                // best effort, the request already failed
+                next();
+                return;
+            }
+            if (error != null){
+                fail(error, true);
+                return;
+            }
+            if (state == S_POLL || state == S_READ)
+                YubikeyConnector.received(channel, channel.status);
+            else
+                YubikeyConnector.written(channel, channel.report);
+            if (future.isCancelled()){
+                abort();
+                return;
+            }
+            switch (state){
+                case S_LEAN_RESET:
+                    channel.resetPending = false;
+                    channel.metrics.reset.record(System.nanoTime()-phaseNanos);
+                    phaseNanos = System.nanoTime();
+                    nextReport();
+                    break;
+                case S_WRITE:
+                    nextReport();
+                    break;
+                case S_POLL:
+                    polled();
+                    break;
+                case S_READ:
+                    responseRead();
+                    break;
+                case S_RESET:
+                    waitfor(MODE_NAND, SLOT_WRITE_FLAG, false, W_RESET);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected transfer in state "+state);
+            }
+        }
+
+        private void start(){
+            if (future.isCancelled()){
+                next();
+                return;
+            }
+            startNanos = System.nanoTime();
+            phaseNanos = startNanos;
+            try{
+                responseLen = YubikeyConnector.prepare_challenge(channel, challenge, mode, slot, variable);
+            }
+            catch (YubikeyException ex){
+                fail(ex, false);
+                return;
+            }
+            channel.transactionPolls = 0;
+            channel.transactionTransfers = 0;
+            seq = -1;
+            if (channel.resetPending){
+                // reset folded from the previous lean transaction
+                state = S_LEAN_RESET;
+                write(YubikeyConnector.reset_report(channel));
+                return;
+            }
+            nextReport();
+        }
+
+        // writes the next non-null report of the frame, then waits for the response
+        private void nextReport(){
+            Frame frame = channel.frame;
+            byte[] report = channel.report;
+            while (++seq <= Frame.LAST_SEQ){
+                if (frame.encodeReport(seq, report)){
+                    if (channel.lean && channel.writeFlagClear){
+                        state = S_WRITE;
+                        write(report);
+                    }
+                    else{
+                        waitfor(MODE_NAND, SLOT_WRITE_FLAG, false, W_WRITE);
+                    }
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            channel.metrics.write.record(now-phaseNanos);
+            phaseNanos = now;
+            Arrays.fill(channel.response, (byte)0x00);
+            waitfor(MODE_AND, RESP_PENDING_FLAG, may_block, W_RESPONSE);
+        }
+
+        private void write(byte[] report){
+            channel.writeFlagClear = false;
+            transport.submitWrite(report, this);
+        }
+
+        private void read(){
+            channel.writeFlagClear = false;
+            transport.submitRead(channel.status, this);
+        }
+
+        private void waitfor(byte mode, byte mask, boolean may_block, int after){
+            waitMode = mode;
+            waitMask = mask;
+            waitMayBlock = may_block;
+            afterWait = after;
+            long now = System.nanoTime();
+            channel.poll.start(channel, mask, now);
+            // same budget as YubikeyConnector.waitfor with a 2 s timeout
+            deadline = now + PollingStrategy.FixedBackoff.budgetNanos(2*2-1+6);
+            delay(channel.polling.nextDelayNanos(channel.poll));
+        }
+
+        private void delay(long nanos){
+            state = S_POLL_DELAY;
+            if (nanos <= 0)
+                poll();
+            else
+                loop.schedule(this, nanos);
+        }
+
+        private void poll(){
+            state = S_POLL;
+            channel.poll.lastPollNanos = System.nanoTime();
+            read();
+        }
+
+        private void polled(){
+            PollingStrategy.Poll poll = channel.poll;
+            poll.polls++;
+            channel.transactionPolls++;
+            channel.metrics.polls.increment();
+            byte flags = channel.status[7];
+            long now = System.nanoTime();
+
+            if ((flags & RESP_TIMEOUT_WAIT_FLAG)!=0 && !poll.touchWait){
+                poll.touchWait = true;
+                channel.metrics.touchWaits.increment();
+                if (waitMayBlock){
+                    // never more than 20 seconds
+                    int seconds_left = Math.min(20, flags & RESP_TIMEOUT_WAIT_MASK);
+                    deadline = now + PollingStrategy.FixedBackoff.budgetNanos(seconds_left*2-1+6);
+                }
+            }
+
+            boolean finished;
+            if (waitMode == MODE_NAND)
+                finished = (flags & waitMask) != waitMask;
+            else
+                finished = (flags & waitMask) == waitMask;
+            if (finished){
+                channel.polling.completed(poll);
+                waitDone();
+                return;
+            }
+
+            long left = deadline - now;
+            if (left <= 0){
+                fail(new YubikeyTimeoutException((waitMode == MODE_NAND
+                        ? "Timed out waiting for YubiKey to clear status"
+                        : "Timed out waiting for YubiKey to set status")+YubikeyUtil.toHexString(waitMask)), true);
+                return;
+            }
+            delay(Math.min(channel.polling.nextDelayNanos(poll), left));
+        }
+
+        private void waitDone(){
+            switch (afterWait){
+                case W_WRITE:
+                    state = S_WRITE;
+                    write(channel.report);
+                    break;
+                case W_RESPONSE:
+                    len = YubikeyConnector.append(channel.status, channel.response, 0);
+                    readResponse();
+                    break;
+                default:
+                    channel.metrics.reset.record(System.nanoTime()-phaseNanos);
+                    succeed();
+                    break;
+            }
+        }
+
+        // continues reading while response pending is set
+        private void readResponse(){
+            if (channel.lean && len >= responseLen+2){
+                responseDone();
+                return;
+            }
+            state = S_READ;
+            read();
+        }
+
+        private void responseRead(){
+            byte flags = channel.status[7];
+            if ((flags & RESP_PENDING_FLAG)!=0 && (flags & RESP_TIMEOUT_WAIT_MASK)!=0){
+                len = YubikeyConnector.append(channel.status, channel.response, len);
+                readResponse();
+            }
+            else{
+                responseDone();
+            }
+        }
+
+        private void responseDone(){
+            long now = System.nanoTime();
+            channel.metrics.wait.record(now-phaseNanos);
+            phaseNanos = now;
+            if (channel.lean){
+                channel.resetPending = true;
+                succeed();
+            }
+            else{
+                state = S_RESET;
+                write(YubikeyConnector.reset_report(channel));
+            }
+        }
+
+        private void succeed(){
+            channel.polling.transactionCompleted(channel.transactionPolls);
+            if (!YubikeyUtil.validate_crc16(channel.response, 0, responseLen+2)){
+                channel.metrics.crcFailures.increment();
+                fail(new YubikeyException("Read from device failed CRC check"), false);
+                return;
+            }
+            byte[] response = Arrays.copyOf(channel.response, responseLen);
+            channel.metrics.total.record(System.nanoTime()-startNanos);
+            channel.metrics.transactions.increment();
+            next();
+            future.complete(response);
+        }
+
+        private void fail(RuntimeException ex, boolean reset){
+            if (ex instanceof YubikeyException){
+                channel.metrics.exceptions.increment();
+                if (ex instanceof YubikeyTimeoutException)
+                    channel.metrics.timeouts.increment();
+                if (channel.recorder != null)
+                    channel.recorder.dumpOnError();
+            }
+            if (reset){
+                abort();
+            }
+            else{
+                next();
+            }
+            future.completeExceptionally(ex);
+        }
+
+        // resets the device after a failed or cancelled transaction
+        private void abort(){
+            state = S_ABORT_RESET;
+            write(YubikeyConnector.reset_report(channel));
+        }
+
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * A set of AsyncYubikeys driven by a few event loops.
+ *
+ * open() gives each loop its own libusb context and assigns the attached
+ * yubikeys to the loops round robin (by bus and address), so a host with
+ * many keys spreads the event handling over several threads. Requests
+ * submitted to the engine go to the key with the fewest pending requests.
+ */
+public class AsyncYubikeyEngine implements Closeable {
+
+    // time close() waits for the devices, longer than a transfer timeout and a reset
+    private static final long CLOSE_TIMEOUT_MILLIS = 4*YubikeyConnector._USB_TIMEOUT_MS;
+
+    private final List<YubikeyEventLoop> loops;
+    private final List<AsyncYubikey> devices = new CopyOnWriteArrayList<AsyncYubikey>();
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /**
+     * An engine over the given loops, to which devices are added with
+     * add(). The loops are closed with the engine.
+     */
+    public AsyncYubikeyEngine(List<YubikeyEventLoop> loops){
+        if (loops.isEmpty())
+            throw new IllegalArgumentException("No event loop");
+        this.loops = new ArrayList<YubikeyEventLoop>(loops);
+    }
+
+    /**
+     * Opens every attached yubikey matching the product IDs on eventLoops
+     * libusb event loops. Devices that cannot be opened are skipped.
+     */
+    public static AsyncYubikeyEngine open(short[] pids, int eventLoops){
+        List<YubikeyEventLoop> loops = new ArrayList<YubikeyEventLoop>();
+        AsyncYubikeyEngine engine = null;
+        try{
+            for (int i=0; i<eventLoops; i++){
+                loops.add(YubikeyEventLoop.libusb());
+            }
+            engine = new AsyncYubikeyEngine(loops);
+            for (int i=0; i<eventLoops; i++){
+                engine.openShard(pids, loops.get(i), i, eventLoops);
+            }
+            return engine;
+        }
+        catch (RuntimeException ex){
+            if (engine != null){
+                engine.close();
+            }
+            else{
+                for (YubikeyEventLoop loop: loops){
+                    loop.close();
+                }
+            }
+            throw ex;
+        }
+    }
+
+    // opens, in the context of the loop, the matching devices of the given shard
+    private void openShard(short[] pids, YubikeyEventLoop loop, int shard, int shards){
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(loop.getContext(), list);
+        if (result < 0)
+            throw new LibUsbException("Unable to get device list", result);
+        try{
+            List<Device> matching = new ArrayList<Device>();
+            for (Device device: list){
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) < 0)
+                    continue;
+                if (descriptor.idVendor() == YubikeyConnector.VENDOR_ID
+                        && YubikeyConnector.contains(pids, descriptor.idProduct()))
+                    matching.add(device);
+            }
+            // every context enumerates the same bus: order it the same way
+            Collections.sort(matching, new Comparator<Device>(){
+                @Override
+                public int compare(Device a, Device b){
+                    int c = Integer.compare(LibUsb.getBusNumber(a), LibUsb.getBusNumber(b));
+                    return c != 0 ? c : Integer.compare(LibUsb.getDeviceAddress(a), LibUsb.getDeviceAddress(b));
+                }
+            });
+            for (int i=shard; i<matching.size(); i+=shards){
+                try{
+                    add(LibUsbAsyncTransport.open(matching.get(i)), loop);
+                }
+                catch (LibUsbException ex){
+                    YubikeyConnector.debug("Skipping device "+matching.get(i)+": "+ex.getMessage());
+                }
+            }
+        }
+        finally{
+            LibUsb.freeDeviceList(list, true);
+        }
+    }
+
+    /** Adds a device driven by the given loop of this engine. */
+    public AsyncYubikey add(AsyncYubikeyTransport transport, YubikeyEventLoop loop){
+        AsyncYubikey device = new AsyncYubikey(transport, loop);
+        devices.add(device);
+        return device;
+    }
+
+    /** The loops of the engine, to pick one for add(). */
+    public List<YubikeyEventLoop> getEventLoops(){
+        return Collections.unmodifiableList(loops);
+    }
+
+    public List<AsyncYubikey> getDevices(){
+        return Collections.unmodifiableList(devices);
+    }
+
+    /** Challenge-response on the device with the fewest pending requests. */
+    public CompletableFuture<byte[]> challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        AsyncYubikey best = null;
+        int size = devices.size();
+        int start = cursor.getAndIncrement();
+        for (int i=0; i<size; i++){
+            AsyncYubikey device;
+            try{
+                device = devices.get(Math.abs((start+i) % size));
+            }
+            catch (IndexOutOfBoundsException ex){
+                break;
+            }
+            if (best == null || device.getPending() < best.getPending())
+                best = device;
+        }
+        if (best == null){
+            CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+            failed.completeExceptionally(new YubikeyException("No yubikey available"));
+            return failed;
+        }
+        return best.challenge_response(challenge, mode, slot, variable, may_block);
+    }
+
+    /**
+     * Closes the devices, then the loops. Requests still running are
+     * cancelled, and the loops only closed once their transfers completed
+     * and the transports were closed, as YubikeyEventLoop.close requires.
+     * Must not be called from a loop thread.
+     */
+    @Override
+    public void close(){
+        List<CompletableFuture<Void>> closing = new ArrayList<CompletableFuture<Void>>();
+        for (AsyncYubikey device: devices){
+            closing.add(device.shutdown());
+        }
+        devices.clear();
+        try{
+            // a cancelled transaction ends within a transfer timeout and the reset
+            CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0]))
+                    .get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | TimeoutException ex){
+            YubikeyConnector.debug("Closing event loops with transfers in flight: "+ex);
+        }
+        for (YubikeyEventLoop loop: loops){
+            loop.close();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+/**
+ * Feature report transport with non-blocking transfers, used by
+ * AsyncYubikey.
+ *
+ * A submitted transfer completes later on an event thread, which calls the
+ * callback. At most one transfer is in flight per transport, and the report
+ * array must not be touched until the callback ran. The blocking methods of
+ * YubikeyTransport stay available for the synchronous code paths, but must
+ * not be mixed with pending asynchronous transfers.
+ */
+public interface AsyncYubikeyTransport extends YubikeyTransport {
+
+    /** Completion of a submitted transfer. */
+    interface ReportCallback {
+
+        /**
+         * @param error
+         *            null if the report was transferred, else the failure
+         *            (typically a LibUsbException).
+         */
+        void completed(RuntimeException error);
+    }
+
+    /** Starts sending a feature report (HID SET_REPORT). */
+    void submitWrite(byte[] report, ReportCallback callback);
+
+    /** Starts reading a feature report (HID GET_REPORT) into the buffer. */
+    void submitRead(byte[] report, ReportCallback callback);
+
+}
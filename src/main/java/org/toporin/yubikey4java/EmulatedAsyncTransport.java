@@ -0,0 +1,89 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for asynchronous transfers: each report is handed to
+ * a synchronous transport (typically an EmulatedYubikey without transfer
+ * latency of its own) on a YubikeyEventLoop, after the configured transfer
+ * latency, without blocking any thread meanwhile.
+ */
+public class EmulatedAsyncTransport implements AsyncYubikeyTransport {
+
+    private final YubikeyTransport device;
+    private final YubikeyEventLoop loop;
+    private final long latencyNanos;
+
+    public EmulatedAsyncTransport(YubikeyTransport device, YubikeyEventLoop loop, long latency, TimeUnit unit){
+        this.device = device;
+        this.loop = loop;
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    @Override
+    public void submitWrite(final byte[] report, final ReportCallback callback){
+        loop.schedule(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    device.writeReport(report);
+                }
+                catch (RuntimeException ex){
+                    callback.completed(ex);
+                    return;
+                }
+                callback.completed(null);
+            }
+        }, latencyNanos);
+    }
+
+    @Override
+    public void submitRead(final byte[] report, final ReportCallback callback){
+        loop.schedule(new Runnable(){
+            @Override
+            public void run(){
+                try{
+                    device.readReport(report);
+                }
+                catch (RuntimeException ex){
+                    callback.completed(ex);
+                    return;
+                }
+                callback.completed(null);
+            }
+        }, latencyNanos);
+    }
+
+    @Override
+    public void writeReport(byte[] report){
+        device.writeReport(report);
+    }
+
+    @Override
+    public void readReport(byte[] report){
+        device.readReport(report);
+    }
+
+}
@@ -0,0 +1,471 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Software emulation of a Yubikey speaking the feature report protocol.
+ *
+ * Reports written with SLOT_WRITE_FLAG are assembled into a 64-byte payload
+ * (sequence 0 starts a frame, skipped sequences stand for all-zero blocks,
+ * sequence 9 carries the last payload byte, slot and CRC). A valid HMAC-SHA1
+ * command is answered with 20 bytes of HMAC and a CRC tail, returned seven
+ * bytes at a time with RESP_PENDING_FLAG set until the sequence wraps to 0.
+ * SLOT_DEVICE_SERIAL returns the configured serial number the same way.
+ * SLOT_CONFIG and SLOT_CONFIG2 program an HMAC-SHA1 challenge-response
+ * configuration (or delete the slot) if the access code matches, keeping
+ * the write flag set for the configured write latency, and increment the
+ * programming sequence of the status report.
+ * A 0x8f report resets the device.
+ *
+ * Optional per-transfer latency, HMAC computation time, touch-wait
+ * (RESP_TIMEOUT_WAIT_FLAG) and corrupted response reports make the emulator
+ * usable for load and fault tests of the full protocol path without
+ * hardware.
+ */
+public class EmulatedYubikey implements YubikeyTransport {
+
+    /** Seconds a real Yubikey waits for a touch before giving up. */
+    public static final int TOUCH_TIMEOUT_SECONDS = 15;
+
+    private static final int RESPONSE_SIZE = YubikeyConnector.SHA1_DIGEST_SIZE+2;
+    private static final byte SLOT_DUMMY_REPORT = 0x0f;
+    private static final byte SEQ_MASK = 0x1f;
+    private static final byte LAST_SEQ = 9;
+
+    // status report flags for the valid configurations (touchLevel)
+    private static final byte CONFIG1_VALID = 0x01;
+    private static final byte CONFIG2_VALID = 0x02;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAIT_TOUCH = 1;
+    private static final int STATE_BUSY = 2;
+    private static final int STATE_RESPONSE = 3;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Mac[] macs = new Mac[2];
+    private final boolean[] requireTouch = new boolean[2];
+    private final boolean[] hmacLt64 = new boolean[2];
+    private final byte[][] accessCodes = new byte[2][YubikeyConfig.ACC_CODE_SIZE];
+    private final byte[] version = {3, 4, 0};
+    private byte pgmSeq = 1;
+    private int serial = 1000000;
+
+    private long transferLatencyNanos;
+    private long computeLatencyNanos;
+    private long touchDelayNanos;
+    private long configLatencyNanos;
+    private double corruptionRate;
+    private final SplittableRandom random = new SplittableRandom(1);
+
+    // frame being assembled
+    private final byte[] payload = new byte[Frame.SLOT_DATA_SIZE];
+    private int lastSeq = -1;
+
+    // pending response
+    private final byte[] response = new byte[RESPONSE_SIZE];
+    private int responseLength;
+    private int state = STATE_IDLE;
+    private long readyAt;
+    private long touchDeadline;
+    private int readSeq;
+
+    private long transactions;
+
+    public EmulatedYubikey(){
+    }
+
+    public EmulatedYubikey(byte[] secret1, byte[] secret2){
+        if (secret1 != null)
+            setSecret(1, secret1);
+        if (secret2 != null)
+            setSecret(2, secret2);
+    }
+
+    /**
+     * Programs the HMAC-SHA1 secret of a slot.
+     *
+     * @param slot 1 or 2
+     * @param secret the HMAC key, or null to clear the slot
+     */
+    public void setSecret(int slot, byte[] secret){
+        lock.lock();
+        try{
+            if (secret == null){
+                macs[index(slot)] = null;
+            }
+            else{
+                Mac mac = Mac.getInstance("HmacSHA1");
+                mac.init(new SecretKeySpec(secret, "HmacSHA1"));
+                macs[index(slot)] = mac;
+            }
+            pgmSeq++;
+        }
+        catch (GeneralSecurityException ex){
+            throw new IllegalStateException("HmacSHA1 unavailable", ex);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Whether the slot waits for a touch before answering. */
+    public void setRequireTouch(int slot, boolean require){
+        lock.lock();
+        try{
+            requireTouch[index(slot)] = require;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the slot uses variable length challenges (HMAC_LT64): trailing
+     * bytes equal to the last payload byte are stripped before the HMAC.
+     */
+    public void setVariableLength(int slot, boolean variable){
+        lock.lock();
+        try{
+            hmacLt64[index(slot)] = variable;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public void setVersion(int major, int minor, int build){
+        lock.lock();
+        try{
+            version[0] = (byte)major;
+            version[1] = (byte)minor;
+            version[2] = (byte)build;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public void setSerial(int serial){
+        lock.lock();
+        try{
+            this.serial = serial;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Latency added to every feature report transfer (one USB round trip). */
+    public void setTransferLatency(long duration, TimeUnit unit){
+        transferLatencyNanos = unit.toNanos(duration);
+    }
+
+    /** Time the device needs to compute the HMAC once the frame is complete. */
+    public void setComputeLatency(long duration, TimeUnit unit){
+        computeLatencyNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Delay after which the simulated user touches the key, for slots that
+     * require touch. A delay over TOUCH_TIMEOUT_SECONDS makes the device time
+     * out and drop the request.
+     */
+    public void setTouchDelay(long duration, TimeUnit unit){
+        touchDelayNanos = unit.toNanos(duration);
+    }
+
+    /** Time the device needs to write a slot configuration to flash. */
+    public void setConfigLatency(long duration, TimeUnit unit){
+        configLatencyNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Probability that a response report reaches the host with a flipped
+     * data bit, as after a glitch on the wire. The response held by the
+     * device stays intact, so reading it again succeeds.
+     */
+    public void setCorruptionRate(double rate){
+        if (!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("Invalid corruption rate:"+rate);
+        corruptionRate = rate;
+    }
+
+    /** Programming sequence, incremented by each configuration written. */
+    public int getProgrammingSequence(){
+        lock.lock();
+        try{
+            return pgmSeq & 0xff;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Number of HMAC responses computed so far. */
+    public long getTransactionCount(){
+        lock.lock();
+        try{
+            return transactions;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writeReport(byte[] report){
+        delay(transferLatencyNanos);
+        lock.lock();
+        try{
+            byte flags = report[7];
+            if ((flags & YubikeyConnector.SLOT_WRITE_FLAG) == 0)
+                return;
+            int seq = flags & SEQ_MASK;
+
+            if (seq == SLOT_DUMMY_REPORT){
+                reset();
+                return;
+            }
+            if (seq == 0){
+                // a new frame discards any pending response
+                reset();
+                Arrays.fill(payload, (byte)0);
+            }
+            else if (seq <= lastSeq || lastSeq < 0 || seq > LAST_SEQ){
+                // out of sequence: drop the frame
+                reset();
+                return;
+            }
+            lastSeq = seq;
+
+            if (seq < LAST_SEQ){
+                System.arraycopy(report, 0, payload, seq*7, 7);
+            }
+            else{
+                payload[Frame.SLOT_DATA_SIZE-1] = report[0];
+                byte slot = report[1];
+                short crc = (short)((report[2] & 0xff) | ((report[3] & 0xff) << 8));
+                lastSeq = -1;
+                execute(slot, crc);
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void readReport(byte[] report){
+        delay(transferLatencyNanos);
+        lock.lock();
+        try{
+            long now = System.nanoTime();
+            if (state == STATE_WAIT_TOUCH){
+                if (now - readyAt >= 0){
+                    state = STATE_BUSY;
+                    readyAt = now + computeLatencyNanos;
+                }
+                else if (now - touchDeadline >= 0){
+                    reset();
+                }
+            }
+            if (state == STATE_BUSY && now - readyAt >= 0)
+                state = responseLength > 0 ? STATE_RESPONSE : STATE_IDLE;
+
+            switch (state){
+                case STATE_WAIT_TOUCH:
+                    status(report);
+                    long left = (touchDeadline - now + 999999999L) / 1000000000L;
+                    report[7] = (byte)(YubikeyConnector.RESP_TIMEOUT_WAIT_FLAG
+                            | Math.min(left, YubikeyConnector.RESP_TIMEOUT_WAIT_MASK));
+                    break;
+                case STATE_BUSY:
+                    status(report);
+                    report[7] = YubikeyConnector.SLOT_WRITE_FLAG;
+                    break;
+                case STATE_RESPONSE:
+                    int off = readSeq*7;
+                    Arrays.fill(report, 0, 7, (byte)0);
+                    System.arraycopy(response, off, report, 0, Math.min(7, responseLength-off));
+                    report[7] = (byte)(YubikeyConnector.RESP_PENDING_FLAG | readSeq);
+                    if (corruptionRate > 0 && random.nextDouble() < corruptionRate)
+                        report[random.nextInt(7)] ^= (byte)(1 << random.nextInt(8));
+                    readSeq++;
+                    if (readSeq*7 >= responseLength)
+                        readSeq = 0;
+                    break;
+                default:
+                    status(report);
+                    break;
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    private void execute(byte slot, short crc){
+        if (YubikeyUtil.crc16(payload) != crc)
+            return;
+
+        if (slot == Frame.SLOT_DEVICE_SERIAL){
+            response[0] = (byte)(serial >>> 24);
+            response[1] = (byte)(serial >>> 16);
+            response[2] = (byte)(serial >>> 8);
+            response[3] = (byte)serial;
+            respond(4, false);
+            return;
+        }
+        if (slot == Frame.SLOT_CONFIG || slot == Frame.SLOT_CONFIG2){
+            configure(slot == Frame.SLOT_CONFIG ? 0 : 1);
+            return;
+        }
+        int index;
+        if (slot == Frame.SLOT_CHAL_HMAC1)
+            index = 0;
+        else if (slot == Frame.SLOT_CHAL_HMAC2)
+            index = 1;
+        else
+            return;
+        Mac mac = macs[index];
+        if (mac == null)
+            return;
+
+        int len = YubikeyConnector.hmac_input_length(payload, 0, hmacLt64[index]);
+        mac.update(payload, 0, len);
+        try{
+            mac.doFinal(response, 0);
+        }
+        catch (GeneralSecurityException ex){
+            throw new IllegalStateException(ex);
+        }
+        transactions++;
+        respond(YubikeyConnector.SHA1_DIGEST_SIZE, requireTouch[index]);
+    }
+
+    // applies the configuration in the payload, followed by the current access code
+    private void configure(int index){
+        if (!YubikeyUtil.validate_crc16(payload, 0, YubikeyConfig.CONFIG_SIZE))
+            return;
+        if (!Arrays.equals(accessCodes[index], 0, YubikeyConfig.ACC_CODE_SIZE,
+                payload, YubikeyConfig.CONFIG_SIZE, YubikeyConfig.CONFIG_SIZE+YubikeyConfig.ACC_CODE_SIZE))
+            return;
+        byte tktFlags = payload[YubikeyConfig.TKT_FLAGS_OFFSET];
+        byte cfgFlags = payload[YubikeyConfig.CFG_FLAGS_OFFSET];
+        if (tktFlags == 0 && cfgFlags == 0){
+            macs[index] = null;
+            Arrays.fill(accessCodes[index], (byte)0);
+        }
+        else if ((tktFlags & YubikeyConfig.TKTFLAG_CHAL_RESP) != 0
+                && (cfgFlags & YubikeyConfig.CFGFLAG_CHAL_HMAC) == YubikeyConfig.CFGFLAG_CHAL_HMAC){
+            byte[] secret = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+            System.arraycopy(payload, YubikeyConfig.KEY_OFFSET, secret, 0, YubikeyConfig.KEY_SIZE);
+            System.arraycopy(payload, YubikeyConfig.UID_OFFSET, secret, YubikeyConfig.KEY_SIZE,
+                    YubikeyConnector.SHA1_DIGEST_SIZE-YubikeyConfig.KEY_SIZE);
+            try{
+                Mac mac = Mac.getInstance("HmacSHA1");
+                mac.init(new SecretKeySpec(secret, "HmacSHA1"));
+                macs[index] = mac;
+            }
+            catch (GeneralSecurityException ex){
+                throw new IllegalStateException("HmacSHA1 unavailable", ex);
+            }
+            finally{
+                Arrays.fill(secret, (byte)0);
+            }
+            hmacLt64[index] = (cfgFlags & YubikeyConfig.CFGFLAG_HMAC_LT64) != 0;
+            requireTouch[index] = (cfgFlags & YubikeyConfig.CFGFLAG_CHAL_BTN_TRIG) != 0;
+            System.arraycopy(payload, YubikeyConfig.ACC_CODE_OFFSET, accessCodes[index], 0, YubikeyConfig.ACC_CODE_SIZE);
+        }
+        else{
+            // other modes (OTP, OATH) are not emulated
+            return;
+        }
+        // like a real key, the sequence is back to 0 once no slot is configured
+        pgmSeq = (macs[0] == null && macs[1] == null) ? 0 : (byte)(pgmSeq+1);
+        responseLength = 0;
+        readSeq = 0;
+        state = STATE_BUSY;
+        readyAt = System.nanoTime()+configLatencyNanos;
+    }
+
+    // appends the CRC tail to the len bytes of response and schedules it
+    private void respond(int len, boolean touch){
+        short rcrc = (short)~YubikeyUtil.crc16(response, 0, len);
+        response[len] = (byte)(rcrc & 0xff);
+        response[len+1] = (byte)((rcrc >> 8) & 0xff);
+        responseLength = len+2;
+
+        long now = System.nanoTime();
+        readSeq = 0;
+        if (touch){
+            state = STATE_WAIT_TOUCH;
+            readyAt = now + touchDelayNanos;
+            touchDeadline = now + TimeUnit.SECONDS.toNanos(TOUCH_TIMEOUT_SECONDS);
+        }
+        else{
+            state = STATE_BUSY;
+            readyAt = now + computeLatencyNanos;
+        }
+    }
+
+    private void status(byte[] report){
+        report[0] = 0;
+        report[1] = version[0];
+        report[2] = version[1];
+        report[3] = version[2];
+        report[4] = pgmSeq;
+        report[5] = (byte)((macs[0] != null ? CONFIG1_VALID : 0) | (macs[1] != null ? CONFIG2_VALID : 0));
+        report[6] = 0;
+        report[7] = 0;
+    }
+
+    private void reset(){
+        state = STATE_IDLE;
+        readSeq = 0;
+        lastSeq = -1;
+    }
+
+    private static int index(int slot){
+        if (slot != 1 && slot != 2)
+            throw new IllegalArgumentException("Unsupported slot:"+slot);
+        return slot-1;
+    }
+
+    private static void delay(long nanos){
+        if (nanos > 0)
+            LockSupport.parkNanos(nanos);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary ring buffer of the last feature reports exchanged on a channel.
+ *
+ * Each record is 16 bytes: the time since the recorder was created in
+ * nanoseconds shifted left by 8 with the direction in the low byte, then
+ * the 8 bytes of the report (flags byte last). Recording is a timestamp, a
+ * long store and an 8-byte copy into a preallocated array; a channel
+ * without recorder only pays a null check.
+ *
+ * The recorder has a single writer, the thread running the channel.
+ * dump() from that thread (as done on YubikeyException) is exact; a dump
+ * from another thread may catch the oldest record being overwritten.
+ * Dumps are decoded with FlightRecorderDecoder.
+ *
+ * New channels get a recorder when -Dyubikey4java.trace=&lt;records&gt; is
+ * set, and dump it on error into -Dyubikey4java.trace.dir if given.
+ */
+public class FlightRecorder {
+
+    public static final byte OUT = 1;
+    public static final byte IN = 2;
+
+    // dump file layout, big-endian
+    static final int MAGIC = 0x594b4652; // "YKFR"
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 16;
+    private static final int RECORD_SHIFT = 4;
+
+    private static final VarHandle LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle COUNT;
+    static {
+        try{
+            COUNT = MethodHandles.lookup().findVarHandle(FlightRecorder.class, "count", long.class);
+        }
+        catch (ReflectiveOperationException ex){
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final long baseNanos = System.nanoTime();
+    private final long baseMillis = System.currentTimeMillis();
+    private volatile long count;
+    private volatile Path dumpDirectory;
+
+    /**
+     * @param records
+     *            Number of reports kept, rounded up to a power of two.
+     */
+    public FlightRecorder(int records){
+        if (records <= 0 || records > (1 << 26))
+            throw new IllegalArgumentException("Invalid record count:"+records);
+        int size = Integer.highestOneBit(records);
+        if (size < records)
+            size <<= 1;
+        ring = new byte[size << RECORD_SHIFT];
+        mask = size-1;
+    }
+
+    /** A recorder configured from the system properties, or null if tracing is off. */
+    static FlightRecorder fromSystemProperties(){
+        Integer records = Integer.getInteger("yubikey4java.trace");
+        if (records == null || records <= 0)
+            return null;
+        FlightRecorder recorder = new FlightRecorder(records);
+        String dir = System.getProperty("yubikey4java.trace.dir");
+        if (dir != null)
+            recorder.setDumpDirectory(Paths.get(dir));
+        return recorder;
+    }
+
+    /** Records a report sent to (OUT) or received from (IN) the device. */
+    public void record(byte direction, byte[] report){
+        long n = (long)COUNT.getOpaque(this);
+        int off = ((int)n & mask) << RECORD_SHIFT;
+        LONG.set(ring, off, ((System.nanoTime()-baseNanos) << 8) | (direction & 0xff));
+        System.arraycopy(report, 0, ring, off+8, Math.min(report.length, 8));
+        COUNT.setRelease(this, n+1);
+    }
+
+    /** Number of reports recorded since creation, including overwritten ones. */
+    public long getCount(){
+        return count;
+    }
+
+    public int getCapacity(){
+        return mask+1;
+    }
+
+    /** Directory where dumpOnError() writes, or null to disable dumps on error. */
+    public void setDumpDirectory(Path directory){
+        this.dumpDirectory = directory;
+    }
+
+    public Path getDumpDirectory(){
+        return dumpDirectory;
+    }
+
+    /**
+     * Writes the recorded reports, oldest first, to a memory-mapped file.
+     *
+     * @return the number of records written
+     */
+    public int dump(Path file) throws IOException {
+        long total = (long)COUNT.getAcquire(this);
+        int records = (int)Math.min(total, mask+1);
+        int first = (int)((total-records) & mask);
+        int size = HEADER_SIZE + records*RECORD_SIZE;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            MappedByteBuffer out = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC);
+            out.putShort(FORMAT_VERSION);
+            out.putShort((short)RECORD_SIZE);
+            out.putInt(records);
+            out.putInt(0);
+            out.putLong(total);
+            out.putLong(baseMillis);
+            int tail = Math.min(records, mask+1-first);
+            out.put(ring, first << RECORD_SHIFT, tail << RECORD_SHIFT);
+            out.put(ring, 0, (records-tail) << RECORD_SHIFT);
+            out.force();
+        }
+        return records;
+    }
+
+    /**
+     * Dumps into the dump directory, if one is set. Failures are reported
+     * through YubikeyConnector.debug and otherwise ignored, so that the
+     * original error reaches the caller.
+     *
+     * @return the dump file, or null
+     */
+    public Path dumpOnError(){
+        Path directory = dumpDirectory;
+        if (directory == null)
+            return null;
+        Path file = directory.resolve("yubikey-trace-"+System.currentTimeMillis()+"-"+System.identityHashCode(this)+".ykfr");
+        try{
+            dump(file);
+            return file;
+        }
+        catch (IOException | RuntimeException ex){
+            YubikeyConnector.debug("Unable to dump flight recorder to "+file+": "+ex.getMessage());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Renders a FlightRecorder dump as annotated reports.
+ *
+ * Written reports are shown with their sequence number and reassembled
+ * into frames whose CRC is checked when the last report (sequence 9) is
+ * seen. Read reports are shown as status (firmware version, program
+ * sequence, touch-wait seconds) or as response data while
+ * RESP_PENDING_FLAG is set; the response is checked against the CRC
+ * residual when the device stops sending it.
+ *
+ * Usage: java org.toporin.yubikey4java.FlightRecorderDecoder &lt;dump&gt;...
+ */
+public class FlightRecorderDecoder {
+
+    private final PrintStream out;
+
+    // frame being written
+    private final byte[] payload = new byte[Frame.SLOT_DATA_SIZE];
+    private int lastWriteSeq = -1;
+
+    // response being read
+    private final byte[] response = new byte[YubikeyChannel.RESPONSE_BUFFER_SIZE];
+    private int responseLength = -1;
+    private boolean pendingEnd;
+
+    public FlightRecorderDecoder(PrintStream out){
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0){
+            System.err.println("Usage: FlightRecorderDecoder <dump>...");
+            System.exit(2);
+        }
+        for (String arg: args){
+            new FlightRecorderDecoder(System.out).decode(Paths.get(arg));
+        }
+    }
+
+    public void decode(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)){
+            decode(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    public void decode(ByteBuffer dump){
+        if (dump.remaining() < FlightRecorder.HEADER_SIZE || dump.getInt() != FlightRecorder.MAGIC)
+            throw new IllegalArgumentException("Not a flight recorder dump");
+        short version = dump.getShort();
+        int recordSize = dump.getShort();
+        if (version != FlightRecorder.FORMAT_VERSION || recordSize != FlightRecorder.RECORD_SIZE)
+            throw new IllegalArgumentException("Unsupported dump format "+version+"/"+recordSize);
+        int records = dump.getInt();
+        dump.getInt();
+        long total = dump.getLong();
+        long baseMillis = dump.getLong();
+        out.println("Recorder started "+Instant.ofEpochMilli(baseMillis)+", "+total+" reports recorded, last "+records+" kept");
+
+        lastWriteSeq = -1;
+        responseLength = -1;
+        pendingEnd = false;
+        long previous = -1;
+        byte[] report = new byte[YubikeyConnector._FEATURE_RPT_SIZE];
+        for (int i=0; i<records && dump.remaining() >= recordSize; i++){
+            long head = dump.getLong();
+            dump.get(report);
+            long nanos = head >>> 8;
+            int direction = (int)(head & 0xff);
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%12.3fms %+10.1fus %s ", nanos/1e6,
+                    previous < 0 ? 0.0 : (nanos-previous)/1e3, direction == FlightRecorder.OUT ? "OUT" : "IN "));
+            previous = nanos;
+            for (int j=0; j<7; j++){
+                line.append(String.format("%02x", report[j] & 0xff));
+            }
+            line.append(String.format(" %02x  ", report[7] & 0xff));
+            if (direction == FlightRecorder.OUT){
+                endResponse();
+                annotateWrite(report, line);
+            }
+            else{
+                annotateRead(report, line);
+            }
+            out.println(line);
+            if (pendingEnd){
+                pendingEnd = false;
+                endResponse();
+            }
+        }
+        endResponse();
+    }
+
+    private void annotateWrite(byte[] report, StringBuilder line){
+        int flags = report[7] & 0xff;
+        if ((flags & YubikeyConnector.SLOT_WRITE_FLAG) == 0){
+            line.append("no write flag");
+            return;
+        }
+        int seq = flags & YubikeyConnector.RESP_TIMEOUT_WAIT_MASK;
+        if (seq == 0x0f){
+            line.append("reset");
+            lastWriteSeq = -1;
+            return;
+        }
+        line.append("write seq ").append(seq);
+        if (seq == 0){
+            Arrays.fill(payload, (byte)0);
+        }
+        else if (lastWriteSeq < 0 || seq <= lastWriteSeq || seq > Frame.LAST_SEQ){
+            line.append(" OUT OF SEQUENCE");
+            lastWriteSeq = -1;
+            return;
+        }
+        lastWriteSeq = seq;
+        if (seq < Frame.LAST_SEQ){
+            System.arraycopy(report, 0, payload, seq*7, 7);
+            return;
+        }
+        payload[Frame.SLOT_DATA_SIZE-1] = report[0];
+        short crc = (short)((report[2] & 0xff) | ((report[3] & 0xff) << 8));
+        line.append(String.format(", slot 0x%02x (%s), crc %04x %s", report[1] & 0xff, slotName(report[1]),
+                crc & 0xffff, YubikeyUtil.crc16(payload) == crc ? "ok" : "BAD"));
+        lastWriteSeq = -1;
+    }
+
+    private void annotateRead(byte[] report, StringBuilder line){
+        int flags = report[7] & 0xff;
+        if ((flags & YubikeyConnector.RESP_PENDING_FLAG) != 0){
+            int seq = flags & YubikeyConnector.RESP_TIMEOUT_WAIT_MASK;
+            line.append("response seq ").append(seq);
+            if (seq == 0){
+                if (responseLength > 0){
+                    // the sequence wrapped: the whole response has been read
+                    line.append(", end of response");
+                    pendingEnd = true;
+                    return;
+                }
+                responseLength = 0;
+            }
+            if (responseLength >= 0 && responseLength+7 <= response.length){
+                System.arraycopy(report, 0, response, responseLength, 7);
+                responseLength += 7;
+            }
+            return;
+        }
+        endResponse();
+        line.append(String.format("status v%d.%d.%d pgmSeq %d touchLevel %04x",
+                report[1] & 0xff, report[2] & 0xff, report[3] & 0xff, report[4] & 0xff,
+                (report[5] & 0xff) | ((report[6] & 0xff) << 8)));
+        if ((flags & YubikeyConnector.RESP_TIMEOUT_WAIT_FLAG) != 0)
+            line.append(", touch wait ").append(flags & YubikeyConnector.RESP_TIMEOUT_WAIT_MASK).append("s left");
+        if ((flags & YubikeyConnector.SLOT_WRITE_FLAG) != 0)
+            line.append(", busy");
+    }
+
+    // prints the CRC check of the response read so far, if any
+    private void endResponse(){
+        if (responseLength < 0)
+            return;
+        int len = responseLength;
+        responseLength = -1;
+        // the response length is not in the reports: find the shortest
+        // prefix with the CRC residual
+        for (int n=3; n<=len; n++){
+            if (YubikeyUtil.validate_crc16(response, 0, n)){
+                out.println(String.format("%34s=> response %d bytes + crc ok: %s", "", n-2,
+                        YubikeyUtil.toHexString(Arrays.copyOf(response, n-2))));
+                return;
+            }
+        }
+        out.println(String.format("%34s=> response of %d bytes failed CRC check", "", len));
+    }
+
+    private static String slotName(byte slot){
+        switch (slot){
+            case Frame.SLOT_CHAL_HMAC1: return "HMAC slot 1";
+            case Frame.SLOT_CHAL_HMAC2: return "HMAC slot 2";
+            case Frame.SLOT_DEVICE_SERIAL: return "serial";
+            default: return "unknown";
+        }
+    }
+
+}
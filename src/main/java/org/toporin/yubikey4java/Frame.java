@@ -34,6 +34,10 @@ public class Frame{
         public static final int SLOT_DATA_SIZE=64;
         public static final byte SLOT_CHAL_HMAC1=0x30;	/* Write 64 byte challenge to slot 1, get HMAC-SHA1 response */
         public static final byte SLOT_CHAL_HMAC2=0x38;	/* Write 64 byte challenge to slot 2, get HMAC-SHA1 response */
+        public static final byte SLOT_DEVICE_SERIAL=0x10;	/* Device serial number */
+        public static final byte SLOT_CONFIG=0x01;	/* Write configuration of slot 1 */
+        public static final byte SLOT_CONFIG2=0x03;	/* Write configuration of slot 2 */
+        public static final int LAST_SEQ=9;     /* sequence number of the report carrying slot and crc */
     
         public byte[] payload;
         public byte slot;
@@ -109,47 +113,57 @@ public class Frame{
         public List<byte[]> getByteArray(){
             
             List<byte[]> frameList = new ArrayList<byte[]>();
-            byte[] tmpBytes= new byte[7];
-            byte[] frameBytes= new byte[8];
-            byte seq=0;
-            
-            // first frame
-            System.arraycopy(payload, 0, frameBytes, 0, 7);
-            frameBytes[7]= (byte)(YubikeyConnector.SLOT_WRITE_FLAG | seq);
-            frameList.add(frameBytes);
-            seq++;
-            
-            // payload
-            for (seq=1; seq<9; seq++){
-                
-                System.arraycopy(payload, seq*7, tmpBytes, 0, 7);
-                if (!java.util.Arrays.equals(tmpBytes, NULLBYTES)){
-                    frameBytes= new byte[8];
-                    System.arraycopy(payload, seq*7, frameBytes, 0, 7);
-                    frameBytes[7]= (byte)(YubikeyConnector.SLOT_WRITE_FLAG | seq);
-                    frameList.add(frameBytes);
-                }
-            }
             
             // last byte of payload+ slot+crc+filler
             setCRC();
-            frameBytes= new byte[8];
-            System.out.println("crc:"+crc+" "+(byte)(crc & 0xff)+" "+((crc>>8) & 0xff));
-            
-            seq=9;
-            frameBytes[0]= payload[63];
-            frameBytes[1]= slot;
-            frameBytes[2]= (byte)(crc & 0xff); //lsb
-            frameBytes[3]= (byte)((crc>>8) & 0xff); //msb
-            frameBytes[4]= 0x00;
-            frameBytes[5]= 0x00;
-            frameBytes[6]= 0x00;
-            frameBytes[7]= (byte)(YubikeyConnector.SLOT_WRITE_FLAG | seq);
-            frameList.add(frameBytes);
+            if (YubikeyConnector.DEBUG)
+                YubikeyConnector.debug("crc:"+crc+" "+(byte)(crc & 0xff)+" "+((crc>>8) & 0xff));
             
+            for (int seq=0; seq<=LAST_SEQ; seq++){
+                byte[] frameBytes= new byte[8];
+                if (encodeReport(seq, frameBytes))
+                    frameList.add(frameBytes);
+            }
             return frameList;
         }
         
+        /**
+         * Encodes report number seq of the frame in place, using the current crc.
+         * 
+         * @param seq 0 to LAST_SEQ
+         * @param report 8-byte destination
+         * @return false if the report is a null payload block that needs not be sent
+         */
+        public boolean encodeReport(int seq, byte[] report){
+            
+            if (seq<LAST_SEQ){
+                int off= seq*7;
+                // first frame is always sent
+                if (seq>0 && isNull(payload, off, 7))
+                    return false;
+                System.arraycopy(payload, off, report, 0, 7);
+            }
+            else{
+                report[0]= payload[63];
+                report[1]= slot;
+                report[2]= (byte)(crc & 0xff); //lsb
+                report[3]= (byte)((crc>>8) & 0xff); //msb
+                report[4]= 0x00;
+                report[5]= 0x00;
+                report[6]= 0x00;
+            }
+            report[7]= (byte)(YubikeyConnector.SLOT_WRITE_FLAG | seq);
+            return true;
+        }
+        
+        private static boolean isNull(byte[] data, int off, int len){
+            for (int i=off; i<off+len; i++){
+                if (data[i]!=0)
+                    return false;
+            }
+            return true;
+        }
+        
         
         
     }    
\ No newline at end of file
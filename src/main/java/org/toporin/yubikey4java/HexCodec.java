@@ -0,0 +1,186 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Table-driven base 16 encoding, with the usual hex digits or the modhex
+ * digits of Yubico OTPs.
+ *
+ * Encoding looks up the two characters of a byte in a 512-entry table and
+ * decoding looks up each character in a 128-entry table. Besides the String forms, encode and decode work in
+ * caller-supplied arrays and buffers, and decode reads any CharSequence,
+ * so a hot path can run without allocating. Decoding accepts both cases.
+ * Instances are immutable and thread-safe.
+ */
+public final class HexCodec {
+
+    /** Upper case hex, as printed by YubikeyUtil.toHexString. */
+    public static final HexCodec HEX = new HexCodec("0123456789ABCDEF");
+    public static final HexCodec HEX_LOWER = new HexCodec("0123456789abcdef");
+    /** The keyboard-layout safe digits of Yubico OTPs. */
+    public static final HexCodec MODHEX = new HexCodec(YubikeyUtil.MODHEX_CHARS);
+
+    // high digit of byte b at 2*b, low digit at 2*b+1
+    private final char[] encodeTable = new char[512];
+    // nibble of each ASCII character, -1 for a non-digit
+    private final byte[] decodeTable = new byte[128];
+    private final String digits;
+
+    private HexCodec(String digits){
+        this.digits = digits;
+        for (int b=0; b<256; b++){
+            encodeTable[2*b] = digits.charAt(b >>> 4);
+            encodeTable[2*b+1] = digits.charAt(b & 0x0f);
+        }
+        Arrays.fill(decodeTable, (byte)-1);
+        for (int i=0; i<16; i++){
+            decodeTable[Character.toLowerCase(digits.charAt(i))] = (byte)i;
+            decodeTable[Character.toUpperCase(digits.charAt(i))] = (byte)i;
+        }
+    }
+
+    /** The 16 digits, by value. */
+    public String getDigits(){
+        return digits;
+    }
+
+    public String encode(byte[] src){
+        return encode(src, 0, src.length);
+    }
+
+    public String encode(byte[] src, int off, int len){
+        char[] chars = new char[2*len];
+        encode(src, off, len, chars, 0);
+        return new String(chars);
+    }
+
+    public String encode(byte b){
+        return new String(encodeTable, 2*(b & 0xff), 2);
+    }
+
+    /**
+     * Encodes len bytes of src into dst.
+     *
+     * @return the number of characters written, 2*len
+     */
+    public int encode(byte[] src, int off, int len, char[] dst, int dstOff){
+        char[] table = encodeTable;
+        for (int i=0; i<len; i++){
+            int t = 2*(src[off+i] & 0xff);
+            dst[dstOff+2*i] = table[t];
+            dst[dstOff+2*i+1] = table[t+1];
+        }
+        return 2*len;
+    }
+
+    /** Encodes len bytes of src at the position of dst, which is advanced. */
+    public void encode(byte[] src, int off, int len, CharBuffer dst){
+        if (dst.hasArray()){
+            int pos = dst.position();
+            if (dst.remaining() < 2*len)
+                throw new BufferOverflowException();
+            encode(src, off, len, dst.array(), dst.arrayOffset()+pos);
+            dst.position(pos+2*len);
+            return;
+        }
+        char[] table = encodeTable;
+        for (int i=0; i<len; i++){
+            int t = 2*(src[off+i] & 0xff);
+            dst.put(table[t]).put(table[t+1]);
+        }
+    }
+
+    /** Appends the encoding of len bytes of src. */
+    public StringBuilder encode(byte[] src, int off, int len, StringBuilder dst){
+        char[] table = encodeTable;
+        dst.ensureCapacity(dst.length()+2*len);
+        for (int i=0; i<len; i++){
+            int t = 2*(src[off+i] & 0xff);
+            dst.append(table[t]).append(table[t+1]);
+        }
+        return dst;
+    }
+
+    /**
+     * Decodes an even number of digits.
+     *
+     * @throws IllegalArgumentException on an odd length or a non-digit
+     */
+    public byte[] decode(CharSequence s){
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("Odd number of digits:"+s.length());
+        byte[] bytes = new byte[s.length()/2];
+        if (decode(s, 0, s.length(), bytes, 0) < 0)
+            throw new IllegalArgumentException("Invalid digits:"+s);
+        return bytes;
+    }
+
+    /**
+     * Decodes len characters of s (len even) into dst.
+     *
+     * @return the number of bytes written, len/2, or -1 if a character is
+     *         not a digit (dst may then be partially written)
+     */
+    public int decode(CharSequence s, int off, int len, byte[] dst, int dstOff){
+        int invalid = 0;
+        for (int i=0; i<len; i+=2){
+            int hi = nibble(s.charAt(off+i));
+            int lo = nibble(s.charAt(off+i+1));
+            invalid |= hi | lo;
+            dst[dstOff+i/2] = (byte)((hi << 4) | lo);
+        }
+        return invalid < 0 ? -1 : len/2;
+    }
+
+    public int decode(char[] src, int off, int len, byte[] dst, int dstOff){
+        int invalid = 0;
+        for (int i=0; i<len; i+=2){
+            int hi = nibble(src[off+i]);
+            int lo = nibble(src[off+i+1]);
+            invalid |= hi | lo;
+            dst[dstOff+i/2] = (byte)((hi << 4) | lo);
+        }
+        return invalid < 0 ? -1 : len/2;
+    }
+
+    /** Whether s is an even number of digits. */
+    public boolean isValid(CharSequence s){
+        if (s.length() % 2 != 0)
+            return false;
+        for (int i=0; i<s.length(); i++){
+            if (nibble(s.charAt(i)) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int nibble(char c){
+        return c < 128 ? decodeTable[c] : -1;
+    }
+
+}
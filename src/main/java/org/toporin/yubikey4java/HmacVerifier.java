@@ -0,0 +1,286 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Server-side check of HMAC-SHA1 responses obtained from Yubikeys.
+ *
+ * Slot secrets are enrolled per key serial and slot, with the slot
+ * configuration (fixed 64-byte or variable length challenges). A response
+ * is checked against the HMAC the device computes: the challenge is padded
+ * by YubikeyConnector.pad_challenge exactly as challenge_response sends it,
+ * and the device HMAC input is taken with hmac_input_length, so verifier
+ * and device path share one implementation of the padding rules.
+ *
+ * Each secret is kept as the two SHA-1 states of its HMAC, one that already
+ * absorbed the key block xor ipad and one that absorbed it xor opad. A
+ * verification clones both, so neither key block is hashed again per call
+ * (two compressions out of five for a full challenge) and the SHA-1
+ * intrinsics of the JCE provider are used. Each thread reuses its own
+ * buffers, comparisons are constant time, and batches are split over the
+ * cores of a ForkJoinPool.
+ */
+public class HmacVerifier {
+
+    // requests per fork-join task
+    private static final int BATCH_CHUNK = 256;
+    private static final byte IPAD = 0x36;
+    private static final byte OPAD = 0x5c;
+
+    private static final ThreadLocal<Work> WORK = new ThreadLocal<Work>(){
+        @Override
+        protected Work initialValue(){
+            return new Work();
+        }
+    };
+
+    private final Map<Long, Enrollment> enrollments = new ConcurrentHashMap<Long, Enrollment>();
+    private final ForkJoinPool pool;
+
+    /** A verifier running batches on the common pool. */
+    public HmacVerifier(){
+        this(ForkJoinPool.commonPool());
+    }
+
+    public HmacVerifier(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Enrolls (or replaces) the secret of a slot.
+     *
+     * @param variable
+     *            whether the slot is configured for variable length
+     *            challenges (HMAC_LT64)
+     */
+    public void enroll(int serial, int slot, byte[] secret, boolean variable){
+        try{
+            // RFC 2104: a key longer than a block is hashed first
+            byte[] block = Arrays.copyOf((secret.length > YubikeyConnector.SHA1_MAX_BLOCK_SIZE)
+                    ? MessageDigest.getInstance("SHA-1").digest(secret) : secret, YubikeyConnector.SHA1_MAX_BLOCK_SIZE);
+            MessageDigest inner = MessageDigest.getInstance("SHA-1");
+            MessageDigest outer = MessageDigest.getInstance("SHA-1");
+            for (int i=0; i<block.length; i++){
+                inner.update((byte)(block[i] ^ IPAD));
+                outer.update((byte)(block[i] ^ OPAD));
+            }
+            Arrays.fill(block, (byte)0);
+            enrollments.put(key(serial, slot), new Enrollment(inner, outer, variable));
+        }
+        catch (GeneralSecurityException ex){
+            throw new IllegalStateException("SHA-1 unavailable", ex);
+        }
+    }
+
+    public void revoke(int serial, int slot){
+        enrollments.remove(key(serial, slot));
+    }
+
+    public boolean isEnrolled(int serial, int slot){
+        return enrollments.containsKey(key(serial, slot));
+    }
+
+    public int size(){
+        return enrollments.size();
+    }
+
+    /**
+     * Whether the response is what the key would answer to the challenge.
+     * False as well for an unknown key or an invalid challenge.
+     */
+    public boolean verify(int serial, int slot, byte[] challenge, byte[] response){
+        return verify(serial, slot, challenge, response, 0, response.length);
+    }
+
+    public boolean verify(int serial, int slot, byte[] challenge, byte[] response, int off, int len){
+        if (slot != 1 && slot != 2)
+            return false;
+        Enrollment enrollment = enrollments.get(key(serial, slot));
+        if (enrollment == null || len != YubikeyConnector.SHA1_DIGEST_SIZE
+                || challenge.length > YubikeyConnector.SHA1_MAX_BLOCK_SIZE)
+            return false;
+        Work work = WORK.get();
+        YubikeyConnector.pad_challenge(challenge, enrollment.variable, work.payload, 0);
+        int n = YubikeyConnector.hmac_input_length(work.payload, 0, enrollment.variable);
+        try{
+            MessageDigest md = (MessageDigest)enrollment.inner.clone();
+            md.update(work.payload, 0, n);
+            md.digest(work.inner, 0, YubikeyConnector.SHA1_DIGEST_SIZE);
+            md = (MessageDigest)enrollment.outer.clone();
+            md.update(work.inner, 0, YubikeyConnector.SHA1_DIGEST_SIZE);
+            md.digest(work.expected, 0, YubikeyConnector.SHA1_DIGEST_SIZE);
+        }
+        catch (CloneNotSupportedException | GeneralSecurityException ex){
+            throw new IllegalStateException("HmacSHA1 failed", ex);
+        }
+        return equals(work.expected, 0, response, off, YubikeyConnector.SHA1_DIGEST_SIZE);
+    }
+
+    /**
+     * Verifies all the requests of the batch, in parallel, and stores the
+     * outcomes in the batch.
+     */
+    public void verify(Batch batch){
+        if (batch.size <= BATCH_CHUNK){
+            verify(batch, 0, batch.size);
+        }
+        else{
+            pool.invoke(new BatchTask(batch, 0, batch.size));
+        }
+    }
+
+    private void verify(Batch batch, int from, int to){
+        for (int i=from; i<to; i++){
+            batch.results[i] = verify(batch.serials[i], batch.slots[i], batch.challenges[i], batch.responses[i]);
+        }
+    }
+
+    // constant time: the time does not depend on where the arrays differ
+    private static boolean equals(byte[] a, int aOff, byte[] b, int bOff, int len){
+        int diff = 0;
+        for (int i=0; i<len; i++){
+            diff |= a[aOff+i] ^ b[bOff+i];
+        }
+        return diff == 0;
+    }
+
+    private static long key(int serial, int slot){
+        if (slot != 1 && slot != 2)
+            throw new IllegalArgumentException("Unsupported slot:"+slot);
+        return ((long)serial << 2) | slot;
+    }
+
+    // the digests are only read (cloned) once published
+    private static final class Enrollment {
+        final MessageDigest inner;
+        final MessageDigest outer;
+        final boolean variable;
+
+        Enrollment(MessageDigest inner, MessageDigest outer, boolean variable){
+            this.inner = inner;
+            this.outer = outer;
+            this.variable = variable;
+        }
+    }
+
+    private static final class Work {
+        final byte[] payload = new byte[YubikeyConnector.SHA1_MAX_BLOCK_SIZE];
+        final byte[] inner = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        final byte[] expected = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+    }
+
+    private final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        BatchTask(Batch batch, int from, int to){
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if (to-from <= BATCH_CHUNK){
+                verify(batch, from, to);
+            }
+            else{
+                int mid = (from+to) >>> 1;
+                invokeAll(new BatchTask(batch, from, mid), new BatchTask(batch, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Requests to verify together, and their outcomes. A batch can be
+     * cleared and refilled.
+     */
+    public static class Batch {
+
+        private int size;
+        private int[] serials;
+        private int[] slots;
+        private byte[][] challenges;
+        private byte[][] responses;
+        private boolean[] results;
+
+        public Batch(){
+            this(1024);
+        }
+
+        public Batch(int capacity){
+            serials = new int[capacity];
+            slots = new int[capacity];
+            challenges = new byte[capacity][];
+            responses = new byte[capacity][];
+            results = new boolean[capacity];
+        }
+
+        /** Adds a request and returns its index. */
+        public int add(int serial, int slot, byte[] challenge, byte[] response){
+            if (size == serials.length){
+                int capacity = Math.max(16, size*2);
+                serials = Arrays.copyOf(serials, capacity);
+                slots = Arrays.copyOf(slots, capacity);
+                challenges = Arrays.copyOf(challenges, capacity);
+                responses = Arrays.copyOf(responses, capacity);
+                results = Arrays.copyOf(results, capacity);
+            }
+            serials[size] = serial;
+            slots[size] = slot;
+            challenges[size] = challenge;
+            responses[size] = response;
+            results[size] = false;
+            return size++;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        /** Outcome of the request at index, after HmacVerifier.verify(batch). */
+        public boolean getResult(int index){
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index:"+index);
+            return results[index];
+        }
+
+        public void clear(){
+            Arrays.fill(challenges, 0, size, null);
+            Arrays.fill(responses, 0, size, null);
+            size = 0;
+        }
+
+    }
+
+}
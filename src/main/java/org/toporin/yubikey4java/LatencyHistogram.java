@@ -0,0 +1,232 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two
+ * is split in 8 buckets, so recorded values are kept within 12.5%.
+ * Recording does not allocate.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records a duration in nanoseconds. */
+    public void record(long nanos){
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)){
+            current = max.get();
+        }
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+
+    public void reset(){
+        for (int i=0; i<BUCKETS; i++){
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Copy of the current distribution. Concurrent records may be partially
+     * included.
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    static int index(long v){
+        if (v < SUB)
+            return (int)v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)((v >>> (exp - SUB_BITS)) & (SUB-1));
+        return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    // highest value that falls in the bucket
+    static long upper(int index){
+        if (index < SUB)
+            return index;
+        int exp = (index >> SUB_BITS) + SUB_BITS - 1;
+        int sub = index & (SUB-1);
+        return ((long)(SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Immutable view of a histogram. Values are in nanoseconds unless the
+     * getter says otherwise; the getters follow the bean convention so the
+     * snapshot maps to a JMX composite.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max){
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getMaxNanos(){
+            return max;
+        }
+
+        public double getMeanNanos(){
+            return (count == 0) ? 0 : (double)sum / count;
+        }
+
+        public long getP50Nanos(){
+            return valueAtPercentile(50);
+        }
+
+        public long getP99Nanos(){
+            return valueAtPercentile(99);
+        }
+
+        public long getP999Nanos(){
+            return valueAtPercentile(99.9);
+        }
+
+        /** Upper bound of the bucket holding the given percentile, capped at the max. */
+        public long valueAtPercentile(double percentile){
+            if (count == 0)
+                return 0;
+            long rank = (long)Math.ceil(percentile / 100 * count);
+            if (rank < 1)
+                rank = 1;
+            long seen = 0;
+            for (int i=0; i<counts.length; i++){
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upper(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * Distribution of the values recorded after the earlier snapshot of
+         * the same histogram. The max is the upper bound of the highest
+         * bucket recorded in the interval, capped at the overall max.
+         */
+        public Snapshot since(Snapshot earlier){
+            long[] diff = new long[counts.length];
+            long top = 0;
+            for (int i=0; i<counts.length; i++){
+                diff[i] = counts[i]-earlier.counts[i];
+                if (diff[i] > 0)
+                    top = Math.min(upper(i), max);
+            }
+            return new Snapshot(diff, count-earlier.count, sum-earlier.sum, top);
+        }
+
+        /**
+         * Prints the distribution in the percentile format of HdrHistogram
+         * (.hgrm), one line per non-empty bucket, so that runs can be diffed
+         * and plotted with the HdrHistogram tools.
+         *
+         * @param unitNanos nanoseconds per output unit, e.g. 1000000 for milliseconds
+         */
+        public void writePercentileDistribution(PrintStream out, double unitNanos){
+            out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+            out.println();
+            long seen = 0;
+            double variance = 0;
+            double mean = getMeanNanos();
+            for (int i=0; i<counts.length; i++){
+                if (counts[i] == 0)
+                    continue;
+                seen += counts[i];
+                long value = Math.min(upper(i), max);
+                double deviation = value-mean;
+                variance += deviation*deviation*counts[i];
+                double percentile = (double)seen/count;
+                if (percentile < 1)
+                    out.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f%n", value/unitNanos, percentile, seen, 1/(1-percentile));
+                else
+                    out.format(Locale.ROOT, "%12.3f %2.12f %10d%n", value/unitNanos, percentile, seen);
+            }
+            double deviation = count == 0 ? 0 : Math.sqrt(variance/count);
+            out.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean/unitNanos, deviation/unitNanos);
+            out.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]%n", max/unitNanos, count);
+            out.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS, SUB);
+        }
+
+        /** Number of recorded values per bucket, with upper bounds from bucketUpperBound. */
+        public long[] bucketCounts(){
+            return counts.clone();
+        }
+
+        public static long bucketUpperBound(int index){
+            return upper(index);
+        }
+
+        @Override
+        public String toString(){
+            return "count="+count
+                    +" p50="+TimeUnit.NANOSECONDS.toMicros(getP50Nanos())+"us"
+                    +" p99="+TimeUnit.NANOSECONDS.toMicros(getP99Nanos())+"us"
+                    +" p99.9="+TimeUnit.NANOSECONDS.toMicros(getP999Nanos())+"us"
+                    +" max="+TimeUnit.NANOSECONDS.toMicros(max)+"us";
+        }
+
+    }
+
+}
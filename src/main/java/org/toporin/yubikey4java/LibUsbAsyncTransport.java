@@ -0,0 +1,170 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import org.usb4java.Device;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * Feature report transport over libusb asynchronous control transfers.
+ *
+ * One transfer and its direct buffer (setup packet plus report) are
+ * allocated per transport and reused by every report. Callbacks run on the
+ * event thread of the YubikeyEventLoop whose context the device was opened
+ * in. The blocking methods use synchronous control transfers through a
+ * LibUsbTransport on the same handle.
+ */
+public class LibUsbAsyncTransport implements AsyncYubikeyTransport, Closeable {
+
+    private final LibUsbTransport sync;
+    private final Transfer transfer = LibUsb.allocTransfer();
+    private final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(LibUsb.CONTROL_SETUP_SIZE+YubikeyConnector._FEATURE_RPT_SIZE);
+    private final TransferCallback done = new TransferCallback(){
+        @Override
+        public void processTransfer(Transfer transfer){
+            transferred(transfer);
+        }
+    };
+
+    // transfer in flight
+    private byte[] readReport;
+    private ReportCallback callback;
+
+    public LibUsbAsyncTransport(LibUsbTransport sync){
+        this.sync = sync;
+    }
+
+    /**
+     * Opens and claims the device, see LibUsbTransport.open. The device must
+     * come from the context of the loop that will handle its events.
+     */
+    public static LibUsbAsyncTransport open(Device device){
+        return new LibUsbAsyncTransport(LibUsbTransport.open(device));
+    }
+
+    @Override
+    public void submitWrite(byte[] report, ReportCallback callback){
+        buffer.clear();
+        LibUsb.fillControlSetup(buffer,
+            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | YubikeyConnector._USB_ENDPOINT_OUT),
+            YubikeyConnector._HID_SET_REPORT,
+            (short)(YubikeyConnector._REPORT_TYPE_FEATURE << 8),
+            (short) 1, (short) YubikeyConnector._FEATURE_RPT_SIZE);
+        buffer.position(LibUsb.CONTROL_SETUP_SIZE);
+        buffer.put(report, 0, YubikeyConnector._FEATURE_RPT_SIZE);
+        submit(null, callback);
+    }
+
+    @Override
+    public void submitRead(byte[] report, ReportCallback callback){
+        buffer.clear();
+        LibUsb.fillControlSetup(buffer,
+            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | YubikeyConnector._USB_ENDPOINT_IN),
+            YubikeyConnector._HID_GET_REPORT,
+            (short)(YubikeyConnector._REPORT_TYPE_FEATURE << 8),
+            (short) 1, (short) YubikeyConnector._FEATURE_RPT_SIZE);
+        submit(report, callback);
+    }
+
+    private void submit(byte[] readReport, ReportCallback callback){
+        buffer.rewind();
+        this.readReport = readReport;
+        this.callback = callback;
+        LibUsb.fillControlTransfer(transfer, sync.getHandle(), buffer, done, null, YubikeyConnector._USB_TIMEOUT_MS);
+        int result = LibUsb.submitTransfer(transfer);
+        if (result != LibUsb.SUCCESS){
+            this.callback = null;
+            callback.completed(new LibUsbException("Unable to submit control transfer", result));
+        }
+    }
+
+    private void transferred(Transfer transfer){
+        ReportCallback callback = this.callback;
+        this.callback = null;
+        int status = transfer.status();
+        if (status != LibUsb.TRANSFER_COMPLETED){
+            callback.completed(new LibUsbException("Control transfer failed", errorCode(status)));
+            return;
+        }
+        if (transfer.actualLength() != YubikeyConnector._FEATURE_RPT_SIZE){
+            callback.completed(new RuntimeException("Not all data was transferred:"+transfer.actualLength()));
+            return;
+        }
+        if (readReport != null){
+            ByteBuffer data = LibUsb.controlTransferGetData(transfer);
+            data.get(readReport, 0, YubikeyConnector._FEATURE_RPT_SIZE);
+        }
+        callback.completed(null);
+    }
+
+    // maps a transfer status to the libusb error of the synchronous API
+    private static int errorCode(int status){
+        if (status == LibUsb.TRANSFER_TIMED_OUT)
+            return LibUsb.ERROR_TIMEOUT;
+        if (status == LibUsb.TRANSFER_NO_DEVICE)
+            return LibUsb.ERROR_NO_DEVICE;
+        if (status == LibUsb.TRANSFER_STALL)
+            return LibUsb.ERROR_PIPE;
+        if (status == LibUsb.TRANSFER_OVERFLOW)
+            return LibUsb.ERROR_OVERFLOW;
+        if (status == LibUsb.TRANSFER_CANCELLED)
+            return LibUsb.ERROR_INTERRUPTED;
+        return LibUsb.ERROR_IO;
+    }
+
+    @Override
+    public void writeReport(byte[] report){
+        sync.writeReport(report);
+    }
+
+    @Override
+    public void readReport(byte[] report){
+        sync.readReport(report);
+    }
+
+    public LibUsbTransport getSyncTransport(){
+        return sync;
+    }
+
+    /**
+     * Frees the transfer and closes the handle if owned. No transfer may be
+     * in flight.
+     */
+    @Override
+    public void close(){
+        try{
+            LibUsb.freeTransfer(transfer);
+        }
+        finally{
+            sync.close();
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Feature report transport over libusb control transfers.
+ *
+ * Either wraps a handle that is already opened with its interface claimed,
+ * or owns the handle when created with open(Device) and released with close().
+ *
+ * Reports go through a direct buffer allocated once per transport, so a
+ * transport must not be used by several threads at the same time.
+ */
+public class LibUsbTransport implements YubikeyTransport, Closeable {
+
+    private final DeviceHandle handle;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(YubikeyConnector._FEATURE_RPT_SIZE);
+    private final boolean owned;
+    private final boolean reattach;
+
+    public LibUsbTransport(DeviceHandle handle){
+        this(handle, false, false);
+    }
+
+    private LibUsbTransport(DeviceHandle handle, boolean owned, boolean reattach){
+        this.handle= handle;
+        this.owned= owned;
+        this.reattach= reattach;
+    }
+
+    /**
+     * Opens the device, detaches the kernel driver if needed and claims the
+     * Yubikey interface.
+     *
+     * @param device
+     *            The yubikey USB device.
+     * @return A transport owning the handle, to be released with close().
+     */
+    public static LibUsbTransport open(Device device){
+        DeviceHandle handle = new DeviceHandle();
+        int result = LibUsb.open(device, handle);
+        if (result != LibUsb.SUCCESS){
+            throw new LibUsbException("Unable to open USB device", result);
+        }
+        try{
+            // Check if kernel driver is attached to the interface
+            int attached = LibUsb.kernelDriverActive(handle, YubikeyConnector._USB_RECIP_INTERFACE);
+            if (attached < 0 && attached!=LibUsb.ERROR_NOT_SUPPORTED){
+                throw new LibUsbException("Unable to check kernel driver active", attached);
+            }
+
+            // Detach kernel driver from the interface. This can fail if
+            // kernel is not attached to the device or operating system
+            // doesn't support this operation. These cases are ignored here.
+            result = LibUsb.detachKernelDriver(handle, YubikeyConnector._USB_RECIP_INTERFACE);
+            if (result != LibUsb.SUCCESS &&
+                result != LibUsb.ERROR_NOT_SUPPORTED &&
+                result != LibUsb.ERROR_NOT_FOUND)
+            {
+                throw new LibUsbException("Unable to detach kernel driver", result);
+            }
+
+            // Claim interface
+            result = LibUsb.claimInterface(handle, YubikeyConnector._USB_RECIP_INTERFACE);
+            if (result != LibUsb.SUCCESS){
+                throw new LibUsbException("Unable to claim interface", result);
+            }
+            return new LibUsbTransport(handle, true, attached == 1);
+        }
+        catch (LibUsbException ex){
+            LibUsb.close(handle);
+            throw ex;
+        }
+    }
+
+    /**
+     * Releases the interface, re-attaches the kernel driver and closes the
+     * handle if this transport owns it.
+     */
+    @Override
+    public void close(){
+        if (!owned)
+            return;
+        try{
+            int result = LibUsb.releaseInterface(handle, YubikeyConnector._USB_RECIP_INTERFACE);
+            if (result != LibUsb.SUCCESS){
+                throw new LibUsbException("Unable to release interface", result);
+            }
+            if (reattach){
+                result = LibUsb.attachKernelDriver(handle, YubikeyConnector._USB_RECIP_INTERFACE);
+                if (result != LibUsb.SUCCESS){
+                    throw new LibUsbException("Unable to re-attach kernel driver", result);
+                }
+            }
+        }
+        finally{
+            LibUsb.close(handle);
+        }
+    }
+
+    public DeviceHandle getHandle(){
+        return handle;
+    }
+
+    @Override
+    public void writeReport(byte[] report){
+        writeReport(report, YubikeyConnector._USB_TIMEOUT_MS);
+    }
+
+    @Override
+    public void writeReport(byte[] report, int timeoutMillis){
+        ByteBuffer buffer = this.buffer;
+        if (report.length != buffer.capacity())
+            buffer = ByteBuffer.allocateDirect(report.length);
+        buffer.clear();
+        buffer.put(report);
+        buffer.rewind();
+        int transfered = LibUsb.controlTransfer(handle,
+            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | YubikeyConnector._USB_ENDPOINT_OUT),
+            YubikeyConnector._HID_SET_REPORT,
+            (short)(YubikeyConnector._REPORT_TYPE_FEATURE << 8),
+            (short) 1, buffer, timeoutMillis);
+
+        if (transfered < 0)
+            throw new LibUsbException("Control transfer failed", transfered);
+        if (transfered != report.length)
+            throw new RuntimeException("Not all data was sent to device");
+    }
+
+    @Override
+    public void readReport(byte[] report){
+        readReport(report, YubikeyConnector._USB_TIMEOUT_MS);
+    }
+
+    @Override
+    public void readReport(byte[] report, int timeoutMillis){
+        buffer.clear();
+        int transfered = LibUsb.controlTransfer(handle,
+            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | YubikeyConnector._USB_ENDPOINT_IN),
+            YubikeyConnector._HID_GET_REPORT,
+            (short)(YubikeyConnector._REPORT_TYPE_FEATURE << 8),
+            (short) 1, buffer, timeoutMillis);
+
+        if (transfered < 0)
+            throw new LibUsbException("Control transfer failed", transfered);
+        if (transfered != YubikeyConnector._FEATURE_RPT_SIZE)
+            throw new RuntimeException("Not all data was received from device:"+transfered);
+
+        buffer.rewind();
+        buffer.get(report, 0, YubikeyConnector._FEATURE_RPT_SIZE);
+    }
+
+}
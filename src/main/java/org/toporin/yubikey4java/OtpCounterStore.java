@@ -0,0 +1,222 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Last accepted OTP counter of each public ID, for replay protection.
+ *
+ * Every public ID gets a fixed slot when first seen; the counter of a slot
+ * only moves forward, with a compare-and-set on the slot, so validations of
+ * different keys never contend and validations of the same key never
+ * block each other. The public ID to slot map is only written when a new
+ * key is enrolled.
+ *
+ * Slots live in a direct buffer, or in a memory-mapped file with open():
+ * each update then reaches the page cache immediately and survives a crash
+ * of the JVM, and force() flushes it to the disk. File layout, big-endian:
+ * a 32-byte header (MAGIC "YKOC", version, capacity) then 32-byte slots
+ * holding the public ID length plus one (0 for a free slot), the decoded
+ * public ID and, at offset 24, the last accepted counter plus one.
+ */
+public class OtpCounterStore implements Closeable {
+
+    static final int MAGIC = 0x594b4f43; // "YKOC"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SLOT_SIZE = 32;
+    private static final int COUNTER_OFFSET = 24;
+
+    private static final VarHandle LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final ByteBuffer slots;
+    private final FileChannel file;
+    private final int capacity;
+    private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Function<String, Integer> allocator = new Function<String, Integer>(){
+        @Override
+        public Integer apply(String publicId){
+            return allocate(publicId);
+        }
+    };
+
+    /** An in-memory store for up to capacity public IDs. */
+    public OtpCounterStore(int capacity){
+        this(ByteBuffer.allocateDirect(HEADER_SIZE+capacity*SLOT_SIZE), null, capacity);
+    }
+
+    private OtpCounterStore(ByteBuffer slots, FileChannel file, int capacity){
+        this.slots = slots;
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens or creates a persistent store. An existing file keeps its
+     * counters and is grown if it holds fewer than capacity slots.
+     */
+    public static OtpCounterStore open(Path path, int capacity) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            if (channel.size() >= HEADER_SIZE){
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION)
+                    throw new IOException("Not an OTP counter store: "+path);
+                capacity = Math.max(capacity, header.getInt(8));
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE+(long)capacity*SLOT_SIZE);
+            map.putInt(0, MAGIC);
+            map.putInt(4, FORMAT_VERSION);
+            map.putInt(8, capacity);
+            OtpCounterStore store = new OtpCounterStore(map, channel, capacity);
+            store.load();
+            return store;
+        }
+        catch (IOException | RuntimeException ex){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // rebuilds the index from the slots in use
+    private void load(){
+        int used = 0;
+        for (int slot=0; slot<capacity; slot++){
+            int base = HEADER_SIZE+slot*SLOT_SIZE;
+            int len = (slots.get(base) & 0xff)-1;
+            if (len < 0)
+                continue;
+            byte[] id = new byte[len];
+            for (int i=0; i<len; i++){
+                id[i] = slots.get(base+1+i);
+            }
+            index.put(YubikeyUtil.toModhexString(id), slot);
+            used = slot+1;
+        }
+        next.set(used);
+    }
+
+    /**
+     * The slot of a public ID, allocated on first use.
+     *
+     * @param publicId lower case modhex public ID
+     * @throws IllegalStateException if the store is full
+     */
+    public int slot(String publicId){
+        Integer slot = index.get(publicId);
+        if (slot == null)
+            slot = index.computeIfAbsent(publicId, allocator);
+        return slot;
+    }
+
+    private Integer allocate(String publicId){
+        int len = publicId.length()/2;
+        if (publicId.length() % 2 != 0 || len > YubicoOtp.MAX_PUBLIC_ID_SIZE)
+            throw new IllegalArgumentException("Invalid public ID:"+publicId);
+        byte[] id = new byte[len];
+        if (!YubikeyUtil.fromModhexString(publicId, 0, publicId.length(), id, 0))
+            throw new IllegalArgumentException("Invalid public ID:"+publicId);
+        int slot = next.getAndIncrement();
+        if (slot >= capacity){
+            next.decrementAndGet();
+            throw new IllegalStateException("OTP counter store full ("+capacity+" keys)");
+        }
+        int base = HEADER_SIZE+slot*SLOT_SIZE;
+        for (int i=0; i<len; i++){
+            slots.put(base+1+i, id[i]);
+        }
+        LONG.setVolatile(slots, base+COUNTER_OFFSET, 0L);
+        // the length is written last, a slot torn by a crash stays free
+        slots.put(base, (byte)(len+1));
+        return slot;
+    }
+
+    /**
+     * Records counter as the last accepted counter of the slot if it is
+     * greater than the current one.
+     *
+     * @return false if an equal or greater counter was already accepted (replay)
+     */
+    public boolean advance(int slot, long counter){
+        int off = HEADER_SIZE+slot*SLOT_SIZE+COUNTER_OFFSET;
+        long value = counter+1;
+        while (true){
+            long current = (long)LONG.getVolatile(slots, off);
+            if (value <= current)
+                return false;
+            if (LONG.compareAndSet(slots, off, current, value))
+                return true;
+        }
+    }
+
+    /** Last accepted counter of the public ID, -1 if none. */
+    public long getCounter(String publicId){
+        Integer slot = index.get(publicId);
+        if (slot == null)
+            return -1;
+        return (long)LONG.getVolatile(slots, HEADER_SIZE+slot*SLOT_SIZE+COUNTER_OFFSET)-1;
+    }
+
+    /** Number of public IDs with a slot. */
+    public int size(){
+        return index.size();
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /** Flushes a persistent store to the disk. */
+    public void force(){
+        if (slots instanceof MappedByteBuffer)
+            ((MappedByteBuffer)slots).force();
+    }
+
+    @Override
+    public void close() throws IOException{
+        if (file != null){
+            force();
+            file.close();
+        }
+    }
+
+}
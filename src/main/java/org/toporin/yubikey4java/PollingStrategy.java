@@ -0,0 +1,321 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when YubikeyConnector.waitfor polls the device status.
+ *
+ * waitfor asks for a delay before its first status read and after every
+ * read that did not match, and reports each completed wait so that a
+ * strategy can learn the device timing. The timeout itself stays with
+ * waitfor. Strategies also count polls per challenge-response transaction.
+ */
+public abstract class PollingStrategy {
+
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong transactionPolls = new AtomicLong();
+
+    /**
+     * Nanoseconds to wait before the next status read of the given wait.
+     * Called with poll.getPolls()==0 before the first read.
+     */
+    public abstract long nextDelayNanos(Poll poll);
+
+    /** Called when the wait finished successfully. */
+    public void completed(Poll poll){
+    }
+
+    void transactionCompleted(int polls){
+        transactions.incrementAndGet();
+        transactionPolls.addAndGet(polls);
+    }
+
+    /** Number of challenge-response transactions done with this strategy. */
+    public long getTransactionCount(){
+        return transactions.get();
+    }
+
+    /** Total status polls done by these transactions. */
+    public long getTransactionPollCount(){
+        return transactionPolls.get();
+    }
+
+    /** Average number of status polls per challenge-response transaction. */
+    public double getPollsPerTransaction(){
+        long n = transactions.get();
+        return (n == 0) ? 0 : (double)transactionPolls.get() / n;
+    }
+
+    /**
+     * State of one waitfor call, reused by the channel.
+     */
+    public static final class Poll {
+
+        YubikeyChannel channel;
+        byte mask;
+        int polls;
+        long startNanos;
+        long lastPollNanos;
+        boolean touchWait;
+
+        void start(YubikeyChannel channel, byte mask, long now){
+            this.channel = channel;
+            this.mask = mask;
+            this.polls = 0;
+            this.startNanos = now;
+            this.lastPollNanos = now;
+            this.touchWait = false;
+        }
+
+        public YubikeyChannel getChannel(){
+            return channel;
+        }
+
+        /** Status bits waited for, e.g. RESP_PENDING_FLAG. */
+        public byte getMask(){
+            return mask;
+        }
+
+        /** Status reads done so far in this wait. */
+        public int getPolls(){
+            return polls;
+        }
+
+        public long getElapsedNanos(){
+            return System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Time from the start of the wait to the start of the last status
+         * read, an upper bound of when the device became ready that does
+         * not include the read itself.
+         */
+        public long getLastPollNanos(){
+            return lastPollNanos - startNanos;
+        }
+
+        /** Whether the device reported RESP_TIMEOUT_WAIT_FLAG (waiting for touch). */
+        public boolean isTouchWait(){
+            return touchWait;
+        }
+
+        /** Whether this waits for a response to become available. */
+        public boolean isResponseWait(){
+            return mask == YubikeyConnector.RESP_PENDING_FLAG;
+        }
+
+    }
+
+    /**
+     * The python-yubico schedule: poll at once, then sleep 10 ms doubling up
+     * to 500 ms between polls.
+     */
+    public static class FixedBackoff extends PollingStrategy {
+
+        public static final long INITIAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        public static final long MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+        @Override
+        public long nextDelayNanos(Poll poll){
+            return delay(poll.polls);
+        }
+
+        static long delay(int polls){
+            if (polls == 0)
+                return 0;
+            long sleep = INITIAL_NANOS;
+            for (int i=1; i<polls && sleep<MAX_NANOS; i++){
+                sleep += sleep;
+            }
+            return Math.min(sleep, MAX_NANOS);
+        }
+
+        /**
+         * Total time slept by this schedule before giving up after wait_num
+         * polls, the timeout of waitfor.
+         */
+        static long budgetNanos(int wait_num){
+            long budget = 0;
+            for (int polls=1; polls<wait_num; polls++){
+                budget += delay(polls);
+            }
+            return budget;
+        }
+
+    }
+
+    /**
+     * Optionally waits before the first poll of a response, then polls back
+     * to back during a spin window, then parks with growing intervals.
+     */
+    public static class SpinThenPark extends PollingStrategy {
+
+        private final long firstPollNanos;
+        private final long spinNanos;
+        private final long minParkNanos;
+        private final long maxParkNanos;
+
+        /**
+         * @param firstPollNanos delay before the first status read of a response wait
+         * @param spinNanos window after the first poll during which polls are back to back
+         * @param minParkNanos first park interval after the spin window
+         * @param maxParkNanos cap of the park interval
+         */
+        public SpinThenPark(long firstPollNanos, long spinNanos, long minParkNanos, long maxParkNanos){
+            this.firstPollNanos = firstPollNanos;
+            this.spinNanos = spinNanos;
+            this.minParkNanos = minParkNanos;
+            this.maxParkNanos = maxParkNanos;
+        }
+
+        public SpinThenPark(){
+            this(0, TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MICROSECONDS.toNanos(500), FixedBackoff.MAX_NANOS);
+        }
+
+        @Override
+        public long nextDelayNanos(Poll poll){
+            long first = poll.isResponseWait() ? firstPollNanos : 0;
+            if (poll.polls == 0)
+                return first;
+            long parked = poll.getElapsedNanos() - first - spinNanos;
+            if (parked < 0)
+                return 0;
+            // each interval is half the time parked so far
+            return Math.min(maxParkNanos, Math.max(minParkNanos, parked/2));
+        }
+
+    }
+
+    /**
+     * Learns how long the device takes to make a response available, per
+     * firmware version, and polls around that time: the first poll lands a
+     * little before the expected completion, the next ones at short
+     * intervals, then it backs off like FixedBackoff when the device is
+     * much slower than usual. Waits involving a touch are not learnt.
+     * Other waits, and versions without enough samples, use the fallback.
+     *
+     * A single instance can be shared by all channels.
+     */
+    public static class Adaptive extends PollingStrategy {
+
+        static final int MIN_SAMPLES = 8;
+        static final long MIN_STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+
+        private final PollingStrategy fallback;
+        private volatile Timing[] timings = new Timing[0];
+
+        public Adaptive(PollingStrategy fallback){
+            this.fallback = fallback;
+        }
+
+        public Adaptive(){
+            this(new FixedBackoff());
+        }
+
+        @Override
+        public long nextDelayNanos(Poll poll){
+            Timing timing = poll.isResponseWait() ? timing(poll.channel.getVersion(), false) : null;
+            if (timing == null || timing.samples < MIN_SAMPLES)
+                return fallback.nextDelayNanos(poll);
+
+            long mean = timing.mean;
+            long dev = timing.deviation;
+            if (poll.polls == 0)
+                return Math.max(0, mean - dev);
+            long step = Math.max(MIN_STEP_NANOS, dev/2);
+            long late = poll.getElapsedNanos() - (mean + 4*dev);
+            if (late <= 0)
+                return step;
+            return Math.min(FixedBackoff.MAX_NANOS, Math.max(step, late));
+        }
+
+        @Override
+        public void completed(Poll poll){
+            if (!poll.isResponseWait() || poll.touchWait)
+                return;
+            timing(poll.channel.getVersion(), true).add(poll.getLastPollNanos());
+        }
+
+        /** Learnt mean completion time for a firmware version, or -1. */
+        public long getExpectedNanos(int version){
+            Timing timing = timing(version, false);
+            return (timing == null || timing.samples < MIN_SAMPLES) ? -1 : timing.mean;
+        }
+
+        private Timing timing(int version, boolean create){
+            Timing[] current = timings;
+            for (int i=0; i<current.length; i++){
+                if (current[i].version == version)
+                    return current[i];
+            }
+            if (!create)
+                return null;
+            synchronized (this){
+                current = timings;
+                for (int i=0; i<current.length; i++){
+                    if (current[i].version == version)
+                        return current[i];
+                }
+                Timing[] grown = new Timing[current.length+1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = new Timing(version);
+                timings = grown;
+                return grown[current.length];
+            }
+        }
+
+        /** Smoothed completion time and mean deviation, as in TCP RTT estimation. */
+        static final class Timing {
+
+            final int version;
+            volatile long mean;
+            volatile long deviation;
+            volatile int samples;
+
+            Timing(int version){
+                this.version = version;
+            }
+
+            synchronized void add(long nanos){
+                if (samples == 0){
+                    mean = nanos;
+                    deviation = nanos/2;
+                }
+                else{
+                    long err = nanos - mean;
+                    mean += err/8;
+                    deviation += (Math.abs(err) - deviation)/4;
+                }
+                if (samples < Integer.MAX_VALUE)
+                    samples++;
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only record of a provisioning batch, so that an interrupted batch
+ * can resume where it stopped.
+ *
+ * Each line is "&lt;millis&gt; &lt;serial&gt; &lt;slot&gt; &lt;STATE&gt; [message]" and is
+ * forced to the disk before the provisioning goes on, so a crash loses at
+ * most the step in progress. The last state of each key and slot is kept in
+ * memory; a key left STARTED by a crash is provisioned again. Secrets are
+ * never written to the journal.
+ */
+public class ProvisioningJournal implements Closeable {
+
+    public enum State {
+        STARTED,
+        DONE,
+        FAILED
+    }
+
+    private final FileChannel file;
+    private final Map<Long, State> states = new HashMap<Long, State>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ProvisioningJournal(FileChannel file){
+        this.file = file;
+    }
+
+    /** Opens a journal, reading the states recorded by previous runs. */
+    public static ProvisioningJournal open(Path path) throws IOException{
+        ProvisioningJournal journal = new ProvisioningJournal(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)){
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] fields = line.split(" ", 5);
+                if (fields.length < 4 || line.startsWith("#"))
+                    continue;
+                try{
+                    journal.states.put(key(Integer.parseInt(fields[1]), Integer.parseInt(fields[2])),
+                            State.valueOf(fields[3]));
+                }
+                catch (IllegalArgumentException ex){
+                    // torn last line of a crashed run
+                    YubikeyConnector.debug("Skipping journal line: "+line);
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex){
+            journal.close();
+            throw ex;
+        }
+        return journal;
+    }
+
+    /** Last state recorded for the slot of the key, or null if none. */
+    public State getState(int serial, int slot){
+        lock.lock();
+        try{
+            return states.get(key(serial, slot));
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public boolean isDone(int serial, int slot){
+        return getState(serial, slot) == State.DONE;
+    }
+
+    /**
+     * Appends a state to the journal and forces it to the disk.
+     *
+     * @param message optional detail, on a single line
+     */
+    public void record(int serial, int slot, State state, String message) throws IOException{
+        StringBuilder line = new StringBuilder(64).append(System.currentTimeMillis())
+                .append(' ').append(serial).append(' ').append(slot).append(' ').append(state);
+        if (message != null)
+            line.append(' ').append(message.replace('\n', ' ').replace('\r', ' '));
+        ByteBuffer buffer = ByteBuffer.wrap(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        lock.lock();
+        try{
+            while (buffer.hasRemaining()){
+                file.write(buffer);
+            }
+            file.force(false);
+            states.put(key(serial, slot), state);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Number of key slots recorded as DONE. */
+    public int getDoneCount(){
+        lock.lock();
+        try{
+            int done = 0;
+            for (State state: states.values()){
+                if (state == State.DONE)
+                    done++;
+            }
+            return done;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        file.close();
+    }
+
+    private static long key(int serial, int slot){
+        return ((long)serial << 2) | slot;
+    }
+
+}
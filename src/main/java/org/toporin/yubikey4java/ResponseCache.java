@@ -0,0 +1,305 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Opt-in cache of HMAC-SHA1 challenge-response results.
+ *
+ * The response is deterministic for a device secret, slot and padded
+ * challenge, so repeated challenges can be answered without a USB round
+ * trip (or a touch). Entries are keyed by device serial, slot, padding mode
+ * and challenge, evicted in LRU order beyond the capacity and expire a fixed
+ * time after insertion. Responses are stored in a direct buffer outside the
+ * Java heap and overwritten with zeros when their entry leaves the cache.
+ *
+ * Disable caching for a slot whose secret may be reprogrammed, or call
+ * invalidate after reprogramming it.
+ */
+public class ResponseCache {
+
+    private static final int VALUE_SIZE = YubikeyConnector.SHA1_DIGEST_SIZE;
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final ByteBuffer values;
+    private final int[] free;
+    private int freeCount;
+    private final LinkedHashMap<Key, Entry> map;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final boolean[] slotEnabled = {true, true};
+    // bumped by every invalidation, so that a miss in flight does not put back a dropped response
+    private volatile long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param capacity maximum number of cached responses
+     * @param ttl time to live of an entry after insertion
+     */
+    public ResponseCache(int capacity, long ttl, TimeUnit unit){
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.values = ByteBuffer.allocateDirect(capacity*VALUE_SIZE);
+        this.free = new int[capacity];
+        for (int i=0; i<capacity; i++){
+            free[i] = capacity-1-i;
+        }
+        this.freeCount = capacity;
+        this.map = new LinkedHashMap<Key, Entry>(capacity*4/3+1, 0.75f, true);
+    }
+
+    /**
+     * Challenge-response through the cache. The device is only asked on a
+     * miss, or always when caching is disabled for the slot.
+     */
+    public byte[] challenge_response(YubikeyClient client, byte[] challenge, byte mode, int slot,
+            boolean variable, boolean may_block){
+        // the client rejects an invalid slot
+        if ((slot != 1 && slot != 2) || !isSlotEnabled(slot))
+            return client.challenge_response(challenge, mode, slot, variable, may_block);
+
+        int serial = client.getSerial();
+        Key probe = new Key(serial, slot, variable, challenge);
+        long missGeneration = generation;
+        byte[] response = get(probe);
+        if (response != null)
+            return response;
+
+        response = client.challenge_response(challenge, mode, slot, variable, may_block);
+        put(new Key(serial, slot, variable, challenge.clone()), response, missGeneration);
+        return response;
+    }
+
+    public boolean isSlotEnabled(int slot){
+        return slotEnabled[index(slot)];
+    }
+
+    /**
+     * Enables or disables caching for a slot. Disabling drops the cached
+     * responses of that slot for every device.
+     */
+    public void setSlotEnabled(int slot, boolean enabled){
+        lock.lock();
+        try{
+            slotEnabled[index(slot)] = enabled;
+            if (!enabled)
+                removeIf(-1, slot);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Drops the cached responses of a device slot, e.g. after reprogramming it. */
+    public void invalidate(int serial, int slot){
+        lock.lock();
+        try{
+            removeIf(serial, slot);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public void clear(){
+        lock.lock();
+        try{
+            removeIf(-1, -1);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public int size(){
+        lock.lock();
+        try{
+            return map.size();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public long getHitCount(){
+        return hits.sum();
+    }
+
+    public long getMissCount(){
+        return misses.sum();
+    }
+
+    /** Entries dropped to make room for new ones. */
+    public long getEvictionCount(){
+        return evictions.sum();
+    }
+
+    /** Entries dropped because their time to live elapsed. */
+    public long getExpirationCount(){
+        return expirations.sum();
+    }
+
+    private byte[] get(Key key){
+        lock.lock();
+        try{
+            Entry entry = map.get(key);
+            if (entry != null && System.nanoTime() - entry.expiresAt >= 0){
+                map.remove(key);
+                release(entry);
+                expirations.increment();
+                entry = null;
+            }
+            if (entry == null){
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            byte[] response = new byte[VALUE_SIZE];
+            int off = entry.index*VALUE_SIZE;
+            for (int i=0; i<VALUE_SIZE; i++){
+                response[i] = values.get(off+i);
+            }
+            return response;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    // skipped if an invalidation happened since the miss
+    private void put(Key key, byte[] response, long missGeneration){
+        lock.lock();
+        try{
+            if (generation != missGeneration || !slotEnabled[key.slot-1] || map.containsKey(key))
+                return;
+            if (freeCount == 0){
+                Iterator<Entry> eldest = map.values().iterator();
+                release(eldest.next());
+                eldest.remove();
+                evictions.increment();
+            }
+            Entry entry = new Entry(free[--freeCount], System.nanoTime()+ttlNanos);
+            int off = entry.index*VALUE_SIZE;
+            for (int i=0; i<VALUE_SIZE; i++){
+                values.put(off+i, response[i]);
+            }
+            map.put(key, entry);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    // serial or slot -1 match any; called with the lock held
+    private void removeIf(int serial, int slot){
+        generation++;
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<Key, Entry> e = it.next();
+            Key key = e.getKey();
+            if ((serial == -1 || key.serial == serial) && (slot == -1 || key.slot == slot)){
+                release(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private static int index(int slot){
+        if (slot != 1 && slot != 2)
+            throw new IllegalArgumentException("Unsupported slot:"+slot);
+        return slot-1;
+    }
+
+    // zeroizes the response and returns its storage to the free list
+    private void release(Entry entry){
+        int off = entry.index*VALUE_SIZE;
+        for (int i=0; i<VALUE_SIZE; i++){
+            values.put(off+i, (byte)0);
+        }
+        free[freeCount++] = entry.index;
+    }
+
+    private static final class Entry {
+
+        final int index;
+        final long expiresAt;
+
+        Entry(int index, long expiresAt){
+            this.index = index;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private static final class Key {
+
+        final int serial;
+        final int slot;
+        final boolean variable;
+        final byte[] challenge;
+        final int hash;
+
+        Key(int serial, int slot, boolean variable, byte[] challenge){
+            this.serial = serial;
+            this.slot = slot;
+            this.variable = variable;
+            this.challenge = challenge;
+            this.hash = ((serial*31 + slot)*31 + (variable ? 1 : 0))*31 + Arrays.hashCode(challenge);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return serial == other.serial && slot == other.slot && variable == other.variable
+                    && Arrays.equals(challenge, other.challenge);
+        }
+
+    }
+
+}
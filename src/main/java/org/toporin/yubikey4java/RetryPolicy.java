@@ -0,0 +1,112 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import java.util.concurrent.TimeUnit;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * How YubikeyConnector.challenge_response recovers from a failed
+ * transaction before giving up.
+ *
+ * A response failing its CRC check was usually damaged on the wire: the
+ * device keeps repeating it from sequence 0 until it is reset, so it is
+ * first read again (a handful of reports, no new HMAC computation). If the
+ * re-reads fail too, or a transient LibUsbException aborted the
+ * transaction, the challenge is re-issued after a short backoff, starting
+ * with a reset of the device. Retries of a call with a deadline only start
+ * while time is left, and their transfers and waits are capped by the
+ * same deadline.
+ *
+ * The policy of a channel is set with YubikeyChannel.setRetryPolicy; the
+ * default, NONE, fails at once as python-yubico does.
+ */
+public final class RetryPolicy {
+
+    /** No retry: a CRC failure throws a YubikeyException, a transfer error its LibUsbException. */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0, TimeUnit.NANOSECONDS);
+
+    /** One re-read of a corrupted response, then up to two re-issues 1 ms apart. */
+    public static final RetryPolicy FAST = new RetryPolicy(1, 2, 1, TimeUnit.MILLISECONDS);
+
+    private final int rereads;
+    private final int reissues;
+    private final long backoffNanos;
+
+    /**
+     * @param rereads
+     *            Reads of a response again after a CRC failure.
+     * @param reissues
+     *            Challenges sent again after a CRC failure that re-reads did
+     *            not fix, or after a transient LibUsbException.
+     * @param backoff
+     *            Pause before each re-issue.
+     */
+    public RetryPolicy(int rereads, int reissues, long backoff, TimeUnit unit){
+        if (rereads < 0 || reissues < 0 || backoff < 0)
+            throw new IllegalArgumentException("Invalid retry policy:"+rereads+"/"+reissues+"/"+backoff);
+        this.rereads = rereads;
+        this.reissues = reissues;
+        this.backoffNanos = unit.toNanos(backoff);
+    }
+
+    public int getRereads(){
+        return rereads;
+    }
+
+    public int getReissues(){
+        return reissues;
+    }
+
+    public long getBackoffNanos(){
+        return backoffNanos;
+    }
+
+    /**
+     * Whether a transfer error may go away by itself: anything but the device
+     * being gone or inaccessible, or a request the device does not support.
+     */
+    public static boolean isTransient(LibUsbException ex){
+        switch (ex.getErrorCode()){
+            case LibUsb.ERROR_NO_DEVICE:
+            case LibUsb.ERROR_NOT_FOUND:
+            case LibUsb.ERROR_ACCESS:
+            case LibUsb.ERROR_NOT_SUPPORTED:
+            case LibUsb.ERROR_INVALID_PARAM:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "RetryPolicy[rereads="+rereads+" reissues="+reissues
+                +" backoff="+TimeUnit.NANOSECONDS.toMicros(backoffNanos)+"us]";
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A decrypted Yubico OTP token.
+ *
+ * An OTP is the modhex public ID of the key (0 to 16 bytes, usually 6)
+ * followed by 32 modhex characters: a 16-byte token encrypted with the
+ * AES-128 key of the slot. The token holds, little-endian:
+ * the 6-byte private ID, the 16-bit usage counter (incremented at each
+ * power-up), the 24-bit timestamp (8 Hz since power-up), the 8-bit session
+ * counter (incremented at each OTP of a power-up), 16 random bits and a CRC
+ * such that the CRC16 of the 16 bytes is YubikeyUtil._CRC_OK_RESIDUAL.
+ */
+public final class YubicoOtp {
+
+    public static final int TOKEN_SIZE = 16;
+    public static final int TOKEN_CHARS = 2*TOKEN_SIZE;
+    public static final int PRIVATE_ID_SIZE = 6;
+    public static final int MAX_PUBLIC_ID_SIZE = 16;
+    public static final int AES_KEY_SIZE = 16;
+    // 15-bit usage counter, the 0x8000 bit being a flag
+    static final int USAGE_COUNTER_MASK = 0x7fff;
+
+    private final String publicId;
+    private final byte[] privateId;
+    private final int usageCounter;
+    private final int timestamp;
+    private final int sessionCounter;
+    private final int random;
+
+    YubicoOtp(String publicId, byte[] token){
+        this.publicId = publicId;
+        this.privateId = new byte[PRIVATE_ID_SIZE];
+        System.arraycopy(token, 0, privateId, 0, PRIVATE_ID_SIZE);
+        this.usageCounter = usage_counter(token);
+        this.timestamp = (token[8] & 0xff) | ((token[9] & 0xff) << 8) | ((token[10] & 0xff) << 16);
+        this.sessionCounter = token[11] & 0xff;
+        this.random = (token[12] & 0xff) | ((token[13] & 0xff) << 8);
+    }
+
+    /**
+     * Builds the OTP a key would emit, for tests and emulation.
+     *
+     * @param publicId modhex public ID
+     */
+    public static String generate(String publicId, byte[] aesKey, byte[] privateId,
+            int usageCounter, int timestamp, int sessionCounter, int random){
+        if (privateId.length != PRIVATE_ID_SIZE)
+            throw new IllegalArgumentException("Invalid private ID length:"+privateId.length);
+        byte[] token = new byte[TOKEN_SIZE];
+        System.arraycopy(privateId, 0, token, 0, PRIVATE_ID_SIZE);
+        token[6] = (byte)usageCounter;
+        token[7] = (byte)(usageCounter >>> 8);
+        token[8] = (byte)timestamp;
+        token[9] = (byte)(timestamp >>> 8);
+        token[10] = (byte)(timestamp >>> 16);
+        token[11] = (byte)sessionCounter;
+        token[12] = (byte)random;
+        token[13] = (byte)(random >>> 8);
+        short crc = (short)~YubikeyUtil.crc16(token, 0, 14);
+        token[14] = (byte)crc;
+        token[15] = (byte)(crc >>> 8);
+        try{
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+            return publicId+YubikeyUtil.toModhexString(cipher.doFinal(token));
+        }
+        catch (GeneralSecurityException ex){
+            throw new IllegalStateException("AES unavailable", ex);
+        }
+    }
+
+    // usage and session counters as one value increasing with every OTP;
+    // the top bit of the usage field is a flag, masked out as libyubikey does
+    static int usage_counter(byte[] token){
+        return ((token[6] & 0xff) | ((token[7] & 0xff) << 8)) & USAGE_COUNTER_MASK;
+    }
+    static int counter(byte[] token){
+        return (usage_counter(token) << 8) | (token[11] & 0xff);
+    }
+
+    public String getPublicId(){
+        return publicId;
+    }
+
+    public byte[] getPrivateId(){
+        return privateId.clone();
+    }
+
+    public int getUsageCounter(){
+        return usageCounter;
+    }
+
+    public int getTimestamp(){
+        return timestamp;
+    }
+
+    public int getSessionCounter(){
+        return sessionCounter;
+    }
+
+    public int getRandom(){
+        return random;
+    }
+
+    @Override
+    public String toString(){
+        return "YubicoOtp[publicId="+publicId+", usage="+usageCounter+", session="+sessionCounter
+                +", timestamp="+timestamp+"]";
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Validates Yubico OTPs of enrolled keys.
+ *
+ * An OTP is accepted when its public ID is enrolled, its token decrypts
+ * with the AES key of the public ID to a token with a valid CRC and the
+ * expected private ID, and its usage and session counters are above the
+ * last accepted ones. Counters are kept in an OtpCounterStore, shared by
+ * all the validating threads without a global lock.
+ *
+ * Initializing an AES Cipher (key expansion and provider checks) costs
+ * about a hundred times the decryption of a token, so each key keeps a few
+ * initialized Ciphers that threads borrow and give back without locking;
+ * a thread finding none initializes a new one.
+ */
+public class YubicoOtpValidator {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // initialized ciphers kept per key
+    private static final int CIPHER_CACHE = 4;
+
+    /** Outcome of a validation. */
+    public enum Status {
+        OK,
+        /** Not a modhex OTP of a valid length. */
+        BAD_FORMAT,
+        /** The public ID is not enrolled. */
+        UNKNOWN_KEY,
+        /** The token does not decrypt to a valid CRC: wrong key or altered OTP. */
+        BAD_CRC,
+        /** The private ID does not match the enrolled one. */
+        BAD_PRIVATE_ID,
+        /** The counters are not above those of an OTP already accepted. */
+        REPLAYED
+    }
+
+    private static final ThreadLocal<Work> WORK = new ThreadLocal<Work>(){
+        @Override
+        protected Work initialValue(){
+            return new Work();
+        }
+    };
+
+    private final Map<String, Enrollment> enrollments = new ConcurrentHashMap<String, Enrollment>();
+    private final OtpCounterStore counters;
+
+    /** A validator keeping counters in memory for up to DEFAULT_CAPACITY keys. */
+    public YubicoOtpValidator(){
+        this(new OtpCounterStore(DEFAULT_CAPACITY));
+    }
+
+    /** A validator keeping counters in the store, possibly persistent and shared. */
+    public YubicoOtpValidator(OtpCounterStore counters){
+        this.counters = counters;
+    }
+
+    public OtpCounterStore getCounterStore(){
+        return counters;
+    }
+
+    /**
+     * Enrolls (or replaces) a key. The last accepted counter of the public
+     * ID is kept, so replays remain rejected after a re-enrollment.
+     *
+     * @param publicId modhex public ID
+     * @param aesKey the 16-byte AES key of the slot
+     * @param privateId the 6-byte private ID of the slot
+     */
+    public void enroll(String publicId, byte[] aesKey, byte[] privateId){
+        if (aesKey.length != YubicoOtp.AES_KEY_SIZE)
+            throw new IllegalArgumentException("Invalid AES key length:"+aesKey.length);
+        if (privateId.length != YubicoOtp.PRIVATE_ID_SIZE)
+            throw new IllegalArgumentException("Invalid private ID length:"+privateId.length);
+        publicId = publicId.toLowerCase(Locale.ROOT);
+        int slot = counters.slot(publicId);
+        enrollments.put(publicId, new Enrollment(new SecretKeySpec(aesKey, "AES"), privateId.clone(), slot));
+    }
+
+    public void revoke(String publicId){
+        enrollments.remove(publicId.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean isEnrolled(String publicId){
+        return enrollments.containsKey(publicId.toLowerCase(Locale.ROOT));
+    }
+
+    public int size(){
+        return enrollments.size();
+    }
+
+    /**
+     * Validates an OTP and, if valid, records its counters so that it is
+     * never accepted again.
+     */
+    public Status validate(CharSequence otp){
+        Work work = WORK.get();
+        Enrollment enrollment = enrollment(otp, work);
+        if (enrollment == null)
+            return work.status;
+        if (!counters.advance(enrollment.slot, YubicoOtp.counter(work.token)))
+            return Status.REPLAYED;
+        return Status.OK;
+    }
+
+    /**
+     * Decrypts and checks an OTP without recording its counters.
+     *
+     * @return the token, or null if the OTP is not valid for its key
+     */
+    public YubicoOtp decode(CharSequence otp){
+        Work work = WORK.get();
+        Enrollment enrollment = enrollment(otp, work);
+        if (enrollment == null)
+            return null;
+        return new YubicoOtp(otp.subSequence(0, otp.length()-YubicoOtp.TOKEN_CHARS).toString()
+                .toLowerCase(Locale.ROOT), work.token);
+    }
+
+    // decrypts the token of the OTP into work.token, or sets work.status and returns null
+    private Enrollment enrollment(CharSequence otp, Work work){
+        int idChars = otp.length()-YubicoOtp.TOKEN_CHARS;
+        if (idChars < 0 || idChars > 2*YubicoOtp.MAX_PUBLIC_ID_SIZE || idChars % 2 != 0
+                || HexCodec.MODHEX.decode(otp, idChars, YubicoOtp.TOKEN_CHARS, work.cipherText, 0) < 0){
+            work.status = Status.BAD_FORMAT;
+            return null;
+        }
+        Enrollment enrollment = enrollments.get(otp.subSequence(0, idChars).toString().toLowerCase(Locale.ROOT));
+        if (enrollment == null){
+            work.status = Status.UNKNOWN_KEY;
+            return null;
+        }
+        Cipher cipher = enrollment.borrow();
+        try{
+            cipher.doFinal(work.cipherText, 0, YubicoOtp.TOKEN_SIZE, work.token, 0);
+        }
+        catch (GeneralSecurityException ex){
+            throw new IllegalStateException("AES decryption failed", ex);
+        }
+        enrollment.giveBack(cipher);
+        if (!YubikeyUtil.validate_crc16(work.token, 0, YubicoOtp.TOKEN_SIZE)){
+            work.status = Status.BAD_CRC;
+            return null;
+        }
+        if (!Arrays.equals(work.token, 0, YubicoOtp.PRIVATE_ID_SIZE, enrollment.privateId, 0, YubicoOtp.PRIVATE_ID_SIZE)){
+            work.status = Status.BAD_PRIVATE_ID;
+            return null;
+        }
+        return enrollment;
+    }
+
+    private static final class Enrollment {
+        final SecretKeySpec key;
+        final byte[] privateId;
+        final int slot;
+        final AtomicReferenceArray<Cipher> ciphers = new AtomicReferenceArray<Cipher>(CIPHER_CACHE);
+
+        Enrollment(SecretKeySpec key, byte[] privateId, int slot){
+            this.key = key;
+            this.privateId = privateId;
+            this.slot = slot;
+        }
+
+        Cipher borrow(){
+            for (int i=0; i<CIPHER_CACHE; i++){
+                if (ciphers.get(i) != null){
+                    Cipher cipher = ciphers.getAndSet(i, null);
+                    if (cipher != null)
+                        return cipher;
+                }
+            }
+            try{
+                Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                return cipher;
+            }
+            catch (GeneralSecurityException ex){
+                throw new IllegalStateException("AES unavailable", ex);
+            }
+        }
+
+        // drops the cipher if the cache is full
+        void giveBack(Cipher cipher){
+            for (int i=0; i<CIPHER_CACHE; i++){
+                if (ciphers.get(i) == null && ciphers.compareAndSet(i, null, cipher))
+                    return;
+            }
+        }
+    }
+
+    private static final class Work {
+        final byte[] cipherText = new byte[YubicoOtp.TOKEN_SIZE];
+        final byte[] token = new byte[YubicoOtp.TOKEN_SIZE];
+        Status status;
+    }
+
+}
@@ -0,0 +1,541 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+
+/**
+ * Lets the processes of a host share one Yubikey without fighting over
+ * its interface.
+ *
+ * The processes open the same broker file, ideally on a tmpfs such as
+ * /dev/shm. One of them, the owner, holds an exclusive lock on the file,
+ * keeps the device claimed and serves the requests of all of them; the
+ * others stand by, blocked on the lock. When the owner exits or dies the
+ * operating system releases its lock and a standby process takes over,
+ * opening the device and re-running the requests the dead owner had
+ * started. A broker opened without Opener never owns the device.
+ *
+ * Requests go through a table of request slots in the memory-mapped file.
+ * A caller claims a free slot with a compare-and-set, writes its challenge
+ * and publishes it; the owner picks up every published request on each
+ * scan and hands the batch to a YubikeyScheduler, which coalesces
+ * identical challenges, then publishes each response in its slot. Both
+ * sides spin briefly before parking, so the IPC costs microseconds on top
+ * of the USB transaction; an owner idle for a while parks up to 2 ms at a
+ * time, which the first request after a lull pays. The owner frees the
+ * slots of processes that died.
+ *
+ * File layout, big-endian: a 64-byte header (MAGIC "YKBR", version, slot
+ * count, then the pid and takeover count of the owner) followed by
+ * 128-byte slots: state, key slot, flags, challenge length, status, pid
+ * of the caller (0 while the slot is free), challenge at offset 16 and
+ * response at offset 80.
+ *
+ * FileLock is held per JVM: open a broker file once per process.
+ */
+public class YubikeyBroker implements Closeable {
+
+    public static final int DEFAULT_SLOTS = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    static final int MAGIC = 0x594b4252; // "YKBR"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 128;
+    private static final int OWNER_PID = 16;
+    private static final int OWNER_EPOCH = 24;
+
+    // slot layout
+    private static final int STATE = 0;
+    private static final int KEY_SLOT = 4;
+    private static final int FLAGS = 5;
+    private static final int LENGTH = 6;
+    private static final int STATUS = 7;
+    private static final int PID = 8;
+    private static final int CHALLENGE = 16;
+    private static final int RESPONSE = 80;
+
+    // slot states
+    static final int FREE = 0;
+    static final int CLAIMED = 1;
+    static final int REQUEST = 2;
+    static final int RUNNING = 3;
+    static final int DONE = 4;
+    static final int ABANDONED = 5;
+
+    // busy-wait before parking (yielding on a single CPU, where spinning
+    // would hold off the thread being waited for), and park time once idle
+    private static final boolean SPIN = Runtime.getRuntime().availableProcessors() > 1;
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // an idle owner parks a sixteenth of its idle time, within these bounds
+    private static final long IDLE_PARK_DIVISOR = 16;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    // between two sweeps for slots of dead processes
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // before a standby tries again to open a device that failed to open
+    private static final long REOPEN_MILLIS = 1000;
+
+    private static final VarHandle INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final FileChannel file;
+    private final MappedByteBuffer map;
+    private final int slots;
+    private final long pid = ProcessHandle.current().pid();
+    private final YubikeySession.Opener opener;
+    private final Thread standby;
+    // owner only: slots claimed without a pid at the last sweep
+    private final boolean[] unnamed;
+    private volatile boolean owner;
+    private volatile boolean closed;
+
+    private YubikeyBroker(FileChannel file, MappedByteBuffer map, int slots, YubikeySession.Opener opener){
+        this.file = file;
+        this.map = map;
+        this.slots = slots;
+        this.opener = opener;
+        this.unnamed = new boolean[slots];
+        if (opener != null){
+            standby = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    stand_by();
+                }
+            }, "yubikey-broker-"+threadCount.incrementAndGet());
+            standby.setDaemon(true);
+            standby.start();
+        }
+        else{
+            standby = null;
+        }
+    }
+
+    /**
+     * Opens or creates the broker file and joins the processes sharing it.
+     *
+     * @param opener
+     *            Opens the device should this process become the owner, or
+     *            null to only submit requests.
+     */
+    public static YubikeyBroker open(Path path, YubikeySession.Opener opener) throws IOException{
+        return open(path, DEFAULT_SLOTS, opener);
+    }
+
+    /**
+     * @param slots
+     *            Requests in progress at a time across the processes, used
+     *            when the file is created.
+     */
+    public static YubikeyBroker open(Path path, int slots, YubikeySession.Opener opener) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            // byte 1 guards the creation, byte 0 is the ownership lock
+            FileLock init = channel.lock(1, 1, false);
+            try{
+                if (channel.size() >= HEADER_SIZE){
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    channel.read(header, 0);
+                    if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION)
+                        throw new IOException("Not a yubikey broker file: "+path);
+                    slots = header.getInt(8);
+                }
+                else if (slots <= 0){
+                    throw new IllegalArgumentException("Invalid slot count:"+slots);
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE+(long)slots*SLOT_SIZE);
+                map.putInt(0, MAGIC);
+                map.putInt(4, FORMAT_VERSION);
+                map.putInt(8, slots);
+                return new YubikeyBroker(channel, map, slots, opener);
+            }
+            finally{
+                init.release();
+            }
+        }
+        catch (IOException | RuntimeException ex){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /** Whether this process currently owns the device. */
+    public boolean isOwner(){
+        return owner;
+    }
+
+    /** Process id of the current or last owner, 0 if none yet. */
+    public long getOwnerPid(){
+        return map.getLong(OWNER_PID);
+    }
+
+    /** Number of times the device changed owner. */
+    public long getTakeoverCount(){
+        return map.getLong(OWNER_EPOCH);
+    }
+
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        byte[] response = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        challenge_response(challenge, mode, slot, variable, may_block, response, 0,
+                DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return response;
+    }
+
+    /**
+     * Challenge-response run by the owner process, waiting at most the
+     * timeout for a free request slot, an owner and the response.
+     *
+     * @return The number of bytes written to out.
+     * @throws YubikeyTimeoutException if the timeout elapsed
+     */
+    public int challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            byte[] out, int outOff, long timeout, TimeUnit unit){
+        if (mode != YubikeyConnector.MODE_HMAC)
+            throw new YubikeyException("Unsupported challenge mode:"+mode);
+        if (slot != 1 && slot != 2)
+            throw new YubikeyException("Unsupported challenge slot:"+slot);
+        if (challenge.length > YubikeyConnector.SHA1_MAX_BLOCK_SIZE)
+            throw new YubikeyException("Unsupported challenge size");
+        long deadline = System.nanoTime()+unit.toNanos(timeout);
+        int base;
+        do{
+            base = claim(deadline);
+            map.put(base+KEY_SLOT, (byte)slot);
+            map.put(base+FLAGS, (byte)((variable ? YubikeyGateway.FLAG_VARIABLE : 0) | (may_block ? YubikeyGateway.FLAG_MAY_BLOCK : 0)));
+            map.put(base+LENGTH, (byte)challenge.length);
+            for (int i=0; i<challenge.length; i++){
+                map.put(base+CHALLENGE+i, challenge[i]);
+            }
+            // fails only if the owner swept the slot as stale meanwhile
+        } while (!INT.compareAndSet(map, base+STATE, CLAIMED, REQUEST));
+
+        if (!await(base, deadline) && withdraw(base))
+            throw new YubikeyTimeoutException("Timed out waiting for the yubikey broker");
+        byte status = map.get(base+STATUS);
+        if (status == YubikeyGateway.OK){
+            for (int i=0; i<YubikeyConnector.SHA1_DIGEST_SIZE; i++){
+                out[outOff+i] = map.get(base+RESPONSE+i);
+            }
+        }
+        free(base);
+        if (status == YubikeyGateway.TIMEOUT)
+            throw new YubikeyTimeoutException("Timed out waiting for YubiKey");
+        if (status != YubikeyGateway.OK)
+            throw new YubikeyException("Challenge-response failed in the broker owner");
+        return YubikeyConnector.SHA1_DIGEST_SIZE;
+    }
+
+    /**
+     * Leaves the broker: a standby process takes over if this one owned the
+     * device. Requests in progress here fail or time out.
+     */
+    @Override
+    public void close() throws IOException{
+        if (closed)
+            return;
+        closed = true;
+        if (standby != null){
+            standby.interrupt();
+            try{
+                standby.join();
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        file.close();
+    }
+
+    // claims a free slot, starting anywhere to spread the callers
+    private int claim(long deadline){
+        int start = ThreadLocalRandom.current().nextInt(slots);
+        long spinUntil = System.nanoTime()+SPIN_NANOS;
+        while (true){
+            for (int i=0; i<slots; i++){
+                int base = HEADER_SIZE+((start+i) % slots)*SLOT_SIZE;
+                if ((int)INT.getAcquire(map, base+STATE) == FREE
+                        && INT.compareAndSet(map, base+STATE, FREE, CLAIMED)){
+                    map.putLong(base+PID, pid);
+                    return base;
+                }
+            }
+            long now = System.nanoTime();
+            if (now-deadline >= 0)
+                throw new YubikeyTimeoutException("No free request slot in the yubikey broker");
+            pause(now, spinUntil);
+        }
+    }
+
+    // waits for the response in the slot
+    private boolean await(int base, long deadline){
+        long spinUntil = System.nanoTime()+SPIN_NANOS;
+        while ((int)INT.getAcquire(map, base+STATE) != DONE){
+            if (closed && withdraw(base))
+                throw new YubikeyException("Yubikey broker is closed");
+            long now = System.nanoTime();
+            if (now-deadline >= 0)
+                return false;
+            pause(now, spinUntil);
+        }
+        return true;
+    }
+
+    /**
+     * Takes back a request, or tells the owner to drop its response.
+     *
+     * @return false if the response arrived meanwhile
+     */
+    private boolean withdraw(int base){
+        // the pid goes first: a free slot must not carry a pid
+        map.putLong(base+PID, 0);
+        if (INT.compareAndSet(map, base+STATE, REQUEST, FREE) || INT.compareAndSet(map, base+STATE, RUNNING, ABANDONED))
+            return true;
+        map.putLong(base+PID, pid);
+        return false;
+    }
+
+    // hands back a slot held by this process in its current state
+    private void free(int base){
+        map.putLong(base+PID, 0);
+        INT.setRelease(map, base+STATE, FREE);
+    }
+
+    private static void pause(long now, long spinUntil){
+        if (now-spinUntil >= 0)
+            LockSupport.parkNanos(PARK_NANOS);
+        else if (SPIN)
+            Thread.onSpinWait();
+        else
+            Thread.yield();
+    }
+
+    // owner: as pause, but parks longer the longer it has been idle
+    private static void idle(long now, long spinUntil){
+        long idle = now-spinUntil;
+        if (idle < 0)
+            pause(now, spinUntil);
+        else
+            LockSupport.parkNanos(Math.min(Math.max(idle/IDLE_PARK_DIVISOR, PARK_NANOS), MAX_PARK_NANOS));
+    }
+
+    // standby thread: waits for the ownership lock, then serves until closed
+    private void stand_by(){
+        while (!closed){
+            FileLock lock;
+            try{
+                lock = file.lock(0, 1, false);
+            }
+            catch (ClosedChannelException ex){
+                return;
+            }
+            catch (IOException ex){
+                YubikeyConnector.debug("Unable to lock broker file: "+ex.getMessage());
+                sleep(REOPEN_MILLIS);
+                continue;
+            }
+            try{
+                YubikeyTransport transport;
+                try{
+                    transport = opener.open();
+                }
+                catch (RuntimeException ex){
+                    YubikeyConnector.debug("Broker unable to open yubikey: "+ex.getMessage());
+                    lock.release();
+                    sleep(REOPEN_MILLIS);
+                    continue;
+                }
+                serve(transport);
+                lock.release();
+            }
+            catch (IOException ex){
+                YubikeyConnector.debug("Error releasing broker lock: "+ex.getMessage());
+            }
+        }
+    }
+
+    private void serve(YubikeyTransport transport){
+        YubikeyScheduler scheduler = new YubikeyScheduler(transport);
+        map.putLong(OWNER_PID, pid);
+        map.putLong(OWNER_EPOCH, map.getLong(OWNER_EPOCH)+1);
+        // requests a dead owner had started run again, the ones it had
+        // left to complete after their caller gave up are freed
+        for (int i=0; i<slots; i++){
+            int base = HEADER_SIZE+i*SLOT_SIZE;
+            INT.compareAndSet(map, base+STATE, RUNNING, REQUEST);
+            if ((int)INT.getAcquire(map, base+STATE) == ABANDONED)
+                free(base);
+            unnamed[i] = false;
+        }
+        owner = true;
+        YubikeyConnector.debug("Process "+pid+" owns the yubikey broker");
+        try{
+            long idleSince = System.nanoTime();
+            long sweepAt = idleSince+SWEEP_NANOS;
+            while (!closed){
+                long now = System.nanoTime();
+                if (scan(scheduler) > 0)
+                    idleSince = now;
+                if (now-sweepAt >= 0){
+                    sweep();
+                    sweepAt = now+SWEEP_NANOS;
+                }
+                idle(now, idleSince+SPIN_NANOS);
+            }
+        }
+        finally{
+            owner = false;
+            scheduler.close();
+            if (transport instanceof Closeable){
+                try{
+                    ((Closeable)transport).close();
+                }
+                catch (IOException | RuntimeException ex){
+                    YubikeyConnector.debug("Error closing yubikey: "+ex.getMessage());
+                }
+            }
+        }
+    }
+
+    // submits the published requests, returns how many
+    private int scan(YubikeyScheduler scheduler){
+        int found = 0;
+        for (int i=0; i<slots; i++){
+            int base = HEADER_SIZE+i*SLOT_SIZE;
+            if ((int)INT.getAcquire(map, base+STATE) != REQUEST
+                    || !INT.compareAndSet(map, base+STATE, REQUEST, RUNNING))
+                continue;
+            found++;
+            byte[] challenge = new byte[map.get(base+LENGTH) & 0xff];
+            for (int j=0; j<challenge.length; j++){
+                challenge[j] = map.get(base+CHALLENGE+j);
+            }
+            byte flags = map.get(base+FLAGS);
+            CompletableFuture<byte[]> future;
+            try{
+                future = scheduler.submit(challenge, YubikeyConnector.MODE_HMAC, map.get(base+KEY_SLOT),
+                        (flags & YubikeyGateway.FLAG_VARIABLE) != 0, (flags & YubikeyGateway.FLAG_MAY_BLOCK) != 0,
+                        Priority.INTERACTIVE);
+            }
+            catch (YubikeyException ex){
+                future = new CompletableFuture<byte[]>();
+                future.completeExceptionally(ex);
+            }
+            future.whenComplete(new Completion(base));
+        }
+        return found;
+    }
+
+    /**
+     * Frees the slots of processes that died. Only the caller moves a slot
+     * out of CLAIMED, REQUEST (but for scan, on this thread) or DONE, so
+     * with the caller dead the slot is safe to free. A slot claimed but
+     * without a pid yet has a caller that is writing it now, or that died
+     * in between: it is freed only when found so on two sweeps in a row.
+     */
+    private void sweep(){
+        for (int i=0; i<slots; i++){
+            int base = HEADER_SIZE+i*SLOT_SIZE;
+            int state = (int)INT.getAcquire(map, base+STATE);
+            boolean wasUnnamed = unnamed[i];
+            unnamed[i] = false;
+            if (state != CLAIMED && state != REQUEST && state != DONE)
+                continue;
+            long caller = map.getLong(base+PID);
+            if (caller == 0){
+                if (state != CLAIMED)
+                    continue;
+                if (!wasUnnamed){
+                    unnamed[i] = true;
+                    continue;
+                }
+            }
+            else if (caller == pid || ProcessHandle.of(caller).isPresent()){
+                continue;
+            }
+            map.putLong(base+PID, 0);
+            INT.compareAndSet(map, base+STATE, state, FREE);
+        }
+    }
+
+    private static void sleep(long millis){
+        try{
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Publishes the result of a request in its slot. */
+    private final class Completion implements BiConsumer<byte[], Throwable> {
+        final int base;
+
+        Completion(int base){
+            this.base = base;
+        }
+
+        @Override
+        public void accept(byte[] response, Throwable failure){
+            if (failure == null){
+                for (int i=0; i<YubikeyConnector.SHA1_DIGEST_SIZE; i++){
+                    map.put(base+RESPONSE+i, response[i]);
+                }
+                map.put(base+STATUS, YubikeyGateway.OK);
+            }
+            else{
+                map.put(base+STATUS, (failure instanceof YubikeyTimeoutException) ? YubikeyGateway.TIMEOUT : YubikeyGateway.FAILED);
+            }
+            if (!INT.compareAndSet(map, base+STATE, RUNNING, DONE)
+                    && (int)INT.getAcquire(map, base+STATE) == ABANDONED)
+                free(base);
+        }
+    }
+
+}
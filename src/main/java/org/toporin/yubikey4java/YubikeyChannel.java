@@ -0,0 +1,186 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Protocol state of one device session: the transport plus the buffers
+ * reused by every transaction, so that a steady-state challenge-response
+ * does not allocate.
+ *
+ * A channel is not thread-safe: reports of concurrent transactions would
+ * interleave on the device anyway. Arrays returned by YubikeyConnector.read
+ * and read_response belong to the channel and are overwritten by the next
+ * call.
+ */
+public class YubikeyChannel {
+
+    // room for seven 7-byte reports
+    static final int RESPONSE_BUFFER_SIZE = 48;
+
+    final YubikeyTransport transport;
+    final Frame frame = new Frame();
+    final byte[] report = new byte[YubikeyConnector._FEATURE_RPT_SIZE];
+    final byte[] status = new byte[YubikeyConnector._FEATURE_RPT_SIZE];
+    final byte[] response = new byte[RESPONSE_BUFFER_SIZE];
+    final PollingStrategy.Poll poll = new PollingStrategy.Poll();
+    final YubikeyMetrics metrics = new YubikeyMetrics();
+
+    PollingStrategy polling = new PollingStrategy.FixedBackoff();
+    RetryPolicy retry = RetryPolicy.NONE;
+    FlightRecorder recorder = FlightRecorder.fromSystemProperties();
+    int transactionPolls;
+    int version = -1;
+    int serial = -1;
+
+    boolean lean;
+    boolean writeFlagClear;
+    boolean resetPending;
+    int transactionTransfers;
+    long transfers;
+
+    // System.nanoTime() at which the current call gives up, if bounded
+    long deadline;
+    boolean bounded;
+
+    volatile boolean removed;
+    volatile Thread waiter;
+
+    public YubikeyChannel(YubikeyTransport transport){
+        this.transport = transport;
+    }
+
+    public YubikeyTransport getTransport(){
+        return transport;
+    }
+
+    /**
+     * Marks the device as unplugged: a transaction waiting for the device
+     * on this channel fails at once with a YubikeyException, and so do the
+     * following ones.
+     */
+    public void markRemoved(){
+        removed = true;
+        Thread waiter = this.waiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    public boolean isRemoved(){
+        return removed;
+    }
+
+    public YubikeyMetrics getMetrics(){
+        return metrics;
+    }
+
+    /** The recorder of the reports exchanged on this channel, or null. */
+    public FlightRecorder getFlightRecorder(){
+        return recorder;
+    }
+
+    /**
+     * Records every report exchanged on this channel, or stops recording
+     * with null. Set it before the channel is used.
+     */
+    public void setFlightRecorder(FlightRecorder recorder){
+        this.recorder = recorder;
+    }
+
+    public PollingStrategy getPollingStrategy(){
+        return polling;
+    }
+
+    public void setPollingStrategy(PollingStrategy polling){
+        this.polling = polling;
+    }
+
+    public RetryPolicy getRetryPolicy(){
+        return retry;
+    }
+
+    /**
+     * How challenge-responses on this channel recover from CRC failures and
+     * transient transfer errors, RetryPolicy.NONE by default.
+     */
+    public void setRetryPolicy(RetryPolicy retry){
+        this.retry = retry;
+    }
+
+    public boolean isLean(){
+        return lean;
+    }
+
+    /**
+     * Lean transactions save USB round trips. The reset after a response is
+     * sent at the start of the next transaction instead of being polled on
+     * its own, so it shares the poll of that transaction's first report.
+     * Reading also stops at the expected response length. For a 64-byte
+     * challenge this takes 25 control transfers (11 polls) instead of 27
+     * (12 polls). Every report written after another one, the reset
+     * included, is still polled for, as the device sets SLOT_WRITE_FLAG
+     * while it takes each one in.
+     * Call YubikeyConnector.flush_reset before handing the device to code
+     * that does not know about the pending reset.
+     */
+    public void setLean(boolean lean){
+        this.lean = lean;
+    }
+
+    /** Whether a response was read in lean mode and the device not reset yet. */
+    public boolean isResetPending(){
+        return resetPending;
+    }
+
+    /** Control transfers done by the last challenge-response on this channel. */
+    public int getLastTransactionTransfers(){
+        return transactionTransfers;
+    }
+
+    /** Control transfers done on this channel. */
+    public long getTransferCount(){
+        return transfers;
+    }
+
+    /** Status polls done by the last challenge-response on this channel. */
+    public int getLastTransactionPolls(){
+        return transactionPolls;
+    }
+
+    /**
+     * Firmware version from the last status report, as
+     * major&lt;&lt;16 | minor&lt;&lt;8 | build, or -1 if not seen yet.
+     */
+    public int getVersion(){
+        return version;
+    }
+
+    public String getVersionString(){
+        if (version < 0)
+            return "unknown";
+        return (version >> 16)+"."+((version >> 8) & 0xff)+"."+(version & 0xff);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+
+/**
+ * Thread-safe front end to one Yubikey.
+ *
+ * Transactions on the channel are serialized by a fair lock, so callers are
+ * served in arrival order and their reports never interleave. Waiting for
+ * the lock or for the device parks the calling thread (no monitor is held),
+ * which keeps virtual threads unpinned; only the libusb control transfers
+ * themselves run in native code. Interrupting a caller aborts its wait
+ * promptly with a YubikeyException and the device is reset so the next
+ * caller starts from a clean state.
+ */
+public class YubikeyClient {
+
+    private final YubikeyChannel channel;
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    public YubikeyClient(YubikeyChannel channel){
+        this.channel = channel;
+    }
+
+    public YubikeyClient(YubikeyTransport transport){
+        this(new YubikeyChannel(transport));
+    }
+
+    /**
+     * The underlying channel. Use it directly only while no other thread
+     * uses this client.
+     */
+    public YubikeyChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * The device serial number, read from the device on first use.
+     */
+    public int getSerial(){
+        int serial = channel.serial;
+        if (serial >= 0)
+            return serial;
+        try{
+            lock.lockInterruptibly();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        try{
+            if (channel.serial < 0)
+                YubikeyConnector.read_serial(channel);
+            return channel.serial;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Number of threads waiting for the device. */
+    public int getQueueLength(){
+        return lock.getQueueLength();
+    }
+
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        byte[] response = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        challenge_response(challenge, mode, slot, variable, may_block, response, 0);
+        return response;
+    }
+
+    public int challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            byte[] out, int outOff){
+        // invalid arguments fail before anything is sent, without a reset
+        YubikeyConnector.check_challenge(challenge, mode, slot);
+        try{
+            lock.lockInterruptibly();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        return run(challenge, mode, slot, variable, may_block, out, outOff);
+    }
+
+    /**
+     * Challenge-response giving up when the timeout elapses, be it waiting
+     * for other callers or for the device: what is left of the timeout once
+     * the lock is held becomes the deadline of the transaction, see
+     * YubikeyConnector.challenge_response with a timeout.
+     *
+     * @throws YubikeyTimeoutException if the timeout elapsed
+     * @throws YubikeyException if the thread was interrupted
+     */
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            long timeout, TimeUnit unit){
+        byte[] response = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        challenge_response(challenge, mode, slot, variable, may_block, response, 0, timeout, unit);
+        return response;
+    }
+
+    public int challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            byte[] out, int outOff, long timeout, TimeUnit unit){
+        long deadline = System.nanoTime()+unit.toNanos(timeout);
+        try{
+            if (!lock.tryLock(timeout, unit))
+                throw new YubikeyTimeoutException("Timed out waiting for YubiKey to be available");
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        try{
+            // resets the device itself on failure
+            return YubikeyConnector.challenge_response_until(channel, challenge, mode, slot, variable, may_block, out, outOff, deadline);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private int run(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            byte[] out, int outOff){
+        boolean done = false;
+        try{
+            int len = YubikeyConnector.challenge_response(channel, challenge, mode, slot, variable, may_block, out, outOff);
+            done = true;
+            return len;
+        }
+        finally{
+            if (!done)
+                YubikeyConnector.abort(channel);
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.util.Arrays;
+
+/**
+ * Configuration of a Yubikey slot, as written by YubikeyConnector.write_config.
+ *
+ * Only HMAC-SHA1 challenge-response configurations are built here. The
+ * 52-byte layout is the one of the Yubikey personalization tools: fixed
+ * data (16), uid (6), AES key (16), access code (6), fixed size, extended,
+ * ticket and configuration flags, two reserved bytes and a CRC such that
+ * the CRC16 of the whole structure is YubikeyUtil._CRC_OK_RESIDUAL. An
+ * HMAC secret of 20 bytes is stored with its first 16 bytes in the key
+ * field and the last 4 in the uid field.
+ */
+public class YubikeyConfig {
+
+    public static final int CONFIG_SIZE = 52;
+    public static final int ACC_CODE_SIZE = 6;
+
+    // field offsets
+    static final int UID_OFFSET = 16;
+    static final int KEY_OFFSET = 22;
+    static final int ACC_CODE_OFFSET = 38;
+    static final int EXT_FLAGS_OFFSET = 45;
+    static final int TKT_FLAGS_OFFSET = 46;
+    static final int CFG_FLAGS_OFFSET = 47;
+    static final int CRC_OFFSET = 50;
+    static final int KEY_SIZE = 16;
+
+    public static final byte TKTFLAG_CHAL_RESP = 0x40;
+    public static final byte CFGFLAG_CHAL_HMAC = 0x22;
+    public static final byte CFGFLAG_HMAC_LT64 = 0x04;
+    public static final byte CFGFLAG_CHAL_BTN_TRIG = 0x08;
+    public static final byte EXTFLAG_SERIAL_BTN_VISIBLE = 0x01;
+    public static final byte EXTFLAG_SERIAL_USB_VISIBLE = 0x02;
+    public static final byte EXTFLAG_SERIAL_API_VISIBLE = 0x04;
+
+    private final byte[] bytes = new byte[CONFIG_SIZE];
+
+    private YubikeyConfig(){
+    }
+
+    /**
+     * An HMAC-SHA1 challenge-response configuration with the serial number
+     * readable through the API.
+     *
+     * @param secret HMAC key of up to 20 bytes; a shorter key is padded
+     *            with zeros, which gives the same HMAC
+     * @param variable whether challenges are variable length (HMAC_LT64)
+     * @param requireTouch whether the key waits for a touch before answering
+     */
+    public static YubikeyConfig hmacSha1(byte[] secret, boolean variable, boolean requireTouch){
+        if (secret.length > YubikeyConnector.SHA1_DIGEST_SIZE)
+            throw new IllegalArgumentException("HMAC secret longer than 20 bytes");
+        YubikeyConfig config = new YubikeyConfig();
+        byte[] key = Arrays.copyOf(secret, YubikeyConnector.SHA1_DIGEST_SIZE);
+        System.arraycopy(key, 0, config.bytes, KEY_OFFSET, KEY_SIZE);
+        System.arraycopy(key, KEY_SIZE, config.bytes, UID_OFFSET, YubikeyConnector.SHA1_DIGEST_SIZE-KEY_SIZE);
+        Arrays.fill(key, (byte)0);
+        config.bytes[TKT_FLAGS_OFFSET] = TKTFLAG_CHAL_RESP;
+        config.bytes[CFG_FLAGS_OFFSET] = (byte)(CFGFLAG_CHAL_HMAC
+                | (variable ? CFGFLAG_HMAC_LT64 : 0) | (requireTouch ? CFGFLAG_CHAL_BTN_TRIG : 0));
+        config.bytes[EXT_FLAGS_OFFSET] = EXTFLAG_SERIAL_API_VISIBLE;
+        return config;
+    }
+
+    /** An empty configuration, which deletes the slot. */
+    public static YubikeyConfig empty(){
+        return new YubikeyConfig();
+    }
+
+    /**
+     * Access code protecting the slot after this configuration is written,
+     * or null for none.
+     */
+    public YubikeyConfig setAccessCode(byte[] accessCode){
+        if (accessCode == null){
+            Arrays.fill(bytes, ACC_CODE_OFFSET, ACC_CODE_OFFSET+ACC_CODE_SIZE, (byte)0);
+        }
+        else{
+            if (accessCode.length != ACC_CODE_SIZE)
+                throw new IllegalArgumentException("Invalid access code length:"+accessCode.length);
+            System.arraycopy(accessCode, 0, bytes, ACC_CODE_OFFSET, ACC_CODE_SIZE);
+        }
+        return this;
+    }
+
+    public byte[] getAccessCode(){
+        return Arrays.copyOfRange(bytes, ACC_CODE_OFFSET, ACC_CODE_OFFSET+ACC_CODE_SIZE);
+    }
+
+    /** Whether this configuration deletes the slot. */
+    public boolean isEmpty(){
+        return bytes[TKT_FLAGS_OFFSET] == 0 && bytes[CFG_FLAGS_OFFSET] == 0;
+    }
+
+    /** Writes the CONFIG_SIZE bytes of the configuration, CRC included. */
+    public void encode(byte[] out, int off){
+        short crc = (short)~YubikeyUtil.crc16(bytes, 0, CRC_OFFSET);
+        bytes[CRC_OFFSET] = (byte)(crc & 0xff);
+        bytes[CRC_OFFSET+1] = (byte)((crc >> 8) & 0xff);
+        System.arraycopy(bytes, 0, out, off, CONFIG_SIZE);
+    }
+
+    /** Overwrites the secret with zeros. */
+    public void clear(){
+        Arrays.fill(bytes, (byte)0);
+    }
+
+}
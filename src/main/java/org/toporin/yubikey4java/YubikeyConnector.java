@@ -26,9 +26,12 @@ package org.toporin.yubikey4java;
 //import java.io.BufferedReader;
 //import java.io.IOException;
 //import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.usb4java.Device;
 import org.usb4java.DeviceDescriptor;
@@ -38,7 +41,6 @@ import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 //import java.util.concurrent.TimeUnit;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 //import java.util.logging.Level;
 //import java.util.logging.Logger;
 
@@ -50,30 +52,34 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
  */
 public class YubikeyConnector
 {
-    private static final boolean DEBUG=true;
+    static final boolean DEBUG=
+            Boolean.getBoolean("yubikey4java.debug");
     
     /** The vendor ID of the Yubikey. */
-    private static final short VENDOR_ID = 0x1050;
+    static final short VENDOR_ID = 0x1050;
     
     /** The product ID of the Yubikey. */
     //private static final short PRODUCT_ID = 0x0114;
     //private static final short PRODUCT_ID2 = 0x0111;
-    private static final short[] PRODUCT_ID_NEO = {0x0111, 0x0114};
+    public static final short[] PRODUCT_ID_NEO = {0x0111, 0x0114};
     
     // Various USB/HID parameters from yubikey_usb_hid.py
     private static final byte _USB_TYPE_CLASS         = (0x01 << 5);
-    private static final byte _USB_RECIP_INTERFACE    = 0x01;
-    private static final byte _USB_ENDPOINT_IN        = (byte)0x80;
-    private static final byte _USB_ENDPOINT_OUT       = 0x00;
+    static final byte _USB_RECIP_INTERFACE    = 0x01;
+    static final byte _USB_ENDPOINT_IN        = (byte)0x80;
+    static final byte _USB_ENDPOINT_OUT       = 0x00;
 
-    private static final byte _HID_GET_REPORT         = 0x01;
-    private static final byte _HID_SET_REPORT         = 0x09;
+    static final byte _HID_GET_REPORT         = 0x01;
+    static final byte _HID_SET_REPORT         = 0x09;
 
-    private static final int _USB_TIMEOUT_MS         = 2000;
+    static final int _USB_TIMEOUT_MS         = 2000;
+    
+    // budget of the reset that cleans up after an aborted call
+    static final long _ABORT_TIMEOUT_NS      = TimeUnit.MILLISECONDS.toNanos(100);
 
     // from ykcore_backend.h
-    private static final byte _FEATURE_RPT_SIZE       = 8;
-    private static final short _REPORT_TYPE_FEATURE    = 0x03;    
+    static final byte _FEATURE_RPT_SIZE       = 8;
+    static final short _REPORT_TYPE_FEATURE    = 0x03;    
     
     // yubikey_defs.py
     public static final byte RESP_TIMEOUT_WAIT_MASK= 0x1f; // Mask to get timeout value
@@ -86,9 +92,12 @@ public class YubikeyConnector
     
     private static final byte MODE_AND=0;
     private static final byte MODE_NAND=1;
-    private static final byte MODE_HMAC=0;
-    private static final int SLOT_1=1;
-    private static final int SLOT_2=2;
+    public static final byte MODE_HMAC=0;
+    public static final int SLOT_1=1;
+    public static final int SLOT_2=2;
+
+    // channel of the last handle used through the DeviceHandle overloads, per thread
+    private static final ThreadLocal<YubikeyChannel> handleChannel = new ThreadLocal<YubikeyChannel>();
      
     /**
      * Searches for the yubikey device and returns it. If there are
@@ -110,7 +119,8 @@ public class YubikeyConnector
             for (Device device: list){
                 DeviceDescriptor descriptor = new DeviceDescriptor();
                 result = LibUsb.getDeviceDescriptor(device, descriptor);
-                debug(descriptor.dump());
+                if (DEBUG)
+                    debug(descriptor.dump());
                 
                 if (result < 0){
                     throw new RuntimeException("Unable to read device descriptor. Result=" + result);
@@ -131,6 +141,59 @@ public class YubikeyConnector
         return null;
     }
     
+    /**
+     * Searches for all the yubikey devices matching the given product IDs.
+     * This enumerates the whole bus on every call; YubikeyRegistry keeps a
+     * live index instead.
+     * 
+     * @return The yubikey USB devices, possibly empty.
+     */
+    public static List<Device> findYubikeys(short[] pids){
+        List<Device> devices= new ArrayList<Device>();
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(null, list);
+        if (result < 0){
+            throw new RuntimeException("Unable to get device list. Result=" + result);
+        }
+
+        try{
+            for (Device device: list){
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                result = LibUsb.getDeviceDescriptor(device, descriptor);
+                if (result < 0){
+                    throw new RuntimeException("Unable to read device descriptor. Result=" + result);
+                }
+                if (descriptor.idVendor() == VENDOR_ID && contains(pids, descriptor.idProduct())) {
+                    debug("Found device:"+device.toString());
+                    devices.add(device);
+                }
+            }
+        }
+        finally{
+            LibUsb.freeDeviceList(list, false);
+        }
+        return devices;
+    }
+    
+    /**
+     * Channel used by the DeviceHandle overloads, kept per thread for the
+     * last handle so that these calls do not allocate a transport buffer
+     * and metrics each time. Arrays they return are copies, as they used
+     * to be fresh arrays.
+     */
+    static YubikeyChannel channel(DeviceHandle handle){
+        YubikeyChannel channel = handleChannel.get();
+        if (channel == null || ((LibUsbTransport)channel.transport).getHandle() != handle){
+            channel = new YubikeyChannel(new LibUsbTransport(handle));
+            handleChannel.set(channel);
+        }
+        return channel;
+    }
+
+    private static byte[] copy(byte[] data){
+        return (data == null) ? null : data.clone();
+    }
+
     public static boolean contains(short[] pids, short pid){
         for (int i=0; i<pids.length; i++){
             if (pids[i]==pid)
@@ -140,60 +203,374 @@ public class YubikeyConnector
     }
     
     public static byte[] challenge_response(DeviceHandle handle, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        return challenge_response(channel(handle), challenge, mode, slot, variable, may_block);
+    }
+    
+    public static byte[] challenge_response(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        byte[] response= new byte[SHA1_DIGEST_SIZE];
+        challenge_response(channel, challenge, mode, slot, variable, may_block, response, 0);
+        return response;
+    }
+    
+    /**
+     * Challenge-response writing the HMAC into a caller supplied buffer.
+     * Does not allocate once the channel buffers are warm. Failures are
+     * retried as the RetryPolicy of the channel allows.
+     * 
+     * @return The number of bytes written to out.
+     */
+    public static int challenge_response(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block, byte[] out, int outOff){
+        YubikeyMetrics metrics= channel.metrics;
+        long start= System.nanoTime();
+        try{
+            int len= do_challenge_response(channel, challenge, mode, slot, variable, may_block, out, outOff);
+            metrics.total.record(System.nanoTime()-start);
+            metrics.transactions.increment();
+            return len;
+        }
+        catch (YubikeyException ex){
+            metrics.exceptions.increment();
+            if (ex instanceof YubikeyTimeoutException)
+                metrics.timeouts.increment();
+            if (channel.recorder != null)
+                channel.recorder.dumpOnError();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Challenge-response bounded by a deadline. Every control transfer
+     * timeout and every sleep between status polls is capped at the time
+     * left, and retries of the channel RetryPolicy only start while time is
+     * left. A call that fails, times out or is interrupted resets the device
+     * (allowing it another 100 ms) so the next call starts from a clean state;
+     * a touch-wait in progress is cancelled that way too.
+     * 
+     * @return The number of bytes written to out.
+     * @throws YubikeyTimeoutException if the deadline passed
+     */
+    public static int challenge_response(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block, byte[] out, int outOff,
+            long timeout, TimeUnit unit){
+        return challenge_response_until(channel, challenge, mode, slot, variable, may_block, out, outOff, System.nanoTime()+unit.toNanos(timeout));
+    }
+    
+    /** Challenge-response giving up at the given System.nanoTime(). */
+    static int challenge_response_until(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block, byte[] out, int outOff,
+            long deadline){
+        // invalid arguments fail before anything is sent, without a reset
+        check_challenge(challenge, mode, slot);
+        boolean done= false;
+        channel.deadline= deadline;
+        channel.bounded= true;
+        try{
+            int len= challenge_response(channel, challenge, mode, slot, variable, may_block, out, outOff);
+            done= true;
+            return len;
+        }
+        finally{
+            channel.bounded= false;
+            if (!done)
+                abort(channel);
+        }
+    }
+    
+    private static int do_challenge_response(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block, byte[] out, int outOff){
         //""" Do challenge-response with a YubiKey > 2.0. """
-        // Check length and pad challenge if appropriate
-        byte[] payload= new byte[SHA1_MAX_BLOCK_SIZE];
-        int response_len;
-        if (mode == MODE_HMAC){
-            if (challenge.length > SHA1_MAX_BLOCK_SIZE){
-                throw new YubikeyException("Unsupported challenge size");
+        int response_len= prepare_challenge(channel, challenge, mode, slot, variable);
+        RetryPolicy retry= channel.retry;
+        int reissues= 0;
+        while (true){
+            try{
+                if (exchange(channel, retry, may_block, response_len)){
+                    System.arraycopy(channel.response, 0, out, outOff, response_len);
+                    return response_len;
+                }
+                if (reissues >= retry.getReissues() || !backoff(channel, retry))
+                    throw new YubikeyException("Read from device failed CRC check");
             }
-            else if (challenge.length < SHA1_MAX_BLOCK_SIZE){
-                byte pad_with = 0x00;
-                if (variable & challenge[challenge.length-1]==pad_with)
-                    pad_with = (byte)0xff;
-                java.util.Arrays.fill(payload, pad_with);
-                System.arraycopy(challenge, 0, payload, 0, challenge.length);
+            catch (LibUsbException ex){
+                // a transfer cut short by the deadline
+                if (channel.bounded && channel.deadline-System.nanoTime() <= 0)
+                    throw new YubikeyTimeoutException("Deadline exceeded", ex);
+                if (!RetryPolicy.isTransient(ex) || reissues >= retry.getReissues() || !backoff(channel, retry))
+                    throw ex;
+                // the device may hold part of a frame or a response
+                channel.resetPending= true;
             }
-            else{
-                System.arraycopy(challenge, 0, payload, 0, SHA1_MAX_BLOCK_SIZE);
+            reissues++;
+            channel.metrics.retries.increment();
+            if (DEBUG)
+                debug("Re-issuing challenge ("+reissues+"/"+retry.getReissues()+")");
+        }
+    }
+    
+    /**
+     * Writes the channel frame and reads the response into the channel
+     * response buffer, reading it again after a CRC failure as the policy
+     * allows.
+     * 
+     * @return Whether the response passed its CRC check.
+     */
+    private static boolean exchange(YubikeyChannel channel, RetryPolicy retry, boolean may_block, int response_len){
+        channel.transactionPolls= 0;
+        channel.transactionTransfers= 0;
+        long start= System.nanoTime();
+        write(channel, channel.frame);
+        channel.metrics.write.record(System.nanoTime()-start);
+        byte[] response = read_pending(channel, may_block, response_len+2);
+        int rereads= 0;
+        while (response != null && !YubikeyUtil.validate_crc16(response, 0, response_len+2)){
+            channel.metrics.crcFailures.increment();
+            if (rereads++ >= retry.getRereads() || !has_time(channel)){
+                response= null;
+                break;
             }
-            response_len = SHA1_DIGEST_SIZE;
+            channel.metrics.retries.increment();
+            if (DEBUG)
+                debug("Re-reading response ("+rereads+"/"+retry.getRereads()+")");
+            response= reread_response(channel, response_len+2);
+        }
+        end_response(channel);
+        channel.polling.transactionCompleted(channel.transactionPolls);
+        return response != null;
+    }
+    
+    /**
+     * Pauses before a re-issue.
+     * 
+     * @return false if the deadline of the call would pass meanwhile.
+     */
+    private static boolean backoff(YubikeyChannel channel, RetryPolicy retry){
+        long pause= retry.getBackoffNanos();
+        if (channel.bounded && channel.deadline-System.nanoTime() <= pause)
+            return false;
+        sleep(channel, pause);
+        return true;
+    }
+    
+    private static boolean has_time(YubikeyChannel channel){
+        return !channel.bounded || channel.deadline-System.nanoTime() > 0;
+    }
+    
+    /**
+     * Resets the device after an aborted call, within _ABORT_TIMEOUT_NS and
+     * with the interrupt status of the thread cleared meanwhile. If that
+     * fails too, the reset is left pending for the next transaction. Shared
+     * by the callers that reset the device after a failed transaction.
+     */
+    static void abort(YubikeyChannel channel){
+        if (channel.removed)
+            return;
+        boolean interrupted= Thread.interrupted();
+        channel.deadline= System.nanoTime()+_ABORT_TIMEOUT_NS;
+        channel.bounded= true;
+        try{
+            write_reset(channel);
+        }
+        catch (RuntimeException ex){
+            channel.resetPending= true;
+            debug("Reset after aborted transaction failed: "+ex.getMessage());
+        }
+        finally{
+            channel.bounded= false;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Pads an HMAC challenge to the SHA1_MAX_BLOCK_SIZE bytes sent to the
+     * device: with 0x00, or with 0xff for a variable length challenge ending
+     * in 0x00, so that the device can strip the padding (see
+     * hmac_input_length). Shared by the device path and HmacVerifier.
+     */
+    public static void pad_challenge(byte[] challenge, boolean variable, byte[] out, int outOff){
+        if (challenge.length > SHA1_MAX_BLOCK_SIZE){
+            throw new YubikeyException("Unsupported challenge size");
+        }
+        else if (challenge.length < SHA1_MAX_BLOCK_SIZE){
+            byte pad_with = 0x00;
+            if (variable && challenge.length > 0 && challenge[challenge.length-1]==pad_with)
+                pad_with = (byte)0xff;
+            Arrays.fill(out, outOff+challenge.length, outOff+SHA1_MAX_BLOCK_SIZE, pad_with);
+            System.arraycopy(challenge, 0, out, outOff, challenge.length);
         }
         else{
-            throw new YubikeyException("Unsupported challenge mode:"+mode);
+            System.arraycopy(challenge, 0, out, outOff, SHA1_MAX_BLOCK_SIZE);
+        }
+    }
+    
+    /**
+     * Number of bytes of a padded challenge the device feeds into the HMAC:
+     * all of them, or for a slot configured for variable length challenges
+     * (HMAC_LT64) the block without the trailing bytes equal to its last byte.
+     */
+    public static int hmac_input_length(byte[] payload, int off, boolean variable){
+        int len = SHA1_MAX_BLOCK_SIZE;
+        if (variable){
+            byte last = payload[off+len-1];
+            while (len > 0 && payload[off+len-1] == last)
+                len--;
         }
+        return len;
+    }
+    
+    /**
+     * Fills the channel frame with the padded challenge, slot and CRC.
+     * 
+     * @return The expected response length, without CRC.
+     */
+    static int prepare_challenge(YubikeyChannel channel, byte[] challenge, byte mode, int slot, boolean variable){
+        // Check length and pad challenge if appropriate
+        check_challenge(challenge, mode, slot);
+        Frame frame= channel.frame;
+        pad_challenge(challenge, variable, frame.payload, 0);
+        int response_len = SHA1_DIGEST_SIZE;
         
+        frame.setSlot(slot);
+        frame.setCRC();
+        return response_len;
+    }
+    
+    /**
+     * Checks the arguments of a challenge-response, so that callers can
+     * reject them before starting a transaction they would have to abort.
+     * 
+     * @throws YubikeyException for an unsupported mode, slot or challenge size
+     */
+    static void check_challenge(byte[] challenge, byte mode, int slot){
+        if (mode != MODE_HMAC)
+            throw new YubikeyException("Unsupported challenge mode:"+mode);
+        if (challenge.length > SHA1_MAX_BLOCK_SIZE)
+            throw new YubikeyException("Unsupported challenge size");
         if (slot!=1 && slot!=2)
             throw new YubikeyException("Unsupported challenge slot:"+slot);
-        
-        Frame frame = new Frame(payload, slot);
-        write(handle, frame);
-        byte[] response = read_response(handle, may_block);
-        if (!YubikeyUtil.validate_crc16(response, 0, response_len+2))
+    }
+    
+    /**
+     * Reads the device serial number (firmware 2.2 and later) and remembers
+     * it in the channel.
+     */
+    public static int read_serial(YubikeyChannel channel){
+        Frame frame= channel.frame;
+        Arrays.fill(frame.payload, (byte)0x00);
+        frame.slot= Frame.SLOT_DEVICE_SERIAL;
+        frame.setCRC();
+        write(channel, frame);
+        byte[] response = read_response(channel, false, 4+2);
+        if (!YubikeyUtil.validate_crc16(response, 0, 4+2)){
+            channel.metrics.crcFailures.increment();
             throw new YubikeyException("Read from device failed CRC check");
+        }
         
-        return Arrays.copyOf(response, response_len);
+        channel.serial= ((response[0] & 0xff) << 24) | ((response[1] & 0xff) << 16)
+                | ((response[2] & 0xff) << 8) | (response[3] & 0xff);
+        return channel.serial;
+    }
+    
+    /**
+     * Writes the configuration of a slot and checks that the device took it:
+     * its programming sequence is incremented, or back to 0 when deleting
+     * the last configured slot.
+     * 
+     * @param access_code
+     *            Current access code of the slot, or null if it has none.
+     * @return The programming sequence after the write.
+     * @throws YubikeyException if the device rejected the configuration,
+     *         typically because of a wrong access code
+     */
+    public static int write_config(YubikeyChannel channel, YubikeyConfig config, int slot, byte[] access_code){
+        if (slot!=1 && slot!=2)
+            throw new YubikeyException("Unsupported configuration slot:"+slot);
+        if (access_code != null && access_code.length != YubikeyConfig.ACC_CODE_SIZE)
+            throw new YubikeyException("Invalid access code length:"+access_code.length);
+        try{
+            flush_reset(channel);
+            int before= read(channel)[4] & 0xff;
+            
+            Frame frame= channel.frame;
+            Arrays.fill(frame.payload, (byte)0x00);
+            config.encode(frame.payload, 0);
+            if (access_code != null)
+                System.arraycopy(access_code, 0, frame.payload, YubikeyConfig.CONFIG_SIZE, YubikeyConfig.ACC_CODE_SIZE);
+            frame.slot= (slot==1) ? Frame.SLOT_CONFIG : Frame.SLOT_CONFIG2;
+            frame.setCRC();
+            write(channel, frame);
+            Arrays.fill(frame.payload, (byte)0x00);
+            
+            // the device clears the write flag once the flash is written
+            int after= waitforClear(channel, SLOT_WRITE_FLAG, false)[4] & 0xff;
+            if (after != ((before+1) & 0xff) && !(after == 0 && config.isEmpty()))
+                throw new YubikeyException("Configuration rejected by the device (programming sequence "+before+" -> "+after+")");
+            return after;
+        }
+        catch (YubikeyException ex){
+            channel.metrics.exceptions.increment();
+            if (channel.recorder != null)
+                channel.recorder.dumpOnError();
+            throw ex;
+        }
     }
     
     public static boolean write(DeviceHandle handle, Frame frame){
-        List<byte[]> reports= frame.getByteArray();
-        for (int i=0; i<reports.size(); i++){
-            debug("Reports["+i+"]:"+YubikeyUtil.toHexString(reports.get(i)));
+        return write(channel(handle), frame);
+    }
+    
+    /**
+     * Writes a frame, one report at a time. The CRC of the frame must be set.
+     */
+    public static boolean write(YubikeyChannel channel, Frame frame){
+        if (channel.resetPending){
+            // reset folded from the previous lean transaction; the first
+            // report is polled for like any report written after another
+            long start= System.nanoTime();
+            write_reset_nowait(channel);
+            channel.metrics.reset.record(System.nanoTime()-start);
+        }
+        byte[] report= channel.report;
+        for (int seq=0; seq<=Frame.LAST_SEQ; seq++){
+            // null blocks of the payload are not sent
+            if (!frame.encodeReport(seq, report))
+                continue;
             // first, we ensure the YubiKey will accept a write
-            waitforClear(handle, SLOT_WRITE_FLAG, false);
-            raw_write(handle, reports.get(i));
+            if (!(channel.lean && channel.writeFlagClear))
+                waitforClear(channel, SLOT_WRITE_FLAG, false);
+            raw_write(channel, report);
         }
         return true;
     }
     
     public static boolean write_reset(DeviceHandle handle){
-        byte[] data = {0x00,0x00,0x00,0x00,0x00,0x00,0x00,(byte)0x8f};
-        raw_write(handle, data);
-        waitforClear(handle, SLOT_WRITE_FLAG, false);
+        return write_reset(channel(handle));
+    }
+    
+    public static boolean write_reset(YubikeyChannel channel){
+        write_reset_nowait(channel);
+        waitforClear(channel, SLOT_WRITE_FLAG, false);
         return true;
     }
     
+    /**
+     * Sends the reset left pending by a lean transaction, if any.
+     */
+    public static void flush_reset(YubikeyChannel channel){
+        if (channel.resetPending)
+            write_reset(channel);
+    }
+    
+    private static void write_reset_nowait(YubikeyChannel channel){
+        raw_write(channel, reset_report(channel));
+        channel.resetPending= false;
+    }
+    
+    /** Fills the channel report buffer with the reset report. */
+    static byte[] reset_report(YubikeyChannel channel){
+        byte[] data = channel.report;
+        Arrays.fill(data, (byte)0x00);
+        data[7]= (byte)0x8f;
+        return data;
+    }
+    
     /**
      * Sends a message to the yubikey.
      * 
@@ -204,139 +581,311 @@ public class YubikeyConnector
      */
     public static int raw_write(DeviceHandle handle, byte[] message)
     {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
-        buffer.put(message);
-        buffer.rewind();
-        int transfered = LibUsb.controlTransfer(handle,
-            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | _USB_ENDPOINT_OUT),
-            _HID_SET_REPORT,
-            (short)(_REPORT_TYPE_FEATURE << 8),//(short) 2,
-            (short) 1, buffer, _USB_TIMEOUT_MS);
-        
-        if (transfered < 0)
-            throw new LibUsbException("Control transfer failed", transfered);
-        if (transfered != message.length)
-            throw new RuntimeException("Not all data was sent to device");
-        
-        debug("Data sent to device: "+YubikeyUtil.toHexString(message));
-        return transfered;
+        return raw_write(channel(handle), message);
+    }
+    
+    /**
+     * Sends a message to the yubikey.
+     * 
+     * @param channel
+     *            The channel to the device.
+     * @param message
+     *            The message to send.
+     */
+    public static int raw_write(YubikeyChannel channel, byte[] message)
+    {
+        channel.writeFlagClear= false;
+        channel.transport.writeReport(message, transfer_timeout(channel));
+        written(channel, message);
+        return message.length;
+    }
+    
+    /**
+     * Timeout of the next control transfer: _USB_TIMEOUT_MS, capped at the
+     * time left before the deadline of the call.
+     */
+    static int transfer_timeout(YubikeyChannel channel){
+        if (!channel.bounded)
+            return _USB_TIMEOUT_MS;
+        long left= channel.deadline-System.nanoTime();
+        if (left <= 0)
+            throw new YubikeyTimeoutException("Deadline exceeded");
+        // whole milliseconds, libusb takes 0 as no timeout
+        return (int)Math.max(1, Math.min(_USB_TIMEOUT_MS, TimeUnit.NANOSECONDS.toMillis(left)));
+    }
+    
+    /** Accounts for a report sent on the channel. */
+    static void written(YubikeyChannel channel, byte[] message){
+        channel.transactionTransfers++;
+        channel.transfers++;
+        channel.metrics.transfersOut.increment();
+        FlightRecorder recorder= channel.recorder;
+        if (recorder != null)
+            recorder.record(FlightRecorder.OUT, message);
     }
     
     public static byte[] read_response(DeviceHandle handle, boolean may_block){
+        return read_response(channel(handle), may_block).clone();
+    }
+    
+    /**
+     * Waits for a response and reads it into the channel response buffer.
+     * The returned array is reused by the next call on the same channel.
+     */
+    public static byte[] read_response(YubikeyChannel channel, boolean may_block){
+        return read_response(channel, may_block, channel.response.length);
+    }
+    
+    /**
+     * Waits for a response and reads it into the channel response buffer.
+     * On a lean channel, reading stops once expected_len bytes arrived and
+     * the reset is left pending for the next transaction.
+     */
+    public static byte[] read_response(YubikeyChannel channel, boolean may_block, int expected_len){
+        byte[] buff= read_pending(channel, may_block, expected_len);
+        end_response(channel);
+        return buff;
+    }
+    
+    /**
+     * Waits for a response and reads it, leaving the device as it is: until
+     * reset, it keeps repeating the response from sequence 0.
+     */
+    static byte[] read_pending(YubikeyChannel channel, boolean may_block, int expected_len){
         //""" Wait for a response to become available, and read it. """
         // wait for response to become available
-        ByteBuffer buff= ByteBuffer.allocate(48);
-        byte[] res = waitforSet(handle, RESP_PENDING_FLAG, may_block);
-        buff.put(res, 0, 7);        
+        byte[] buff= channel.response;
+        Arrays.fill(buff, (byte)0x00);
+        long start= System.nanoTime();
+        byte[] res = waitforSet(channel, RESP_PENDING_FLAG, may_block);
+        int len= append(res, buff, 0);
         // continue reading while response pending is set
-        while (true){
-            res = read(handle);
+        while (!(channel.lean && len >= expected_len)){
+            res = read(channel);
             byte flags = res[7];
             if ((flags & RESP_PENDING_FLAG)!=0){
                 byte seq = (byte)(flags & RESP_TIMEOUT_WAIT_MASK);
                 if (seq == 0)
                     break;
-                buff.put(res, 0, 7);
+                len= append(res, buff, len);
             }
             else{
                 break;
             }
         }
-        write_reset(handle);
-        return buff.array();
+        channel.metrics.wait.record(System.nanoTime()-start);
+        return buff;
+    }
+    
+    /**
+     * Reads the response again, from the next report with sequence 0.
+     * 
+     * @return The channel response buffer, or null if the device no longer
+     *         has a response pending.
+     */
+    static byte[] reread_response(YubikeyChannel channel, int expected_len){
+        byte[] buff= channel.response;
+        Arrays.fill(buff, (byte)0x00);
+        // up to one cycle to find sequence 0, then one to read the response
+        int max_reads= 2*(buff.length/(_FEATURE_RPT_SIZE-1)+1);
+        int len= -1;
+        for (int i=0; i<max_reads && len < expected_len; i++){
+            byte[] res= read(channel);
+            byte flags= res[7];
+            if ((flags & RESP_PENDING_FLAG)==0)
+                return null;
+            if ((flags & RESP_TIMEOUT_WAIT_MASK)==0){
+                if (len >= 0)
+                    break;
+                len= 0;
+            }
+            if (len >= 0)
+                len= append(res, buff, len);
+        }
+        return (len >= expected_len) ? buff : null;
+    }
+    
+    /**
+     * Ends the read of a response: resets the device, or on a lean channel
+     * leaves the reset pending for the next transaction.
+     */
+    static void end_response(YubikeyChannel channel){
+        if (channel.lean){
+            channel.resetPending= true;
+        }
+        else{
+            long start= System.nanoTime();
+            write_reset(channel);
+            channel.metrics.reset.record(System.nanoTime()-start);
+        }
+    }
+    
+    static int append(byte[] report, byte[] buff, int len){
+        int n= Math.min(_FEATURE_RPT_SIZE-1, buff.length-len);
+        System.arraycopy(report, 0, buff, len, n);
+        return len+n;
     }
     
     public static byte[] read(DeviceHandle handle)
     {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(_FEATURE_RPT_SIZE);
-        buffer.rewind();
-        int transfered = LibUsb.controlTransfer(handle,
-            (byte) (LibUsb.REQUEST_TYPE_CLASS | LibUsb.RECIPIENT_INTERFACE | _USB_ENDPOINT_IN),
-            _HID_GET_REPORT,
-            (short)(_REPORT_TYPE_FEATURE << 8),//(short) 2,
-            (short) 1, buffer, _USB_TIMEOUT_MS);
-        
-        if (transfered < 0)
-            throw new LibUsbException("Control transfer failed", transfered);
-        if (transfered != _FEATURE_RPT_SIZE)
-            throw new RuntimeException("Not all data was received from device:"+transfered);
-        
-        byte[] data= new byte[_FEATURE_RPT_SIZE];
-        buffer.rewind();
-        for (int i=0; i<_FEATURE_RPT_SIZE; i++){
-            data[i]= buffer.get();
-        }
-        debug("Data received from device: "+YubikeyUtil.toHexString(data));
+        return read(channel(handle)).clone();
+    }
+    
+    /**
+     * Reads a report into the channel status buffer. The returned array is
+     * reused by the next read on the same channel.
+     */
+    public static byte[] read(YubikeyChannel channel)
+    {
+        byte[] data= channel.status;
+        channel.writeFlagClear= false;
+        channel.transport.readReport(data, transfer_timeout(channel));
+        received(channel, data);
         return data;
         
     }
     
+    /** Accounts for a report read on the channel and tracks the device status. */
+    static void received(YubikeyChannel channel, byte[] data){
+        channel.transactionTransfers++;
+        channel.transfers++;
+        channel.metrics.transfersIn.increment();
+        FlightRecorder recorder= channel.recorder;
+        if (recorder != null)
+            recorder.record(FlightRecorder.IN, data);
+        channel.writeFlagClear= (data[7] & SLOT_WRITE_FLAG)==0;
+        // status reports carry the firmware version in bytes 1-3
+        if (channel.version < 0 && (data[7] & RESP_PENDING_FLAG)==0)
+            channel.version= ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+    }
+    
     public static byte[] waitforClear(DeviceHandle handle, byte mask, boolean may_block){
-        return waitfor(handle, MODE_NAND, mask, may_block, 2);
+        return copy(waitforClear(channel(handle), mask, may_block));
+    }
+    public static byte[] waitforClear(YubikeyChannel channel, byte mask, boolean may_block){
+        return waitfor(channel, MODE_NAND, mask, may_block, 2);
     }
     public static byte[] waitforSet(DeviceHandle handle, byte mask, boolean may_block){
-        return waitfor(handle, MODE_AND, mask, may_block, 2);
+        return copy(waitforSet(channel(handle), mask, may_block));
+    }    
+    public static byte[] waitforSet(YubikeyChannel channel, byte mask, boolean may_block){
+        return waitfor(channel, MODE_AND, mask, may_block, 2);
     }    
     public static byte[] waitfor(DeviceHandle handle, byte mode, byte mask, boolean may_block, int timeout){
+        return copy(waitfor(channel(handle), mode, mask, may_block, timeout));
+    }
+    /**
+     * Polls the device status until the mask bits are set (MODE_AND) or
+     * cleared (MODE_NAND). The channel polling strategy decides when to
+     * poll; the timeout is the time the python-yubico backoff would sleep
+     * for the same number of polls, cut short by the deadline of the call.
+     */
+    public static byte[] waitfor(YubikeyChannel channel, byte mode, byte mask, boolean may_block, int timeout){
         
-        boolean finished = false;
-        int sleep = 10; // in millisecond
+        PollingStrategy strategy = channel.polling;
+        PollingStrategy.Poll poll = channel.poll;
+        long now = System.nanoTime();
+        poll.start(channel, mask, now);
         // After six sleeps, we've slept 0.64 seconds.
         int wait_num = (timeout * 2) - 1 + 6;
-        boolean resp_timeout = false;    // YubiKey hasn't indicated RESP_TIMEOUT (yet)
+        long deadline = now + PollingStrategy.FixedBackoff.budgetNanos(wait_num);
         
-        byte[] data= new byte[_FEATURE_RPT_SIZE];        
-        while (!finished){
-            data = read(handle);
+        sleep(channel, Math.min(strategy.nextDelayNanos(poll), time_left(channel, deadline)));
+        byte[] data;
+        while (true){
+            poll.lastPollNanos = System.nanoTime();
+            data = read(channel);
+            poll.polls++;
+            channel.transactionPolls++;
+            channel.metrics.polls.increment();
             byte flags = data[7];
 
             if ((flags & RESP_TIMEOUT_WAIT_FLAG)!=0){
-                if (!resp_timeout){
-                    resp_timeout = true;
+                if (!poll.touchWait){
+                    poll.touchWait = true;
+                    channel.metrics.touchWaits.increment();
                     int seconds_left = (flags & RESP_TIMEOUT_WAIT_MASK);
-                    debug("Device indicates RESP_TIMEOUT "+seconds_left);
+                    if (DEBUG)
+                        debug("Device indicates RESP_TIMEOUT "+seconds_left);
                     if (may_block){
                         // calculate new wait_num - never more than 20 seconds
                         seconds_left = Math.min(20, seconds_left);
                         wait_num = (seconds_left * 2) - 1 + 6;
+                        deadline = System.nanoTime() + PollingStrategy.FixedBackoff.budgetNanos(wait_num);
                     }
                 }
             }
             
+            boolean finished = false;
             if (mode==MODE_NAND){
                 if (!((flags & mask)==mask))
                     finished = true;
-                else
+                else if (DEBUG)
                     debug("Status "+YubikeyUtil.toHexString(flags)+" has not cleared bits "+YubikeyUtil.toHexString(mask));
             }
             else if (mode==MODE_AND){
                 if ((flags & mask) == mask)
                     finished = true;
-                else
+                else if (DEBUG)
                     debug("Status "+YubikeyUtil.toHexString(flags)+" has not sets bits "+YubikeyUtil.toHexString(mask));
             }
             
-            if (!finished){
-                wait_num -= 1;
-                if (wait_num == 0){
-                    String reason;    
-                    if (mode == MODE_NAND)
-                        throw new YubikeyException("Timed out waiting for YubiKey to clear status"+YubikeyUtil.toHexString(mask));
-                    else
-                        throw new YubikeyException("Timed out waiting for YubiKey to set status"+YubikeyUtil.toHexString(mask));
-                    
-                }
-                try {
-                    MILLISECONDS.sleep(sleep);
-                } catch (InterruptedException ex) {
-                    
+            if (finished){
+                strategy.completed(poll);
+                return data;
+            }
+            
+            long left = time_left(channel, deadline);
+            if (left <= 0){
+                if (mode == MODE_NAND)
+                    throw new YubikeyTimeoutException("Timed out waiting for YubiKey to clear status"+YubikeyUtil.toHexString(mask));
+                else
+                    throw new YubikeyTimeoutException("Timed out waiting for YubiKey to set status"+YubikeyUtil.toHexString(mask));
+            }
+            sleep(channel, Math.min(strategy.nextDelayNanos(poll), left));
+        }
+    }
+    
+    /**
+     * Nanoseconds left before the wait deadline, or before the deadline of
+     * the call if that comes first.
+     */
+    private static long time_left(YubikeyChannel channel, long deadline){
+        long now = System.nanoTime();
+        if (channel.bounded && channel.deadline - deadline < 0){
+            if (channel.deadline - now <= 0)
+                throw new YubikeyTimeoutException("Deadline exceeded waiting for YubiKey");
+            return channel.deadline - now;
+        }
+        return deadline - now;
+    }
+    
+    /**
+     * Sleeps between two polls. Wakes up early and throws when the thread is
+     * interrupted or the channel is marked removed; back to back polls
+     * (nanos <= 0) check both too.
+     */
+    private static void sleep(YubikeyChannel channel, long nanos){
+        Thread current= Thread.currentThread();
+        if (nanos > 0 && !channel.removed){
+            channel.waiter= current;
+            try{
+                long deadline= System.nanoTime()+nanos;
+                while (!channel.removed && !current.isInterrupted()){
+                    long left= deadline-System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    LockSupport.parkNanos(channel, left);
                 }
-                sleep = Math.min(sleep + sleep, 500);
             }
-            else
-                return data;
+            finally{
+                channel.waiter= null;
             }
-        return data;
+        }
+        if (channel.removed)
+            throw new YubikeyException("YubiKey was removed");
+        if (current.isInterrupted())
+            throw new YubikeyException("Interrupted while waiting for YubiKey");
     }
     
     public static void debug(String msg){
@@ -344,101 +893,37 @@ public class YubikeyConnector
             System.out.println(msg);
     }
     
-    public static void main(String[] args)
+    /**
+     * Runs the load generator, see YubikeyLoadGenerator for the options;
+     * "--device --threads 1 --duration 10s" exercises an attached key.
+     */
+    public static void main(String[] args) throws IOException
     {
-        // Initialize the libusb context
-        int result = LibUsb.init(null);
-        if (result != LibUsb.SUCCESS){
-            throw new LibUsbException("Unable to initialize libusb", result);
-        }
-
-        // Search for the missile launcher USB device and stop when not found
-        Device device = findYubikey(PRODUCT_ID_NEO);
-        if (device == null){
-            System.err.println("Yubikey not found.");
-            System.exit(1);
-        }
-
-        // Open the device
-        DeviceHandle handle = new DeviceHandle();
-        result = LibUsb.open(device, handle);
-        if (result != LibUsb.SUCCESS){
-            throw new LibUsbException("Unable to open USB device", result);
-        }
-        try{
-            // Check if kernel driver is attached to the interface
-            int attached = LibUsb.kernelDriverActive(handle, _USB_RECIP_INTERFACE);
-            if (attached < 0 && attached!=LibUsb.ERROR_NOT_SUPPORTED){   
-                //debug("Attach error (not supported on Windows?):"+attached);
-                throw new LibUsbException("Unable to check kernel driver active", result);
-            }
-
-            // Detach kernel driver from interface 0 and 1. This can fail if
-            // kernel is not attached to the device or operating system
-            // doesn't support this operation. These cases are ignored here.
-            result = LibUsb.detachKernelDriver(handle, _USB_RECIP_INTERFACE);
-            if (result != LibUsb.SUCCESS &&
-                result != LibUsb.ERROR_NOT_SUPPORTED &&
-                result != LibUsb.ERROR_NOT_FOUND)
-            {
-                throw new LibUsbException("Unable to detach kernel driver", result);
-            }
-            
-            // Claim interface
-            result = LibUsb.claimInterface(handle, _USB_RECIP_INTERFACE);
-            if (result != LibUsb.SUCCESS){
-                throw new LibUsbException("Unable to claim interface", result);
-            }
-            System.out.println("claimInterface:"+result);
-            
-            // manual challenge-response
-            // sends frame...
-            byte[] frame0= {(byte)0x53, (byte)0x61, (byte)0x6D, (byte)0x70, (byte)0x6C, (byte)0x65, (byte)0x20, (byte)0x80};
-            byte[] frame1= {(byte)0x23, (byte)0x32, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x81};
-            byte[] frame2= {(byte)0x00, (byte)0x38, (byte)0xF8, (byte)0x2A, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x89};
-            raw_write(handle, frame0);
-            raw_write(handle, frame1);
-            raw_write(handle, frame2);
-            // recover & verify hmac+crc
-            byte[] response=read_response(handle, true);
-            System.out.println("Challenge response:"+YubikeyUtil.toHexString(response));
-            byte[] hmac= Arrays.copyOf(response, SHA1_DIGEST_SIZE+2);
-            System.out.println("validate_crc16:"+YubikeyUtil.validate_crc16(hmac));
-            
-            // Challenge-response 
-            byte[] challenge= {(byte)0x53, (byte)0x61, (byte)0x6D, (byte)0x70, (byte)0x6C, (byte)0x65, (byte)0x20, (byte)0x23, (byte)0x32};
-            response= challenge_response(handle, challenge, MODE_HMAC, SLOT_2, false, true);
-            System.out.println("HMAC:"+YubikeyUtil.toHexString(response));
-            
-            // Release the interface
-            result = LibUsb.releaseInterface(handle, _USB_RECIP_INTERFACE);
-            if (result != LibUsb.SUCCESS){
-                debug("releaseInterface():"+result);
-                throw new LibUsbException("Unable to release interface", result);
-            }
-
-            // Re-attach kernel driver if needed
-            if (attached == 1){
-                LibUsb.attachKernelDriver(handle, _USB_RECIP_INTERFACE);
-                if (result != LibUsb.SUCCESS){
-                    throw new LibUsbException("Unable to re-attach kernel driver", result);
-                }
-            }
-
-            System.out.println("Exiting");
-        }
-        finally{
-            LibUsb.close(handle);
-        }
-
-        // Deinitialize the libusb context
-        LibUsb.exit(null);
+        YubikeyLoadGenerator.main(args);
     }
     
     public static class YubikeyException extends RuntimeException {
         YubikeyException(String msg){
             super(msg);
         }
+        YubikeyException(String msg, Throwable cause){
+            super(msg, cause);
+        }
+    }
+    
+    /**
+     * The device did not answer in time: the deadline of the call passed, or
+     * the device stayed busy for longer than the protocol allows.
+     */
+    public static class YubikeyTimeoutException extends YubikeyException {
+        private static final long serialVersionUID = 1L;
+
+        YubikeyTimeoutException(String msg){
+            super(msg);
+        }
+        YubikeyTimeoutException(String msg, Throwable cause){
+            super(msg, cause);
+        }
     }
     
     
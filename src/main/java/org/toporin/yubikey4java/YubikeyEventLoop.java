@@ -0,0 +1,146 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usb4java.Context;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Threads driving AsyncYubikey state machines.
+ *
+ * Every loop has a timer thread running the delayed status polls of its
+ * devices. A libusb loop also owns a libusb context and a thread handling
+ * its events, on which transfer callbacks run; devices opened in that
+ * context complete their transfers there. Hosts with many keys shard the
+ * devices over several loops (see AsyncYubikeyEngine) so that no single
+ * context lock or event thread becomes the bottleneck.
+ *
+ * Tasks run on a loop must not block.
+ */
+public class YubikeyEventLoop implements Closeable {
+
+    // libusb event handling timeout, bounds the time close() waits for the event thread
+    private static final long EVENT_TIMEOUT_MICROS = 100000;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ScheduledExecutorService timer;
+    private final Context context;
+    private final Thread eventThread;
+    private volatile boolean closed;
+
+    /** A loop without libusb context, for in-process transports. */
+    public YubikeyEventLoop(){
+        this(null);
+    }
+
+    private YubikeyEventLoop(Context context){
+        this.context = context;
+        final int id = threadCount.incrementAndGet();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "yubikey-loop-"+id);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (context != null){
+            eventThread = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    handleEvents();
+                }
+            }, "yubikey-usb-events-"+id);
+            eventThread.setDaemon(true);
+            eventThread.start();
+        }
+        else{
+            eventThread = null;
+        }
+    }
+
+    /**
+     * A loop with its own libusb context and event thread. The context is
+     * exited on close().
+     */
+    public static YubikeyEventLoop libusb(){
+        Context context = new Context();
+        int result = LibUsb.init(context);
+        if (result != LibUsb.SUCCESS)
+            throw new LibUsbException("Unable to initialize libusb", result);
+        return new YubikeyEventLoop(context);
+    }
+
+    /** The libusb context of the loop, or null. */
+    public Context getContext(){
+        return context;
+    }
+
+    public void execute(Runnable task){
+        timer.execute(task);
+    }
+
+    public void schedule(Runnable task, long delayNanos){
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the threads. Devices of the loop must be closed first, so that
+     * no transfer is pending when a libusb context is exited.
+     */
+    @Override
+    public void close(){
+        if (closed)
+            return;
+        closed = true;
+        timer.shutdownNow();
+        if (eventThread != null){
+            try{
+                eventThread.join();
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            LibUsb.exit(context);
+        }
+    }
+
+    private void handleEvents(){
+        while (!closed){
+            int result = LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT_MICROS);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED){
+                YubikeyConnector.debug("libusb event handling failed: "+result);
+                return;
+            }
+        }
+    }
+
+}
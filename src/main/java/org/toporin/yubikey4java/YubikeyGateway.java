@@ -0,0 +1,641 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+import org.usb4java.Device;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * TCP gateway giving remote clients access to the keys of this host.
+ *
+ * One selector thread serves every connection with non-blocking sockets.
+ * Requests are decoded as they arrive and handed to the YubikeyScheduler
+ * of the addressed key, so a connection can pipeline many requests to
+ * several keys; responses are written back in completion order and carry
+ * the id of their request. Behind the gateway, each key keeps its own
+ * queue with the coalescing and priorities of the scheduler.
+ *
+ * Backpressure: a request for a key whose queue already holds
+ * maxQueueDepth requests is answered BUSY at once, so that clients shed
+ * load or try another key instead of queueing for seconds. A connection
+ * with maxInFlight requests pending, or with responses the client does not
+ * read, is no longer read from, which pushes back on the client through
+ * TCP flow control.
+ *
+ * Wire format, big-endian. A request is a 12-byte header followed by the
+ * challenge:
+ *
+ *   type(1) id(4) serial(4) slot(1) flags(1) length(1) challenge(length)
+ *
+ * with type CHALLENGE_RESPONSE (HMAC-SHA1) or LIST_DEVICES, serial 0 for
+ * the least loaded key, flags FLAG_VARIABLE, FLAG_MAY_BLOCK and FLAG_BATCH
+ * (Priority.BATCH), and a challenge of at most 64 bytes. A response is
+ *
+ *   status(1) id(4) length(1) data(length)
+ *
+ * holding the HMAC, or for LIST_DEVICES the serials of up to 63 keys.
+ * A request that cannot be framed closes the connection.
+ * YubikeyGatewayClient speaks this protocol.
+ *
+ *   java -cp yubikey4java.jar org.toporin.yubikey4java.YubikeyGateway
+ *       [--port 7140] [--device | --devices 4 [--latency 250us] [--secret hex]]
+ */
+public class YubikeyGateway implements Closeable {
+
+    public static final int DEFAULT_PORT = 7140;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 64;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    // request types
+    static final byte CHALLENGE_RESPONSE = 1;
+    static final byte LIST_DEVICES = 2;
+    // request flags
+    static final byte FLAG_VARIABLE = 0x01;
+    static final byte FLAG_MAY_BLOCK = 0x02;
+    static final byte FLAG_BATCH = 0x04;
+    // response status
+    static final byte OK = 0;
+    static final byte BUSY = 1;
+    static final byte NO_DEVICE = 2;
+    static final byte TIMEOUT = 3;
+    static final byte FAILED = 4;
+    static final byte BAD_REQUEST = 5;
+
+    static final int REQUEST_HEADER_SIZE = 12;
+    static final int RESPONSE_HEADER_SIZE = 6;
+    static final int MAX_LISTED_DEVICES = 63;
+
+    // per connection: room for a few requests, responses grow on demand
+    private static final int IN_BUFFER_SIZE = 512;
+    private static final int OUT_BUFFER_SIZE = 256;
+    // unsent response bytes above which a connection is not read from
+    private static final int OUT_HIGH_WATER = 16384;
+    // accepting stops this long after a failed accept, e.g. when out of descriptors
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final SelectionKey serverKey;
+    private final Thread thread;
+    private final Map<Integer, YubikeyScheduler> devices = new ConcurrentHashMap<Integer, YubikeyScheduler>();
+    // completions posted by the scheduler workers, drained by the selector thread
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private volatile int connections;
+    private volatile boolean closed;
+
+    // selector thread only
+    private final List<Connection> dirty = new ArrayList<Connection>();
+    // nanoTime at which a paused accept resumes, 0 while accepting
+    private long acceptResumeAt;
+
+    /**
+     * Binds the address and starts serving. Keys are added with addDevice.
+     */
+    public YubikeyGateway(InetSocketAddress address) throws IOException{
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try{
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(address, 1024);
+            server.configureBlocking(false);
+            serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException ex){
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                loop();
+            }
+        }, "yubikey-gateway-"+threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Serves a key under its serial number. The scheduler stays owned by
+     * the caller.
+     */
+    public void addDevice(int serial, YubikeyScheduler scheduler){
+        if (serial == 0)
+            throw new IllegalArgumentException("Serial 0 stands for any device");
+        devices.put(serial, scheduler);
+    }
+
+    /** Stops serving a key; its requests in progress still complete. */
+    public void removeDevice(int serial){
+        devices.remove(serial);
+    }
+
+    /** The bound address, with the actual port when bound to port 0. */
+    public InetSocketAddress getLocalAddress() throws IOException{
+        return (InetSocketAddress)server.getLocalAddress();
+    }
+
+    /** Queued requests per key above which requests for it are answered BUSY. */
+    public void setMaxQueueDepth(int maxQueueDepth){
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /** Pending requests per connection above which it is no longer read from. */
+    public void setMaxInFlight(int maxInFlight){
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getConnectionCount(){
+        return connections;
+    }
+
+    /** Challenge-response requests received. */
+    public long getRequestCount(){
+        return requests.sum();
+    }
+
+    /** Requests answered BUSY because their key was saturated. */
+    public long getRejectedCount(){
+        return rejected.sum();
+    }
+
+    /**
+     * Stops serving and closes every connection. Responses of requests in
+     * progress are dropped.
+     */
+    @Override
+    public void close(){
+        if (closed)
+            return;
+        closed = true;
+        selector.wakeup();
+        try{
+            thread.join();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop(){
+        try{
+            while (!closed){
+                long pause = resumeAccept();
+                if (pause > 0)
+                    selector.select(pause);
+                else
+                    selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()){
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection)key.attachment();
+                    if (key.isReadable())
+                        read(connection);
+                    if (key.isValid() && key.isWritable())
+                        flush(connection);
+                }
+                drainCompletions();
+                flushDirty();
+            }
+        }
+        catch (IOException ex){
+            YubikeyConnector.debug("Gateway selector failed: "+ex.getMessage());
+        }
+        finally{
+            for (SelectionKey key: selector.keys()){
+                if (key.attachment() instanceof Connection)
+                    close((Connection)key.attachment());
+            }
+            try{
+                server.close();
+                selector.close();
+            }
+            catch (IOException ex){
+                YubikeyConnector.debug("Error closing gateway: "+ex.getMessage());
+            }
+        }
+    }
+
+    private void accept(){
+        while (true){
+            SocketChannel socket;
+            try{
+                socket = server.accept();
+            }
+            catch (IOException ex){
+                // the listening socket is fine: keep serving the open
+                // connections and retry once some may have closed
+                YubikeyConnector.debug("Gateway accept failed: "+ex.getMessage());
+                serverKey.interestOps(0);
+                acceptResumeAt = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(ACCEPT_PAUSE_MILLIS);
+                return;
+            }
+            if (socket == null)
+                return;
+            try{
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(socket);
+                connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+                connections++;
+            }
+            catch (IOException ex){
+                try{
+                    socket.close();
+                }
+                catch (IOException closeEx){
+                    YubikeyConnector.debug("Error closing gateway connection: "+closeEx.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-enables a paused accept once its pause is over, returning the
+     * milliseconds still to wait, or 0 while accepting.
+     */
+    private long resumeAccept(){
+        if (acceptResumeAt == 0)
+            return 0;
+        long left = TimeUnit.NANOSECONDS.toMillis(acceptResumeAt-System.nanoTime());
+        if (left > 0)
+            return left;
+        acceptResumeAt = 0;
+        serverKey.interestOps(SelectionKey.OP_ACCEPT);
+        return 0;
+    }
+
+    private void read(Connection connection){
+        int n;
+        try{
+            n = connection.socket.read(connection.in);
+        }
+        catch (IOException ex){
+            n = -1;
+        }
+        if (n < 0){
+            close(connection);
+            return;
+        }
+        process(connection);
+    }
+
+    /** Handles the complete requests buffered on a connection, as far as its limits allow. */
+    private void process(Connection connection){
+        ByteBuffer in = connection.in;
+        in.flip();
+        connection.paused = false;
+        while (in.remaining() >= REQUEST_HEADER_SIZE){
+            if (!canRead(connection)){
+                connection.paused = true;
+                break;
+            }
+            int length = in.get(in.position()+REQUEST_HEADER_SIZE-1) & 0xff;
+            if (length > YubikeyConnector.SHA1_MAX_BLOCK_SIZE){
+                close(connection);
+                return;
+            }
+            if (in.remaining() < REQUEST_HEADER_SIZE+length)
+                break;
+            handle(connection, in, length);
+        }
+        in.compact();
+        interest(connection);
+    }
+
+    private void handle(Connection connection, ByteBuffer in, int length){
+        byte type = in.get();
+        int id = in.getInt();
+        int serial = in.getInt();
+        int slot = in.get();
+        byte flags = in.get();
+        in.get();
+        if (type == LIST_DEVICES){
+            in.position(in.position()+length);
+            respond(connection, OK, id, serials());
+            return;
+        }
+        if (type != CHALLENGE_RESPONSE || (slot != 1 && slot != 2)){
+            in.position(in.position()+length);
+            respond(connection, BAD_REQUEST, id, null);
+            return;
+        }
+        byte[] challenge = new byte[length];
+        in.get(challenge);
+        requests.increment();
+        YubikeyScheduler scheduler = (serial == 0) ? leastLoaded() : devices.get(serial);
+        if (scheduler == null){
+            respond(connection, NO_DEVICE, id, null);
+            return;
+        }
+        if (scheduler.getQueueDepth() >= maxQueueDepth){
+            rejected.increment();
+            respond(connection, BUSY, id, null);
+            return;
+        }
+        CompletableFuture<byte[]> future;
+        try{
+            future = scheduler.submit(challenge, YubikeyConnector.MODE_HMAC, slot, (flags & FLAG_VARIABLE) != 0,
+                    (flags & FLAG_MAY_BLOCK) != 0, (flags & FLAG_BATCH) != 0 ? Priority.BATCH : Priority.INTERACTIVE);
+        }
+        catch (YubikeyException ex){
+            respond(connection, FAILED, id, null);
+            return;
+        }
+        connection.inFlight++;
+        future.whenComplete(new Completion(connection, id));
+    }
+
+    private YubikeyScheduler leastLoaded(){
+        YubikeyScheduler best = null;
+        int bestDepth = Integer.MAX_VALUE;
+        for (YubikeyScheduler scheduler: devices.values()){
+            int depth = scheduler.getQueueDepth();
+            if (depth < bestDepth){
+                best = scheduler;
+                bestDepth = depth;
+            }
+        }
+        return best;
+    }
+
+    private byte[] serials(){
+        ByteBuffer out = ByteBuffer.allocate(4*MAX_LISTED_DEVICES);
+        for (Integer serial: devices.keySet()){
+            if (!out.hasRemaining())
+                break;
+            out.putInt(serial);
+        }
+        byte[] data = new byte[out.position()];
+        out.flip();
+        out.get(data);
+        return data;
+    }
+
+    private void drainCompletions(){
+        Completion completion;
+        while ((completion = completions.poll()) != null){
+            Connection connection = completion.connection;
+            if (connection.closed)
+                continue;
+            connection.inFlight--;
+            respond(connection, completion.status, completion.id, completion.response);
+        }
+    }
+
+    private void respond(Connection connection, byte status, int id, byte[] data){
+        int length = (data == null) ? 0 : data.length;
+        ByteBuffer out = connection.out;
+        if (out.remaining() < RESPONSE_HEADER_SIZE+length){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2*out.capacity(), out.position()+RESPONSE_HEADER_SIZE+length));
+            out.flip();
+            grown.put(out);
+            connection.out = out = grown;
+        }
+        out.put(status);
+        out.putInt(id);
+        out.put((byte)length);
+        if (data != null)
+            out.put(data);
+        if (!connection.dirty){
+            connection.dirty = true;
+            dirty.add(connection);
+        }
+    }
+
+    private void flushDirty(){
+        for (int i=0; i<dirty.size(); i++){
+            Connection connection = dirty.get(i);
+            connection.dirty = false;
+            if (!connection.closed)
+                flush(connection);
+        }
+        dirty.clear();
+    }
+
+    private void flush(Connection connection){
+        ByteBuffer out = connection.out;
+        out.flip();
+        try{
+            connection.socket.write(out);
+        }
+        catch (IOException ex){
+            close(connection);
+            return;
+        }
+        out.compact();
+        // drained enough to handle the requests left buffered
+        if (connection.paused && canRead(connection))
+            process(connection);
+        else
+            interest(connection);
+    }
+
+    private boolean canRead(Connection connection){
+        return connection.inFlight < maxInFlight && connection.out.position() < OUT_HIGH_WATER;
+    }
+
+    private void interest(Connection connection){
+        if (connection.closed)
+            return;
+        int ops = canRead(connection) ? SelectionKey.OP_READ : 0;
+        if (connection.out.position() > 0 && !connection.dirty)
+            ops |= SelectionKey.OP_WRITE;
+        if (connection.key.interestOps() != ops)
+            connection.key.interestOps(ops);
+    }
+
+    private void close(Connection connection){
+        if (connection.closed)
+            return;
+        connection.closed = true;
+        connections--;
+        connection.key.cancel();
+        try{
+            connection.socket.close();
+        }
+        catch (IOException ex){
+            YubikeyConnector.debug("Error closing gateway connection: "+ex.getMessage());
+        }
+    }
+
+    // state of a connection, touched by the selector thread only
+    private static final class Connection {
+        final SocketChannel socket;
+        final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+        SelectionKey key;
+        int inFlight;
+        boolean paused;
+        boolean dirty;
+        boolean closed;
+
+        Connection(SocketChannel socket){
+            this.socket = socket;
+        }
+    }
+
+    /** Result of a scheduled request, handed from the scheduler worker to the selector thread. */
+    private final class Completion implements BiConsumer<byte[], Throwable> {
+        final Connection connection;
+        final int id;
+        byte status;
+        byte[] response;
+
+        Completion(Connection connection, int id){
+            this.connection = connection;
+            this.id = id;
+        }
+
+        @Override
+        public void accept(byte[] response, Throwable failure){
+            if (failure == null){
+                status = OK;
+                this.response = response;
+            }
+            else{
+                status = (failure instanceof YubikeyTimeoutException) ? TIMEOUT : FAILED;
+            }
+            completions.add(this);
+            if (wakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
+    }
+
+    /**
+     * Serves the attached keys, or emulated ones, until the process is killed.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException{
+        int port = DEFAULT_PORT;
+        boolean device = false;
+        int count = 1;
+        long latencyNanos = TimeUnit.MICROSECONDS.toNanos(250);
+        byte[] secret = null;
+        for (int i=0; i<args.length; i++){
+            String option = args[i];
+            if (option.equals("--device")){
+                device = true;
+                continue;
+            }
+            if (i+1 >= args.length)
+                usage("Missing value for "+option);
+            String value = args[++i];
+            if (option.equals("--port"))
+                port = Integer.parseInt(value);
+            else if (option.equals("--devices"))
+                count = Integer.parseInt(value);
+            else if (option.equals("--latency"))
+                latencyNanos = YubikeyLoadGenerator.duration(value);
+            else if (option.equals("--secret"))
+                secret = HexCodec.HEX.decode(value);
+            else
+                usage("Unknown option "+option);
+        }
+
+        List<YubikeyTransport> transports = new ArrayList<YubikeyTransport>();
+        if (device){
+            int result = LibUsb.init(null);
+            if (result != LibUsb.SUCCESS)
+                throw new LibUsbException("Unable to initialize libusb", result);
+            for (Device usb: YubikeyConnector.findYubikeys(YubikeyConnector.PRODUCT_ID_NEO)){
+                transports.add(LibUsbTransport.open(usb));
+            }
+        }
+        else{
+            if (secret == null){
+                secret = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+                new Random(0).nextBytes(secret);
+            }
+            for (int i=0; i<count; i++){
+                EmulatedYubikey emulated = new EmulatedYubikey(secret, secret);
+                emulated.setSerial(1000000+i);
+                emulated.setTransferLatency(latencyNanos, TimeUnit.NANOSECONDS);
+                transports.add(emulated);
+            }
+        }
+        YubikeyGateway gateway = new YubikeyGateway(new InetSocketAddress(port));
+        for (YubikeyTransport transport: transports){
+            YubikeyChannel channel = new YubikeyChannel(transport);
+            int serial = YubikeyConnector.read_serial(channel);
+            gateway.addDevice(serial, new YubikeyScheduler(channel));
+            System.out.println("Serving yubikey "+serial);
+        }
+        System.out.println("Listening on "+gateway.getLocalAddress());
+        while (true){
+            Thread.sleep(10000);
+            System.out.println("connections="+gateway.getConnectionCount()+" requests="+gateway.getRequestCount()
+                    +" rejected="+gateway.getRejectedCount());
+        }
+    }
+
+    private static void usage(String message){
+        System.err.println(message);
+        System.err.println("Options: --port 7140, --device | --devices n [--latency 250us] [--secret hex]");
+        System.exit(2);
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+
+/**
+ * Client of a YubikeyGateway, pipelining the requests of any number of
+ * threads over one connection.
+ *
+ * submit() encodes a request, queues it and returns at once; responses are
+ * matched to requests by id on a reader thread, in whatever order the keys
+ * answer. Writes are combined: the thread that gets the write lock sends
+ * every request queued so far in one write, while the others return
+ * without waiting, so a burst from many threads costs a few system calls.
+ * When the gateway stops reading (see its backpressure), the writing
+ * thread blocks in the socket until it resumes; interrupting it then
+ * closes the connection, as for any interruptible channel.
+ *
+ * Errors reported by the gateway fail the future with a YubikeyException,
+ * a YubikeyTimeoutException for a device timeout; a BUSY key has the
+ * message "Yubikey busy" so that callers can retry on another key.
+ */
+public class YubikeyGatewayClient implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final SocketChannel socket;
+    private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<Integer, CompletableFuture<byte[]>>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ConcurrentLinkedQueue<byte[]> outbox = new ConcurrentLinkedQueue<byte[]>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // guarded by writeLock
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Thread reader;
+    private volatile YubikeyException failure;
+
+    private YubikeyGatewayClient(SocketChannel socket){
+        this.socket = socket;
+        reader = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                read();
+            }
+        }, "yubikey-gateway-client-"+threadCount.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static YubikeyGatewayClient connect(InetSocketAddress address) throws IOException{
+        SocketChannel socket = SocketChannel.open();
+        try{
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socket.connect(address);
+        }
+        catch (IOException ex){
+            socket.close();
+            throw ex;
+        }
+        return new YubikeyGatewayClient(socket);
+    }
+
+    /**
+     * Sends an HMAC-SHA1 challenge-response request.
+     *
+     * @param serial
+     *            Serial number of the key, or 0 for the least loaded one.
+     */
+    public CompletableFuture<byte[]> submit(int serial, byte[] challenge, int slot, boolean variable,
+            boolean may_block, Priority priority){
+        if (challenge.length > YubikeyConnector.SHA1_MAX_BLOCK_SIZE)
+            throw new YubikeyException("Unsupported challenge size");
+        int flags = (variable ? YubikeyGateway.FLAG_VARIABLE : 0) | (may_block ? YubikeyGateway.FLAG_MAY_BLOCK : 0)
+                | (priority == Priority.BATCH ? YubikeyGateway.FLAG_BATCH : 0);
+        return send(YubikeyGateway.CHALLENGE_RESPONSE, serial, slot, flags, challenge);
+    }
+
+    /**
+     * Interactive challenge-response, waiting for the result.
+     */
+    public byte[] challenge_response(int serial, byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        if (mode != YubikeyConnector.MODE_HMAC)
+            throw new YubikeyException("Unsupported challenge mode:"+mode);
+        return get(submit(serial, challenge, slot, variable, may_block, Priority.INTERACTIVE));
+    }
+
+    /** Serial numbers of the keys served by the gateway. */
+    public List<Integer> getSerials(){
+        byte[] data = get(send(YubikeyGateway.LIST_DEVICES, 0, 0, 0, new byte[0]));
+        List<Integer> serials = new ArrayList<Integer>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.remaining() >= 4){
+            serials.add(buffer.getInt());
+        }
+        return serials;
+    }
+
+    /** Requests sent and not answered yet. */
+    public int getPendingCount(){
+        return pending.size();
+    }
+
+    /**
+     * Closes the connection. Pending requests fail with a YubikeyException.
+     */
+    @Override
+    public void close() throws IOException{
+        fail(new YubikeyException("Gateway client is closed"));
+        socket.close();
+        try{
+            reader.join();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<byte[]> send(byte type, int serial, int slot, int flags, byte[] data){
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        int id = ids.incrementAndGet();
+        byte[] request = new byte[YubikeyGateway.REQUEST_HEADER_SIZE+data.length];
+        ByteBuffer encoder = ByteBuffer.wrap(request);
+        encoder.put(type);
+        encoder.putInt(id);
+        encoder.putInt(serial);
+        encoder.put((byte)slot);
+        encoder.put((byte)flags);
+        encoder.put((byte)data.length);
+        encoder.put(data);
+        pending.put(id, future);
+        // close() may have failed the pending requests just before
+        YubikeyException failure = this.failure;
+        if (failure != null){
+            pending.remove(id);
+            throw failure;
+        }
+        outbox.add(request);
+        flush();
+        return future;
+    }
+
+    /**
+     * Writes the queued requests unless another thread is doing it. That
+     * thread checks the queue again after releasing the lock, so a request
+     * queued meanwhile is not left behind.
+     */
+    private void flush(){
+        do{
+            if (!writeLock.tryLock())
+                return;
+            try{
+                byte[] request;
+                while ((request = outbox.peek()) != null){
+                    if (writeBuffer.remaining() < request.length)
+                        write();
+                    writeBuffer.put(outbox.poll());
+                }
+                write();
+            }
+            catch (IOException ex){
+                fail(new YubikeyException("Gateway connection lost", ex));
+                outbox.clear();
+            }
+            finally{
+                writeLock.unlock();
+            }
+        } while (!outbox.isEmpty() && failure == null);
+    }
+
+    // called with the write lock held
+    private void write() throws IOException{
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()){
+            socket.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void read(){
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try{
+            while (true){
+                if (socket.read(in) < 0)
+                    throw new EOFException("Gateway closed the connection");
+                in.flip();
+                while (in.remaining() >= YubikeyGateway.RESPONSE_HEADER_SIZE){
+                    int length = in.get(in.position()+YubikeyGateway.RESPONSE_HEADER_SIZE-1) & 0xff;
+                    if (in.remaining() < YubikeyGateway.RESPONSE_HEADER_SIZE+length)
+                        break;
+                    byte status = in.get();
+                    int id = in.getInt();
+                    in.get();
+                    byte[] data = new byte[length];
+                    in.get(data);
+                    complete(id, status, data);
+                }
+                in.compact();
+            }
+        }
+        catch (IOException ex){
+            fail(new YubikeyException("Gateway connection lost", ex));
+        }
+    }
+
+    private void complete(int id, byte status, byte[] data){
+        CompletableFuture<byte[]> future = pending.remove(id);
+        if (future == null)
+            return;
+        switch (status){
+            case YubikeyGateway.OK:
+                future.complete(data);
+                break;
+            case YubikeyGateway.BUSY:
+                future.completeExceptionally(new YubikeyException("Yubikey busy"));
+                break;
+            case YubikeyGateway.NO_DEVICE:
+                future.completeExceptionally(new YubikeyException("No such yubikey"));
+                break;
+            case YubikeyGateway.TIMEOUT:
+                future.completeExceptionally(new YubikeyTimeoutException("Timed out waiting for YubiKey"));
+                break;
+            case YubikeyGateway.BAD_REQUEST:
+                future.completeExceptionally(new YubikeyException("Request rejected by the gateway"));
+                break;
+            default:
+                future.completeExceptionally(new YubikeyException("Challenge-response failed"));
+                break;
+        }
+    }
+
+    private void fail(YubikeyException ex){
+        if (failure == null)
+            failure = ex;
+        for (Integer id: pending.keySet()){
+            CompletableFuture<byte[]> future = pending.remove(id);
+            if (future != null)
+                future.completeExceptionally(ex);
+        }
+    }
+
+    private static byte[] get(CompletableFuture<byte[]> future){
+        try{
+            return future.get();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        catch (ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new YubikeyException("Challenge-response failed", cause);
+        }
+    }
+
+}
@@ -0,0 +1,430 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+import org.usb4java.Device;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Load generator and soak test for challenge-response, against the attached
+ * Yubikeys or in-process emulated ones.
+ *
+ * Worker threads share the devices round robin and cycle through a mix of
+ * slot and padding workloads. Without a target rate each thread sends its
+ * next request as soon as the previous one completes (closed loop) and the
+ * latencies are service times. With --rate the requests are scheduled at
+ * fixed intervals and each latency is measured from the scheduled start,
+ * not from the actual send: a stall delays every request queued behind it
+ * and the histogram records those delays too, which corrects for
+ * coordinated omission.
+ *
+ * Every interval prints throughput, p50/p99/p99.9/max latency, CRC
+ * failures, timeouts and errors. With --log the intervals are written to
+ * &lt;log&gt;.csv and the final distribution to &lt;log&gt;.hgrm in the HdrHistogram
+ * percentile format.
+ *
+ * --deadline bounds every call (see YubikeyClient.challenge_response with a
+ * timeout) and --retry sets the RetryPolicy of the devices (none or fast);
+ * --corrupt flips a bit in that share of the response reports of the
+ * emulated devices, to watch the policy at work.
+ *
+ *   java -cp yubikey4java.jar org.toporin.yubikey4java.YubikeyLoadGenerator
+ *       [--device] [--devices 4] [--latency 250us] [--threads 8] [--rate 200]
+ *       [--duration 10m] [--warmup 10s] [--interval 10s]
+ *       [--mix 1:fixed,2:variable] [--size 32] [--secret hex] [--log run1]
+ *       [--deadline 50ms] [--retry fast] [--corrupt 0.001]
+ */
+public class YubikeyLoadGenerator {
+
+    private boolean device;
+    private int devices = 1;
+    private long latencyNanos = TimeUnit.MICROSECONDS.toNanos(250);
+    private int threads = 1;
+    private double rate;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+    private long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+    private long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+    private int[] mixSlots = {1, 2};
+    private boolean[] mixVariable = {false, true};
+    private int size = 32;
+    private byte[] secret;
+    private String log;
+    private long deadlineNanos;
+    private RetryPolicy retry = RetryPolicy.NONE;
+    private double corruptionRate;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong intervalMax = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder mismatches = new LongAdder();
+    private volatile long measureFrom;
+    private volatile long stopAt;
+
+    public static void main(String[] args) throws IOException{
+        YubikeyLoadGenerator generator = new YubikeyLoadGenerator();
+        try{
+            generator.parse(args);
+        }
+        catch (IllegalArgumentException ex){
+            System.err.println(ex.getMessage());
+            System.err.println("Options: --device | --devices n [--latency 250us], --threads n, --rate ops/s,"
+                    +" --duration 30s, --warmup 5s, --interval 5s, --mix 1:fixed,2:variable, --size bytes,"
+                    +" --secret hex, --log prefix, --deadline 50ms, --retry none|fast, --corrupt rate");
+            System.exit(2);
+        }
+        generator.run(System.out);
+    }
+
+    void parse(String[] args){
+        for (int i=0; i<args.length; i++){
+            String option = args[i];
+            if (option.equals("--device")){
+                device = true;
+                continue;
+            }
+            if (i+1 >= args.length)
+                throw new IllegalArgumentException("Missing value for "+option);
+            String value = args[++i];
+            if (option.equals("--devices"))
+                devices = Integer.parseInt(value);
+            else if (option.equals("--latency"))
+                latencyNanos = duration(value);
+            else if (option.equals("--threads"))
+                threads = Integer.parseInt(value);
+            else if (option.equals("--rate"))
+                rate = Double.parseDouble(value);
+            else if (option.equals("--duration"))
+                durationNanos = duration(value);
+            else if (option.equals("--warmup"))
+                warmupNanos = duration(value);
+            else if (option.equals("--interval"))
+                intervalNanos = duration(value);
+            else if (option.equals("--mix"))
+                mix(value);
+            else if (option.equals("--size"))
+                size = Integer.parseInt(value);
+            else if (option.equals("--secret"))
+                secret = HexCodec.HEX.decode(value);
+            else if (option.equals("--log"))
+                log = value;
+            else if (option.equals("--deadline"))
+                deadlineNanos = duration(value);
+            else if (option.equals("--retry"))
+                retry = retryPolicy(value);
+            else if (option.equals("--corrupt"))
+                corruptionRate = Double.parseDouble(value);
+            else
+                throw new IllegalArgumentException("Unknown option "+option);
+        }
+        if (threads < 1 || devices < 1 || intervalNanos <= 0 || size < 1 || size > YubikeyConnector.SHA1_MAX_BLOCK_SIZE
+                || deadlineNanos < 0 || !(corruptionRate >= 0 && corruptionRate <= 1))
+            throw new IllegalArgumentException("Invalid options");
+        // responses are verified, which needs one padding mode per slot
+        if (!device || secret != null){
+            for (int m=0; m<mixSlots.length; m++){
+                for (int n=0; n<m; n++){
+                    if (mixSlots[m] == mixSlots[n] && mixVariable[m] != mixVariable[n])
+                        throw new IllegalArgumentException("Slot "+mixSlots[m]+" cannot be both fixed and variable");
+                }
+            }
+        }
+    }
+
+    // "1:fixed,2:variable"
+    private void mix(String value){
+        String[] entries = value.split(",");
+        mixSlots = new int[entries.length];
+        mixVariable = new boolean[entries.length];
+        for (int i=0; i<entries.length; i++){
+            String[] parts = entries[i].split(":");
+            mixSlots[i] = Integer.parseInt(parts[0]);
+            if (mixSlots[i] != 1 && mixSlots[i] != 2)
+                throw new IllegalArgumentException("Invalid slot in "+entries[i]);
+            mixVariable[i] = parts.length > 1 && parts[1].equals("variable");
+        }
+    }
+
+    private static RetryPolicy retryPolicy(String value){
+        switch (value){
+            case "none": return RetryPolicy.NONE;
+            case "fast": return RetryPolicy.FAST;
+            default: throw new IllegalArgumentException("Invalid retry policy "+value);
+        }
+    }
+
+    // 30s, 500ms, 250us, 10m, 1h
+    static long duration(String value){
+        String unit = value.replaceAll("[0-9.]", "");
+        double amount = Double.parseDouble(value.substring(0, value.length()-unit.length()));
+        switch (unit){
+            case "us": return (long)(amount*1e3);
+            case "ms": return (long)(amount*1e6);
+            case "": case "s": return (long)(amount*1e9);
+            case "m": return (long)(amount*60e9);
+            case "h": return (long)(amount*3600e9);
+            default: throw new IllegalArgumentException("Invalid duration "+value);
+        }
+    }
+
+    public void run(PrintStream out) throws IOException{
+        List<YubikeyTransport> transports = new ArrayList<YubikeyTransport>();
+        HmacVerifier verifier = null;
+        if (device){
+            int result = LibUsb.init(null);
+            if (result != LibUsb.SUCCESS)
+                throw new LibUsbException("Unable to initialize libusb", result);
+            for (Device usb: YubikeyConnector.findYubikeys(YubikeyConnector.PRODUCT_ID_NEO)){
+                try{
+                    transports.add(LibUsbTransport.open(usb));
+                }
+                catch (LibUsbException ex){
+                    out.println("Skipping device "+usb+": "+ex.getMessage());
+                }
+            }
+            if (transports.isEmpty()){
+                out.println("Yubikey not found.");
+                LibUsb.exit(null);
+                return;
+            }
+        }
+        else{
+            if (secret == null){
+                secret = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+                new Random(0).nextBytes(secret);
+            }
+            for (int i=0; i<devices; i++){
+                EmulatedYubikey emulated = new EmulatedYubikey(secret, secret);
+                for (int m=0; m<mixSlots.length; m++){
+                    emulated.setVariableLength(mixSlots[m], mixVariable[m]);
+                }
+                emulated.setSerial(1000000+i);
+                emulated.setTransferLatency(latencyNanos, TimeUnit.NANOSECONDS);
+                emulated.setCorruptionRate(corruptionRate);
+                transports.add(emulated);
+            }
+        }
+        List<YubikeyClient> clients = new ArrayList<YubikeyClient>();
+        for (YubikeyTransport transport: transports){
+            YubikeyClient client = new YubikeyClient(transport);
+            client.getChannel().setRetryPolicy(retry);
+            clients.add(client);
+        }
+        if (secret != null){
+            verifier = new HmacVerifier();
+            for (YubikeyClient client: clients){
+                for (int m=0; m<mixSlots.length; m++){
+                    verifier.enroll(client.getSerial(), mixSlots[m], secret, mixVariable[m]);
+                }
+            }
+        }
+
+        out.format(Locale.ROOT, "%d %s device(s), %d thread(s), %s, %ds (warmup %ds)%n", clients.size(),
+                device ? "attached" : "emulated", threads, rate > 0 ? "rate "+rate+"/s" : "closed loop",
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        long start = System.nanoTime();
+        measureFrom = start+warmupNanos;
+        stopAt = measureFrom+durationNanos;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t=0; t<threads; t++){
+            final YubikeyClient client = clients.get(t % clients.size());
+            final HmacVerifier check = verifier;
+            final int index = t;
+            Thread worker = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    work(client, check, index);
+                }
+            }, "yubikey-load-"+t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        PrintStream csv = null;
+        if (log != null){
+            csv = new PrintStream(Files.newOutputStream(Paths.get(log+".csv")), true, "UTF-8");
+            csv.println("#[yubikey4java load "+String.join(" ", describe())+"]");
+            csv.println("\"Elapsed_s\",\"Count\",\"Ops_per_s\",\"P50_us\",\"P99_us\",\"P99.9_us\",\"Max_us\",\"CrcFailures\",\"Timeouts\",\"Errors\",\"Mismatches\"");
+        }
+        out.println("elapsed       ops    ops/s   p50(us)   p99(us) p99.9(us)   max(us)   crc  timeouts  errors");
+        LockSupport.parkNanos(measureFrom-System.nanoTime());
+        intervalMax.set(0);
+        LatencyHistogram.Snapshot previous = histogram.snapshot();
+        long previousAt = measureFrom;
+        while (true){
+            long now = System.nanoTime();
+            long wake = Math.min(previousAt+intervalNanos, stopAt);
+            if (wake > now){
+                LockSupport.parkNanos(wake-now);
+                continue;
+            }
+            LatencyHistogram.Snapshot current = histogram.snapshot();
+            LatencyHistogram.Snapshot interval = current.since(previous);
+            long max = intervalMax.getAndSet(0);
+            long crc = 0;
+            for (YubikeyClient client: clients){
+                crc += client.getChannel().getMetrics().getCrcFailures();
+            }
+            double elapsed = (now-measureFrom)/1e9;
+            double opsPerSecond = interval.getCount()*1e9/(now-previousAt);
+            out.format(Locale.ROOT, "%6.0fs %9d %8.0f %9d %9d %9d %9d %5d %9d %7d%n", elapsed, interval.getCount(),
+                    opsPerSecond, micros(interval.getP50Nanos()), micros(interval.getP99Nanos()),
+                    micros(interval.getP999Nanos()), micros(max), crc, timeouts.sum(), errors.sum());
+            if (csv != null)
+                csv.format(Locale.ROOT, "%.3f,%d,%.1f,%d,%d,%d,%d,%d,%d,%d,%d%n", elapsed, interval.getCount(),
+                        opsPerSecond, micros(interval.getP50Nanos()), micros(interval.getP99Nanos()),
+                        micros(interval.getP999Nanos()), micros(max), crc, timeouts.sum(), errors.sum(), mismatches.sum());
+            previous = current;
+            previousAt = now;
+            if (now >= stopAt)
+                break;
+        }
+        for (Thread worker: workers){
+            try{
+                worker.join(TimeUnit.NANOSECONDS.toMillis(intervalNanos)+YubikeyConnector._USB_TIMEOUT_MS);
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        LatencyHistogram.Snapshot total = histogram.snapshot();
+        out.format(Locale.ROOT, "total: %d ops, %.0f ops/s, %s, timeouts=%d errors=%d mismatches=%d%n",
+                total.getCount(), total.getCount()*1e9/durationNanos, total, timeouts.sum(), errors.sum(), mismatches.sum());
+        if (csv != null){
+            csv.close();
+            try (PrintStream hgrm = new PrintStream(Files.newOutputStream(Paths.get(log+".hgrm")), true, "UTF-8")){
+                total.writePercentileDistribution(hgrm, 1e3);
+            }
+            out.println("Wrote "+log+".csv and "+log+".hgrm (microseconds)");
+        }
+        if (device){
+            for (YubikeyTransport transport: transports){
+                try{
+                    ((Closeable)transport).close();
+                }
+                catch (IOException | RuntimeException ex){
+                    out.println("Error closing yubikey: "+ex.getMessage());
+                }
+            }
+            LibUsb.exit(null);
+        }
+    }
+
+    private void work(YubikeyClient client, HmacVerifier verifier, int index){
+        Random random = new Random(index);
+        byte[] challenge = new byte[size];
+        byte[] response = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        int serial = client.getSerial();
+        // each thread sends rate/threads requests per second, the threads staggered
+        long period = rate > 0 ? (long)(threads*1e9/rate) : 0;
+        long next = System.nanoTime()+period*index/threads;
+        int op = index;
+        while (true){
+            long intended;
+            if (period > 0){
+                intended = next;
+                next += period;
+                long wait = intended-System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            else{
+                intended = System.nanoTime();
+            }
+            // a backlog left by an overload is not drained after the end
+            if (intended >= stopAt || System.nanoTime() >= stopAt)
+                return;
+            int m = op++ % mixSlots.length;
+            random.nextBytes(challenge);
+            try{
+                if (deadlineNanos > 0)
+                    client.challenge_response(challenge, YubikeyConnector.MODE_HMAC, mixSlots[m], mixVariable[m], false, response, 0,
+                            deadlineNanos, TimeUnit.NANOSECONDS);
+                else
+                    client.challenge_response(challenge, YubikeyConnector.MODE_HMAC, mixSlots[m], mixVariable[m], false, response, 0);
+                if (verifier != null && !verifier.verify(serial, mixSlots[m], challenge, response))
+                    mismatches.increment();
+            }
+            catch (YubikeyTimeoutException ex){
+                timeouts.increment();
+            }
+            catch (RuntimeException ex){
+                errors.increment();
+            }
+            long now = System.nanoTime();
+            if (intended >= measureFrom){
+                long latency = now-intended;
+                histogram.record(latency);
+                long max = intervalMax.get();
+                while (latency > max && !intervalMax.compareAndSet(max, latency)){
+                    max = intervalMax.get();
+                }
+            }
+        }
+    }
+
+    private List<String> describe(){
+        List<String> options = new ArrayList<String>();
+        options.add(device ? "device" : "emulated devices="+devices+" latency="+latencyNanos+"ns");
+        options.add("threads="+threads);
+        options.add("rate="+rate);
+        options.add("duration="+durationNanos/1000000000L+"s");
+        StringBuilder mix = new StringBuilder("mix=");
+        for (int m=0; m<mixSlots.length; m++){
+            mix.append(m == 0 ? "" : ",").append(mixSlots[m]).append(mixVariable[m] ? ":variable" : ":fixed");
+        }
+        options.add(mix.toString());
+        options.add("size="+size);
+        if (deadlineNanos > 0)
+            options.add("deadline="+micros(deadlineNanos)+"us");
+        options.add("retry="+(retry == RetryPolicy.FAST ? "fast" : "none"));
+        if (corruptionRate > 0)
+            options.add("corrupt="+corruptionRate);
+        return options;
+    }
+
+    private static long micros(long nanos){
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
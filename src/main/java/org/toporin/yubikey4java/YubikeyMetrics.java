@@ -0,0 +1,379 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the protocol path of one channel.
+ *
+ * YubikeyConnector records into the metrics of the channel it works on:
+ * control transfers by direction, status polls, CRC failures, touch-waits
+ * (RESP_TIMEOUT_WAIT_FLAG), YubikeyExceptions, retries of the channel
+ * RetryPolicy, calls that timed out, and the duration of each
+ * challenge-response and of its write, wait-for-response and reset phases.
+ * A YubikeySession adds how often and how fast it (re)opens the device,
+ * a YubikeyScheduler its queue depth and how many requests it coalesced.
+ * Recording does not allocate, so metrics stay on in production. Read them
+ * with snapshot() or through JMX after register().
+ */
+public class YubikeyMetrics implements YubikeyMetricsMXBean {
+
+    public static final String DOMAIN = "org.toporin.yubikey4java";
+
+    final LongAdder transactions = new LongAdder();
+    final LongAdder transfersOut = new LongAdder();
+    final LongAdder transfersIn = new LongAdder();
+    final LongAdder polls = new LongAdder();
+    final LongAdder crcFailures = new LongAdder();
+    final LongAdder touchWaits = new LongAdder();
+    final LongAdder exceptions = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder sessionOpens = new LongAdder();
+    final LongAdder sessionRecoveries = new LongAdder();
+    final LongAdder idleReleases = new LongAdder();
+    final LongAdder scheduledRequests = new LongAdder();
+    final LongAdder coalescedRequests = new LongAdder();
+    volatile int queueDepth;
+
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram write = new LatencyHistogram();
+    final LatencyHistogram wait = new LatencyHistogram();
+    final LatencyHistogram reset = new LatencyHistogram();
+    final LatencyHistogram open = new LatencyHistogram();
+
+    private ObjectName objectName;
+
+    /**
+     * Registers the metrics with the platform MBean server under
+     * org.toporin.yubikey4java:type=YubikeyMetrics,name=&lt;name&gt;.
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(DOMAIN+":type=YubikeyMetrics,name="+ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName == null)
+            return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    public Snapshot snapshot(){
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getTransactions(){
+        return transactions.sum();
+    }
+
+    @Override
+    public long getControlTransfersOut(){
+        return transfersOut.sum();
+    }
+
+    @Override
+    public long getControlTransfersIn(){
+        return transfersIn.sum();
+    }
+
+    @Override
+    public long getStatusPolls(){
+        return polls.sum();
+    }
+
+    @Override
+    public long getCrcFailures(){
+        return crcFailures.sum();
+    }
+
+    @Override
+    public long getTouchWaits(){
+        return touchWaits.sum();
+    }
+
+    @Override
+    public long getExceptions(){
+        return exceptions.sum();
+    }
+
+    @Override
+    public long getRetries(){
+        return retries.sum();
+    }
+
+    @Override
+    public long getTimeouts(){
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getSessionOpens(){
+        return sessionOpens.sum();
+    }
+
+    @Override
+    public long getSessionRecoveries(){
+        return sessionRecoveries.sum();
+    }
+
+    @Override
+    public long getIdleReleases(){
+        return idleReleases.sum();
+    }
+
+    @Override
+    public long getScheduledRequests(){
+        return scheduledRequests.sum();
+    }
+
+    @Override
+    public long getCoalescedRequests(){
+        return coalescedRequests.sum();
+    }
+
+    @Override
+    public double getCoalescingRatio(){
+        return ratio(getCoalescedRequests(), getScheduledRequests());
+    }
+
+    @Override
+    public int getQueueDepth(){
+        return queueDepth;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getChallengeResponseLatency(){
+        return total.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getWriteLatency(){
+        return write.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getWaitLatency(){
+        return wait.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getResetLatency(){
+        return reset.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSessionOpenLatency(){
+        return open.snapshot();
+    }
+
+    @Override
+    public void reset(){
+        transactions.reset();
+        transfersOut.reset();
+        transfersIn.reset();
+        polls.reset();
+        crcFailures.reset();
+        touchWaits.reset();
+        exceptions.reset();
+        retries.reset();
+        timeouts.reset();
+        sessionOpens.reset();
+        sessionRecoveries.reset();
+        idleReleases.reset();
+        scheduledRequests.reset();
+        coalescedRequests.reset();
+        total.reset();
+        write.reset();
+        wait.reset();
+        reset.reset();
+        open.reset();
+    }
+
+    // share of the scheduled requests answered by another request's transaction
+    private static double ratio(long coalesced, long scheduled){
+        return scheduled == 0 ? 0 : (double)coalesced/scheduled;
+    }
+
+    /**
+     * Point in time copy of all the metrics.
+     */
+    public static class Snapshot {
+
+        private final long transactions;
+        private final long transfersOut;
+        private final long transfersIn;
+        private final long polls;
+        private final long crcFailures;
+        private final long touchWaits;
+        private final long exceptions;
+        private final long retries;
+        private final long timeouts;
+        private final long sessionOpens;
+        private final long sessionRecoveries;
+        private final long idleReleases;
+        private final long scheduledRequests;
+        private final long coalescedRequests;
+        private final int queueDepth;
+        private final LatencyHistogram.Snapshot total;
+        private final LatencyHistogram.Snapshot write;
+        private final LatencyHistogram.Snapshot wait;
+        private final LatencyHistogram.Snapshot reset;
+        private final LatencyHistogram.Snapshot open;
+
+        Snapshot(YubikeyMetrics metrics){
+            transactions = metrics.getTransactions();
+            transfersOut = metrics.getControlTransfersOut();
+            transfersIn = metrics.getControlTransfersIn();
+            polls = metrics.getStatusPolls();
+            crcFailures = metrics.getCrcFailures();
+            touchWaits = metrics.getTouchWaits();
+            exceptions = metrics.getExceptions();
+            retries = metrics.getRetries();
+            timeouts = metrics.getTimeouts();
+            sessionOpens = metrics.getSessionOpens();
+            sessionRecoveries = metrics.getSessionRecoveries();
+            idleReleases = metrics.getIdleReleases();
+            scheduledRequests = metrics.getScheduledRequests();
+            coalescedRequests = metrics.getCoalescedRequests();
+            queueDepth = metrics.getQueueDepth();
+            total = metrics.getChallengeResponseLatency();
+            write = metrics.getWriteLatency();
+            wait = metrics.getWaitLatency();
+            reset = metrics.getResetLatency();
+            open = metrics.getSessionOpenLatency();
+        }
+
+        public long getTransactions(){
+            return transactions;
+        }
+
+        public long getControlTransfersOut(){
+            return transfersOut;
+        }
+
+        public long getControlTransfersIn(){
+            return transfersIn;
+        }
+
+        public long getStatusPolls(){
+            return polls;
+        }
+
+        public long getCrcFailures(){
+            return crcFailures;
+        }
+
+        public long getTouchWaits(){
+            return touchWaits;
+        }
+
+        public long getExceptions(){
+            return exceptions;
+        }
+
+        public long getRetries(){
+            return retries;
+        }
+
+        public long getTimeouts(){
+            return timeouts;
+        }
+
+        public long getSessionOpens(){
+            return sessionOpens;
+        }
+
+        public long getSessionRecoveries(){
+            return sessionRecoveries;
+        }
+
+        public long getIdleReleases(){
+            return idleReleases;
+        }
+
+        public long getScheduledRequests(){
+            return scheduledRequests;
+        }
+
+        public long getCoalescedRequests(){
+            return coalescedRequests;
+        }
+
+        public double getCoalescingRatio(){
+            return ratio(coalescedRequests, scheduledRequests);
+        }
+
+        public int getQueueDepth(){
+            return queueDepth;
+        }
+
+        public LatencyHistogram.Snapshot getChallengeResponseLatency(){
+            return total;
+        }
+
+        public LatencyHistogram.Snapshot getWriteLatency(){
+            return write;
+        }
+
+        public LatencyHistogram.Snapshot getWaitLatency(){
+            return wait;
+        }
+
+        public LatencyHistogram.Snapshot getResetLatency(){
+            return reset;
+        }
+
+        public LatencyHistogram.Snapshot getSessionOpenLatency(){
+            return open;
+        }
+
+        @Override
+        public String toString(){
+            return "transactions="+transactions+" out="+transfersOut+" in="+transfersIn
+                    +" polls="+polls+" crcFailures="+crcFailures+" touchWaits="+touchWaits
+                    +" exceptions="+exceptions+" retries="+retries+" timeouts="+timeouts
+                    +"\n  challenge_response: "+total
+                    +"\n  write: "+write
+                    +"\n  wait: "+wait
+                    +"\n  reset: "+reset
+                    +(sessionOpens == 0 ? "" : "\n  session opens="+sessionOpens+" recoveries="+sessionRecoveries
+                            +" idleReleases="+idleReleases+" open: "+open)
+                    +(scheduledRequests == 0 ? "" : "\n  scheduled="+scheduledRequests+" coalesced="+coalescedRequests
+                            +" queueDepth="+queueDepth);
+        }
+
+    }
+
+}
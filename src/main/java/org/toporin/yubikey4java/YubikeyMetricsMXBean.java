@@ -0,0 +1,81 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+/**
+ * JMX view of the YubikeyMetrics of one device.
+ */
+public interface YubikeyMetricsMXBean {
+
+    long getTransactions();
+
+    long getControlTransfersOut();
+
+    long getControlTransfersIn();
+
+    long getStatusPolls();
+
+    long getCrcFailures();
+
+    long getTouchWaits();
+
+    long getExceptions();
+
+    /** Re-reads and re-issues done by the RetryPolicy of the channel. */
+    long getRetries();
+
+    /** Calls that gave up on their deadline or on the device wait budget. */
+    long getTimeouts();
+
+    long getSessionOpens();
+
+    long getSessionRecoveries();
+
+    long getIdleReleases();
+
+    /** Requests submitted to the YubikeyScheduler of the device. */
+    long getScheduledRequests();
+
+    /** Scheduled requests that joined an identical request in flight. */
+    long getCoalescedRequests();
+
+    /** Coalesced over scheduled requests. */
+    double getCoalescingRatio();
+
+    /** Requests waiting in the scheduler queue. */
+    int getQueueDepth();
+
+    LatencyHistogram.Snapshot getChallengeResponseLatency();
+
+    LatencyHistogram.Snapshot getWriteLatency();
+
+    LatencyHistogram.Snapshot getWaitLatency();
+
+    LatencyHistogram.Snapshot getResetLatency();
+
+    LatencyHistogram.Snapshot getSessionOpenLatency();
+
+    void reset();
+
+}
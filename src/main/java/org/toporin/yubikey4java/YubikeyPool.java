@@ -0,0 +1,708 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.usb4java.Device;
+import org.usb4java.LibUsbException;
+
+/**
+ * Load-balances challenge-response over several Yubikeys holding the same
+ * HMAC secret.
+ *
+ * Each key has its own worker thread and queue, so keys work in parallel and
+ * throughput grows with the number of keys. Requests go to the key with the
+ * fewest queued requests. A key whose transport throws a LibUsbException
+ * (typically unplugged) is evicted from the pool and the request is retried
+ * on another key. Keys failing too many consecutive requests with a
+ * YubikeyException are marked unhealthy and only used when no healthy key
+ * is left.
+ *
+ * hedged_challenge_response bounds the tail latency of a slow or wedged key:
+ * when the first key has not answered after the hedge delay (by default the
+ * p95 of the recent response times of the pool), the request is sent to a
+ * second key as well, the first valid response wins and the other request
+ * is cancelled, its key being reset. quorum_challenge_response asks several
+ * keys and only returns a response k of them agree on; keys that disagree
+ * with the quorum, even after it was reached, are counted as mismatches and
+ * no longer used until recheck clears them, which reveals and sets aside a
+ * key provisioned with another secret.
+ */
+public class YubikeyPool implements Closeable {
+
+    public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 3;
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    /** Hedge delay until enough response times were observed. */
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+
+    // responses per re-evaluation of the adaptive hedge delay
+    private static final int HEDGE_WINDOW = 256;
+
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private volatile int maxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+    private volatile boolean closed;
+
+    // time from submission to response, for the adaptive hedge delay
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private LatencyHistogram.Snapshot hedgeBaseline = latency.snapshot();
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile long fixedHedgeDelayNanos = -1;
+    private volatile long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS);
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder quorumMismatches = new LongAdder();
+
+    public YubikeyPool(List<? extends YubikeyTransport> transports){
+        for (YubikeyTransport transport: transports){
+            members.add(new Member(transport));
+        }
+    }
+
+    /**
+     * Opens and claims every attached yubikey matching the product IDs.
+     * Devices that cannot be opened (e.g. claimed by another process) are
+     * skipped. LibUsb must already be initialized.
+     */
+    public static YubikeyPool open(short[] pids){
+        List<LibUsbTransport> transports = new ArrayList<LibUsbTransport>();
+        for (Device device: YubikeyConnector.findYubikeys(pids)){
+            try{
+                transports.add(LibUsbTransport.open(device));
+            }
+            catch (LibUsbException ex){
+                YubikeyConnector.debug("Skipping device "+device+": "+ex.getMessage());
+            }
+        }
+        return new YubikeyPool(transports);
+    }
+
+    /** Number of consecutive YubikeyExceptions after which a key is marked unhealthy. */
+    public void setMaxConsecutiveFailures(int max){
+        maxConsecutiveFailures = max;
+    }
+
+    /**
+     * Hedges after a fixed delay instead of the observed percentile; a
+     * negative delay goes back to the percentile.
+     */
+    public void setHedgeDelay(long delay, TimeUnit unit){
+        fixedHedgeDelayNanos = (delay < 0) ? -1 : unit.toNanos(delay);
+    }
+
+    /** Percentile of the recent response times used as hedge delay. */
+    public void setHedgePercentile(double percentile){
+        if (!(percentile > 0 && percentile <= 100))
+            throw new IllegalArgumentException("Invalid percentile:"+percentile);
+        hedgePercentile = percentile;
+    }
+
+    /** Delay after which hedged_challenge_response asks a second key. */
+    public long getHedgeDelayNanos(){
+        long fixed = fixedHedgeDelayNanos;
+        return (fixed >= 0) ? fixed : hedgeDelayNanos;
+    }
+
+    /** Time from submission to response of the requests of the pool. */
+    public LatencyHistogram.Snapshot getLatency(){
+        return latency.snapshot();
+    }
+
+    /** Requests sent to a second key by hedged_challenge_response. */
+    public long getHedgeCount(){
+        return hedges.sum();
+    }
+
+    /** Hedged requests answered first by the second key. */
+    public long getHedgeWinCount(){
+        return hedgeWins.sum();
+    }
+
+    /** Responses that disagreed with the quorum. */
+    public long getQuorumMismatchCount(){
+        return quorumMismatches.sum();
+    }
+
+    /** Keys currently in the pool. */
+    public List<Member> getMembers(){
+        return Collections.unmodifiableList(members);
+    }
+
+    public int size(){
+        return members.size();
+    }
+
+    /**
+     * Queues a challenge-response on the least busy key.
+     *
+     * @throws YubikeyException if no key is left in the pool
+     */
+    public Future<byte[]> submit(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        while (true){
+            Future<byte[]> future = submit(select(), challenge, mode, slot, variable, may_block, null);
+            if (future != null)
+                return future;
+        }
+    }
+
+    /**
+     * Queues a challenge-response on the given key, posting its outcome (the
+     * response or the exception) to outcomes if not null.
+     *
+     * @return null if the key has been evicted meanwhile
+     */
+    private Future<byte[]> submit(final Member member, final byte[] challenge, final byte mode, final int slot,
+            final boolean variable, final boolean may_block, final Outcomes outcomes){
+        final long submitted = System.nanoTime();
+        member.pending.incrementAndGet();
+        // pending is released when done, which also covers a task cancelled while queued
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>(){
+            @Override
+            public byte[] call(){
+                try{
+                    byte[] response = member.execute(challenge, mode, slot, variable, may_block, submitted);
+                    if (outcomes != null)
+                        outcomes.add(new Outcome(member, response, null));
+                    return response;
+                }
+                catch (RuntimeException ex){
+                    if (outcomes != null)
+                        outcomes.add(new Outcome(member, null, ex));
+                    throw ex;
+                }
+            }
+        }){
+            @Override
+            protected void done(){
+                member.pending.decrementAndGet();
+            }
+        };
+        try{
+            member.executor.execute(task);
+            return task;
+        }
+        catch (RejectedExecutionException ex){
+            // evicted between select() and submit()
+            member.pending.decrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Challenge-response on the least busy key, retried on another key if the
+     * selected one gets evicted.
+     */
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        while (true){
+            Future<byte[]> future = submit(challenge, mode, slot, variable, may_block);
+            try{
+                return future.get();
+            }
+            catch (CancellationException ex){
+                // queued on a key that has been evicted
+            }
+            catch (InterruptedException ex){
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new YubikeyException("Interrupted while waiting for the yubikey");
+            }
+            catch (ExecutionException ex){
+                Throwable cause = ex.getCause();
+                if (cause instanceof LibUsbException)
+                    continue;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Challenge-response on the least busy key, sent to a second key as well
+     * if the first one has not answered within the hedge delay, or failed.
+     * The first response passing its CRC check is returned and the other
+     * request cancelled.
+     *
+     * @throws YubikeyException if both keys failed, or no key is available
+     */
+    public byte[] hedged_challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        Outcomes outcomes = new Outcomes(2);
+        List<Future<byte[]>> attempts = new ArrayList<Future<byte[]>>(2);
+        List<Member> asked = new ArrayList<Member>(2);
+        try{
+            launch(asked, attempts, outcomes, challenge, mode, slot, variable, may_block);
+            RuntimeException failure = null;
+            long delay = getHedgeDelayNanos();
+            boolean hedgeable = true;
+            int received = 0;
+            while (true){
+                Outcome outcome;
+                if (hedgeable && asked.size() < 2){
+                    outcome = outcomes.queue.poll(delay, TimeUnit.NANOSECONDS);
+                    if (outcome == null || outcome.failure != null){
+                        // slow or failed: ask a second key, if there is one
+                        if (launch(asked, attempts, outcomes, challenge, mode, slot, variable, may_block))
+                            hedges.increment();
+                        else
+                            hedgeable = false;
+                    }
+                }
+                else{
+                    outcome = outcomes.queue.take();
+                }
+                if (outcome == null)
+                    continue;
+                received++;
+                if (outcome.response != null){
+                    if (asked.size() > 1 && outcome.member == asked.get(1))
+                        hedgeWins.increment();
+                    return outcome.response;
+                }
+                failure = outcome.failure;
+                if (received >= asked.size())
+                    throw failure;
+            }
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for the yubikey");
+        }
+        finally{
+            for (Future<byte[]> attempt: attempts){
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Challenge-response on n keys (or all of them if fewer), returning once
+     * k of them gave the same response. The requests of the other keys still
+     * complete in the background, keeping those keys busy, so that a slow key
+     * is compared too. Keys answering something else are counted as
+     * mismatches and no longer used until recheck clears them.
+     *
+     * @throws YubikeyException if k keys cannot agree any more, or fewer than
+     *         k keys are available
+     */
+    public byte[] quorum_challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            int k, int n){
+        if (k < 1 || n < k)
+            throw new IllegalArgumentException("Invalid quorum "+k+" of "+n);
+        List<Member> selected = select(n);
+        if (selected.size() < k)
+            throw new YubikeyException("Not enough yubikeys for a quorum of "+k);
+        Outcomes outcomes = new Outcomes(selected.size());
+        List<Future<byte[]>> attempts = new ArrayList<Future<byte[]>>(selected.size());
+        List<Outcome> answers = new ArrayList<Outcome>(selected.size());
+        boolean settled = false;
+        try{
+            for (Member member: selected){
+                Future<byte[]> attempt = submit(member, challenge, mode, slot, variable, may_block, outcomes);
+                if (attempt != null)
+                    attempts.add(attempt);
+            }
+            int failures = 0;
+            for (int received=0; received<attempts.size(); received++){
+                Outcome outcome = outcomes.queue.take();
+                if (outcome.response == null){
+                    failures++;
+                }
+                else{
+                    answers.add(outcome);
+                    byte[] agreed = agreed(answers, k);
+                    if (agreed != null){
+                        outcomes.settle(answers, agreed);
+                        settled = true;
+                        return agreed;
+                    }
+                }
+                // the largest group could still grow to k
+                if (attempts.size()-failures-answers.size()+largestGroup(answers) < k)
+                    break;
+            }
+            throw new YubikeyException("No quorum of "+k+" among "+attempts.size()+" yubikeys ("
+                    +answers.size()+" responses, "+failures+" failures)");
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for the yubikey");
+        }
+        finally{
+            if (!settled){
+                for (Future<byte[]> attempt: attempts){
+                    attempt.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a challenge whose response is known on a key, clearing the
+     * mismatch flag a quorum set on it if the key answers that response.
+     * A flagged key comes back to full use only through this check.
+     *
+     * @return whether the key answered the expected response
+     * @throws YubikeyException if the key failed or left the pool
+     */
+    public boolean recheck(Member member, byte[] challenge, byte mode, int slot, boolean variable, byte[] expected){
+        Future<byte[]> future = submit(member, challenge, mode, slot, variable, false, null);
+        if (future == null)
+            throw new YubikeyException("Yubikey no longer in pool");
+        byte[] response;
+        try{
+            response = future.get();
+        }
+        catch (CancellationException ex){
+            throw new YubikeyException("Yubikey no longer in pool");
+        }
+        catch (InterruptedException ex){
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for the yubikey");
+        }
+        catch (ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        }
+        if (!Arrays.equals(response, expected))
+            return false;
+        member.mismatched = false;
+        return true;
+    }
+
+    // submits on the least busy key not asked yet; false once none is left,
+    // the first attempt having gone out already
+    private boolean launch(List<Member> asked, List<Future<byte[]>> attempts, Outcomes outcomes,
+            byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        while (true){
+            Member member = null;
+            for (Member candidate: select(asked.size()+1)){
+                if (!asked.contains(candidate)){
+                    member = candidate;
+                    break;
+                }
+            }
+            if (member == null){
+                if (asked.isEmpty())
+                    throw new YubikeyException("No yubikey available in pool");
+                return false;
+            }
+            Future<byte[]> attempt = submit(member, challenge, mode, slot, variable, may_block, outcomes);
+            if (attempt != null){
+                asked.add(member);
+                attempts.add(attempt);
+                return true;
+            }
+        }
+    }
+
+    // a response given by k of the answers, or null
+    private static byte[] agreed(List<Outcome> answers, int k){
+        for (Outcome answer: answers){
+            int same = 0;
+            for (Outcome other: answers){
+                if (Arrays.equals(answer.response, other.response))
+                    same++;
+            }
+            if (same >= k)
+                return answer.response;
+        }
+        return null;
+    }
+
+    private static int largestGroup(List<Outcome> answers){
+        int largest = 0;
+        for (Outcome answer: answers){
+            int same = 0;
+            for (Outcome other: answers){
+                if (Arrays.equals(answer.response, other.response))
+                    same++;
+            }
+            largest = Math.max(largest, same);
+        }
+        return largest;
+    }
+
+    private void flagMismatches(List<Outcome> answers, byte[] agreed){
+        for (Outcome answer: answers){
+            if (answer.response != null && !Arrays.equals(answer.response, agreed)){
+                quorumMismatches.increment();
+                answer.member.mismatches.incrementAndGet();
+                answer.member.mismatched = true;
+                YubikeyConnector.debug("Yubikey disagrees with the quorum: "+answer.member.transport);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        closed = true;
+        for (Member member: members){
+            evict(member);
+        }
+    }
+
+    private Member select(){
+        if (closed)
+            throw new YubikeyException("Yubikey pool is closed");
+        Member best = null;
+        int size = members.size();
+        int start = cursor.getAndIncrement();
+        for (int i=0; i<size; i++){
+            Member member;
+            try{
+                member = members.get(Math.abs((start+i) % size));
+            }
+            catch (IndexOutOfBoundsException ex){
+                break;  // concurrent eviction
+            }
+            if (member.isMismatched())
+                continue;
+            if (best == null
+                    || (member.isHealthy() && !best.isHealthy())
+                    || (member.isHealthy() == best.isHealthy() && member.getPending() < best.getPending()))
+                best = member;
+        }
+        if (best == null)
+            throw new YubikeyException("No yubikey available in pool");
+        return best;
+    }
+
+    /** Up to n distinct keys, healthy and least busy first. */
+    private List<Member> select(int n){
+        if (closed)
+            throw new YubikeyException("Yubikey pool is closed");
+        List<Member> candidates = new ArrayList<Member>(members.size());
+        for (Member member: members){
+            if (!member.isMismatched())
+                candidates.add(member);
+        }
+        Collections.sort(candidates, new Comparator<Member>(){
+            @Override
+            public int compare(Member a, Member b){
+                if (a.isHealthy() != b.isHealthy())
+                    return a.isHealthy() ? -1 : 1;
+                return Integer.compare(a.getPending(), b.getPending());
+            }
+        });
+        return candidates.subList(0, Math.min(n, candidates.size()));
+    }
+
+    private void recordLatency(long nanos){
+        latency.record(nanos);
+        if (latency.getCount() % HEDGE_WINDOW == 0)
+            updateHedgeDelay();
+    }
+
+    // percentile of the response times since the last update
+    private synchronized void updateHedgeDelay(){
+        LatencyHistogram.Snapshot current = latency.snapshot();
+        LatencyHistogram.Snapshot window = current.since(hedgeBaseline);
+        if (window.getCount() > 0)
+            hedgeDelayNanos = window.valueAtPercentile(hedgePercentile);
+        hedgeBaseline = current;
+    }
+
+    private void evict(Member member){
+        if (!members.remove(member))
+            return;
+        YubikeyConnector.debug("Evicting yubikey from pool: "+member.transport);
+        for (Runnable queued: member.executor.shutdownNow()){
+            // releases pending through FutureTask.done()
+            ((Future<?>)queued).cancel(false);
+        }
+        if (member.transport instanceof Closeable){
+            try{
+                ((Closeable)member.transport).close();
+            }
+            catch (IOException | RuntimeException ex){
+                YubikeyConnector.debug("Error closing yubikey: "+ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A key of the pool, with its request queue and health counters.
+     */
+    public class Member {
+
+        private final YubikeyTransport transport;
+        private final YubikeyChannel channel;
+        private final ExecutorService executor;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong mismatches = new AtomicLong();
+        private volatile int consecutiveFailures;
+        // set by a quorum, cleared by recheck only
+        private volatile boolean mismatched;
+
+        Member(YubikeyTransport transport){
+            this.transport = transport;
+            this.channel = new YubikeyChannel(transport);
+            this.executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+                @Override
+                public Thread newThread(Runnable r){
+                    Thread thread = new Thread(r, "yubikey-pool-"+threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        byte[] execute(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block, long submitted){
+            try{
+                byte[] response = YubikeyConnector.challenge_response(channel, challenge, mode, slot, variable, may_block);
+                consecutiveFailures = 0;
+                successes.incrementAndGet();
+                recordLatency(System.nanoTime()-submitted);
+                return response;
+            }
+            catch (LibUsbException ex){
+                failures.incrementAndGet();
+                evict(this);
+                throw ex;
+            }
+            catch (YubikeyException ex){
+                if (Thread.currentThread().isInterrupted()){
+                    // cancelled, typically the loser of a hedged request
+                    YubikeyConnector.abort(channel);
+                    throw ex;
+                }
+                failures.incrementAndGet();
+                consecutiveFailures++;
+                throw ex;
+            }
+        }
+
+        public YubikeyTransport getTransport(){
+            return transport;
+        }
+
+        /** Requests queued or running on this key. */
+        public int getPending(){
+            return pending.get();
+        }
+
+        public long getSuccessCount(){
+            return successes.get();
+        }
+
+        public long getFailureCount(){
+            return failures.get();
+        }
+
+        /** Responses of this key that disagreed with a quorum. */
+        public long getMismatchCount(){
+            return mismatches.get();
+        }
+
+        /** Whether a quorum found this key answering another response, and no recheck passed since. */
+        public boolean isMismatched(){
+            return mismatched;
+        }
+
+        public boolean isHealthy(){
+            return !mismatched && consecutiveFailures < maxConsecutiveFailures;
+        }
+
+    }
+
+    /**
+     * Outcomes of the attempts of a hedged or quorum request, queued for the
+     * caller until a quorum settles on a response; those arriving later are
+     * compared to that response instead.
+     */
+    private final class Outcomes {
+        final BlockingQueue<Outcome> queue;
+        private byte[] agreed;
+
+        Outcomes(int capacity){
+            queue = new ArrayBlockingQueue<Outcome>(capacity);
+        }
+
+        void add(Outcome outcome){
+            byte[] settled;
+            synchronized (this){
+                settled = agreed;
+                if (settled == null){
+                    queue.add(outcome);
+                    return;
+                }
+            }
+            flagMismatches(Collections.singletonList(outcome), settled);
+        }
+
+        // compares the answers taken so far and those still queued
+        void settle(List<Outcome> answers, byte[] agreed){
+            List<Outcome> received = new ArrayList<Outcome>(answers);
+            synchronized (this){
+                this.agreed = agreed;
+                queue.drainTo(received);
+            }
+            flagMismatches(received, agreed);
+        }
+    }
+
+    // result of one attempt of a hedged or quorum request
+    private static final class Outcome {
+        final Member member;
+        final byte[] response;
+        final RuntimeException failure;
+
+        Outcome(Member member, byte[] response, RuntimeException failure){
+            this.member = member;
+            this.response = response;
+            this.failure = failure;
+        }
+    }
+
+}
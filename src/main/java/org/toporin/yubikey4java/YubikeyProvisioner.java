@@ -0,0 +1,308 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.toporin.yubikey4java.ProvisioningJournal.State;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.usb4java.Device;
+import org.usb4java.LibUsbException;
+
+/**
+ * Programs an HMAC-SHA1 challenge-response slot on many Yubikeys at once.
+ *
+ * Every device gets its own worker thread, so a batch takes about as long
+ * as programming one key per USB port rather than one key after the other.
+ * For each device the provisioner reads the serial number, skips the key if
+ * the journal already records it as DONE, writes the configuration with the
+ * secret chosen by the SecretProvider, then checks a random test challenge
+ * against the secret before recording the key as DONE. Failures are recorded
+ * too and the batch goes on with the other keys.
+ *
+ * A key left STARTED by an interrupted batch may already carry the new
+ * access code: if the current access code is rejected, the write is retried
+ * with the new one.
+ */
+public class YubikeyProvisioner {
+
+    /** Chooses the secret of each key, e.g. random and escrowed, or derived from a master key. */
+    public interface SecretProvider {
+        byte[] secret(int serial);
+    }
+
+    public enum Status {
+        PROVISIONED,
+        /** Already DONE in the journal. */
+        SKIPPED,
+        FAILED
+    }
+
+    private static final int TEST_CHALLENGE_SIZE = 32;
+
+    private final SecretProvider secrets;
+    private final ProvisioningJournal journal;
+    private final HmacVerifier verifier = new HmacVerifier();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private int slot = YubikeyConnector.SLOT_2;
+    private boolean variable = true;
+    private boolean requireTouch;
+    private byte[] accessCode;
+    private byte[] newAccessCode;
+
+    public YubikeyProvisioner(SecretProvider secrets, ProvisioningJournal journal){
+        this.secrets = secrets;
+        this.journal = journal;
+    }
+
+    /** Slot to program, 2 by default (slot 1 usually holds the factory OTP). */
+    public void setSlot(int slot){
+        if (slot != 1 && slot != 2)
+            throw new IllegalArgumentException("Unsupported slot:"+slot);
+        this.slot = slot;
+    }
+
+    /** Variable length challenges (HMAC_LT64), the default. */
+    public void setVariable(boolean variable){
+        this.variable = variable;
+    }
+
+    /**
+     * Whether the keys wait for a touch before answering. The test challenge
+     * then waits for the operator to touch each key.
+     */
+    public void setRequireTouch(boolean requireTouch){
+        this.requireTouch = requireTouch;
+    }
+
+    /**
+     * @param current access code protecting the slot now, or null
+     * @param next access code set by the new configuration, or null
+     */
+    public void setAccessCodes(byte[] current, byte[] next){
+        this.accessCode = current == null ? null : current.clone();
+        this.newAccessCode = next == null ? null : next.clone();
+    }
+
+    /**
+     * Provisions every attached key matching the product IDs. Keys that
+     * cannot be opened are skipped. LibUsb must already be initialized.
+     */
+    public List<Result> provisionAttached(short[] pids){
+        List<LibUsbTransport> transports = new ArrayList<LibUsbTransport>();
+        for (Device device: YubikeyConnector.findYubikeys(pids)){
+            try{
+                transports.add(LibUsbTransport.open(device));
+            }
+            catch (LibUsbException ex){
+                YubikeyConnector.debug("Skipping device "+device+": "+ex.getMessage());
+            }
+        }
+        try{
+            return provision(transports);
+        }
+        finally{
+            for (Closeable transport: transports){
+                try{
+                    transport.close();
+                }
+                catch (IOException | RuntimeException ex){
+                    YubikeyConnector.debug("Error closing yubikey: "+ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Provisions the devices in parallel, one thread per device.
+     *
+     * @return the outcome for each device, in the order of the transports
+     */
+    public List<Result> provision(List<? extends YubikeyTransport> transports){
+        List<Result> results = new ArrayList<Result>();
+        if (transports.isEmpty())
+            return results;
+        ExecutorService executor = Executors.newFixedThreadPool(transports.size(), new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "yubikey-provision-"+threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try{
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final YubikeyTransport transport: transports){
+                futures.add(executor.submit(new Callable<Result>(){
+                    @Override
+                    public Result call(){
+                        return provision(new YubikeyChannel(transport));
+                    }
+                }));
+            }
+            for (Future<Result> future: futures){
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while provisioning", ex);
+        }
+        catch (ExecutionException ex){
+            throw new YubikeyException("Provisioning failed", ex.getCause());
+        }
+        finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /** Provisions one device. */
+    public Result provision(YubikeyChannel channel){
+        long start = System.nanoTime();
+        int serial;
+        try{
+            serial = YubikeyConnector.read_serial(channel);
+        }
+        catch (RuntimeException ex){
+            return new Result(-1, slot, Status.FAILED, "Unable to read serial: "+ex.getMessage(), System.nanoTime()-start);
+        }
+        State previous = journal.getState(serial, slot);
+        if (previous == State.DONE)
+            return new Result(serial, slot, Status.SKIPPED, null, System.nanoTime()-start);
+
+        byte[] secret = null;
+        YubikeyConfig config = null;
+        try{
+            record(serial, State.STARTED, null);
+            secret = secrets.secret(serial);
+            config = YubikeyConfig.hmacSha1(secret, variable, requireTouch).setAccessCode(newAccessCode);
+            try{
+                YubikeyConnector.write_config(channel, config, slot, accessCode);
+            }
+            catch (YubikeyException ex){
+                if (previous != State.STARTED || newAccessCode == null || Arrays.equals(accessCode, newAccessCode))
+                    throw ex;
+                YubikeyConnector.debug("Retrying key "+serial+" with the new access code");
+                YubikeyConnector.write_config(channel, config, slot, newAccessCode);
+            }
+
+            byte[] challenge = new byte[TEST_CHALLENGE_SIZE];
+            random.nextBytes(challenge);
+            byte[] response = YubikeyConnector.challenge_response(channel, challenge, YubikeyConnector.MODE_HMAC,
+                    slot, variable, requireTouch);
+            verifier.enroll(serial, slot, secret, variable);
+            boolean verified = verifier.verify(serial, slot, challenge, response);
+            verifier.revoke(serial, slot);
+            if (!verified)
+                throw new YubikeyException("Test challenge answered with a wrong response");
+
+            record(serial, State.DONE, null);
+            return new Result(serial, slot, Status.PROVISIONED, null, System.nanoTime()-start);
+        }
+        catch (RuntimeException | IOException ex){
+            String message = ex.getClass().getSimpleName()+": "+ex.getMessage();
+            try{
+                record(serial, State.FAILED, message);
+            }
+            catch (IOException journalEx){
+                message += " (not journaled: "+journalEx.getMessage()+")";
+            }
+            return new Result(serial, slot, Status.FAILED, message, System.nanoTime()-start);
+        }
+        finally{
+            if (secret != null)
+                Arrays.fill(secret, (byte)0);
+            if (config != null)
+                config.clear();
+        }
+    }
+
+    private void record(int serial, State state, String message) throws IOException{
+        journal.record(serial, slot, state, message);
+    }
+
+    /**
+     * Outcome of the provisioning of one device.
+     */
+    public static class Result {
+
+        private final int serial;
+        private final int slot;
+        private final Status status;
+        private final String error;
+        private final long elapsedNanos;
+
+        Result(int serial, int slot, Status status, String error, long elapsedNanos){
+            this.serial = serial;
+            this.slot = slot;
+            this.status = status;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** Serial number of the key, -1 if it could not be read. */
+        public int getSerial(){
+            return serial;
+        }
+
+        public int getSlot(){
+            return slot;
+        }
+
+        public Status getStatus(){
+            return status;
+        }
+
+        /** Why the provisioning failed, or null. */
+        public String getError(){
+            return error;
+        }
+
+        public long getElapsedNanos(){
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString(){
+            return serial+" slot "+slot+": "+status+(error == null ? "" : " ("+error+")")
+                    +" in "+(elapsedNanos/1000000)+"ms";
+        }
+
+    }
+
+}
@@ -0,0 +1,455 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.HotplugCallback;
+import org.usb4java.HotplugCallbackHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Live index of the attached yubikeys.
+ *
+ * The index is kept up to date by libusb hotplug events, handled on a
+ * background thread. Where libusb has no hotplug support the bus is
+ * rescanned periodically instead. Lookups by product ID or serial number
+ * are map lookups and do not touch the bus.
+ *
+ * Channels opened with Entry.openChannel() are marked removed when their
+ * device leaves, so that transactions waiting on them fail at once instead
+ * of polling until the timeout. Listeners are notified on a worker thread,
+ * where they may open the device.
+ *
+ * LibUsb must be initialized (default context) before the registry is
+ * created and exited only after it is closed.
+ */
+public class YubikeyRegistry implements Closeable {
+
+    public static final long DEFAULT_RESCAN_MILLIS = 1000;
+
+    // libusb event handling timeout, bounds the time close() waits for the event thread
+    private static final long EVENT_TIMEOUT_MICROS = 250000;
+    // time close() gives the worker to notify the listeners of pending events
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /** Notified on the registry worker thread when a yubikey arrives or leaves. */
+    public interface Listener {
+        void deviceArrived(Entry entry);
+        void deviceLeft(Entry entry);
+    }
+
+    private final short[] pids;
+    private final boolean resolveSerials;
+    private final Map<Device, Entry> byDevice = new ConcurrentHashMap<Device, Entry>();
+    private final Map<Short, List<Entry>> byProduct = new ConcurrentHashMap<Short, List<Entry>>();
+    private final Map<Integer, Entry> bySerial = new ConcurrentHashMap<Integer, Entry>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService worker;
+    private final boolean hotplug;
+    private HotplugCallbackHandle callbackHandle;
+    private Thread eventThread;
+    private ScheduledExecutorService rescanner;
+    private volatile boolean closed;
+
+    public YubikeyRegistry(short[] pids){
+        this(pids, false, DEFAULT_RESCAN_MILLIS);
+    }
+
+    /**
+     * @param pids
+     *            The product IDs to track.
+     * @param resolveSerials
+     *            Whether to open each arriving device once to read its serial
+     *            number, so that it can be found with findBySerial(). The
+     *            device is claimed for the duration of one transaction.
+     * @param rescanMillis
+     *            Interval of the bus rescan when libusb has no hotplug support.
+     */
+    public YubikeyRegistry(short[] pids, boolean resolveSerials, long rescanMillis){
+        this.pids = pids.clone();
+        this.resolveSerials = resolveSerials;
+        this.worker = Executors.newSingleThreadExecutor(new RegistryThreadFactory());
+        this.hotplug = LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG);
+        if (hotplug){
+            callbackHandle = new HotplugCallbackHandle();
+            int result = LibUsb.hotplugRegisterCallback(null,
+                    LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
+                    LibUsb.HOTPLUG_ENUMERATE, YubikeyConnector.VENDOR_ID, LibUsb.HOTPLUG_MATCH_ANY,
+                    LibUsb.HOTPLUG_MATCH_ANY, new Callback(), null, callbackHandle);
+            if (result != LibUsb.SUCCESS){
+                worker.shutdown();
+                throw new LibUsbException("Unable to register hotplug callback", result);
+            }
+            eventThread = new RegistryThreadFactory().newThread(new Runnable(){
+                @Override
+                public void run(){
+                    handleEvents();
+                }
+            });
+            eventThread.start();
+        }
+        else{
+            rescan();
+            rescanner = Executors.newSingleThreadScheduledExecutor(new RegistryThreadFactory());
+            rescanner.scheduleWithFixedDelay(new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        rescan();
+                    }
+                    catch (RuntimeException ex){
+                        YubikeyConnector.debug("Yubikey rescan failed: "+ex.getMessage());
+                    }
+                }
+            }, rescanMillis, rescanMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Whether the index follows libusb hotplug events rather than rescans. */
+    public boolean isHotplug(){
+        return hotplug;
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    /** An attached yubikey with the given product ID, or null. */
+    public Entry find(short pid){
+        List<Entry> entries = byProduct.get(pid);
+        if (entries != null){
+            for (Entry entry: entries){
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** An attached yubikey with one of the product IDs, tried in order, or null. */
+    public Entry find(short[] pids){
+        for (short pid: pids){
+            Entry entry = find(pid);
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    /** The attached yubikey with the given serial number, or null if unknown. */
+    public Entry findBySerial(int serial){
+        return bySerial.get(serial);
+    }
+
+    /** The attached yubikeys. */
+    public List<Entry> getEntries(){
+        return Collections.unmodifiableList(new ArrayList<Entry>(byDevice.values()));
+    }
+
+    public int size(){
+        return byDevice.size();
+    }
+
+    /**
+     * Stops tracking devices. Channels already opened stay usable; entries
+     * are released. Departures already queued are still notified, on the
+     * worker or, if it does not finish in time, on the calling thread, and
+     * their devices unreferenced; queued arrivals are dropped.
+     */
+    @Override
+    public void close(){
+        if (closed)
+            return;
+        closed = true;
+        boolean interrupted = false;
+        try{
+            if (hotplug){
+                LibUsb.hotplugDeregisterCallback(null, callbackHandle);
+                eventThread.join();
+            }
+            else{
+                rescanner.shutdownNow();
+                rescanner.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            worker.shutdown();
+            worker.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex){
+            interrupted = true;
+        }
+        // tasks still queued hold device references
+        for (Runnable task: worker.shutdownNow()){
+            task.run();
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        for (Entry entry: byDevice.values()){
+            unindex(entry);
+            LibUsb.unrefDevice(entry.device);
+        }
+        byDevice.clear();
+    }
+
+    private void handleEvents(){
+        while (!closed){
+            int result = LibUsb.handleEventsTimeout(null, EVENT_TIMEOUT_MICROS);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED){
+                YubikeyConnector.debug("libusb event handling failed: "+result);
+                return;
+            }
+        }
+    }
+
+    // full enumeration, only used without hotplug support
+    private synchronized void rescan(){
+        if (closed)
+            return;
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(null, list);
+        if (result < 0)
+            throw new LibUsbException("Unable to get device list", result);
+        try{
+            Set<Device> seen = new HashSet<Device>();
+            for (Device device: list){
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) < 0)
+                    continue;
+                if (descriptor.idVendor() != YubikeyConnector.VENDOR_ID
+                        || !YubikeyConnector.contains(pids, descriptor.idProduct()))
+                    continue;
+                seen.add(device);
+                if (!byDevice.containsKey(device))
+                    arrived(device, descriptor.idProduct());
+            }
+            for (Entry entry: byDevice.values()){
+                if (!seen.contains(entry.device))
+                    left(entry.device);
+            }
+        }
+        finally{
+            LibUsb.freeDeviceList(list, true);
+        }
+    }
+
+    private void arrived(Device device, short pid){
+        if (closed)
+            return;
+        final Entry entry = new Entry(LibUsb.refDevice(device), pid);
+        if (byDevice.putIfAbsent(device, entry) != null){
+            LibUsb.unrefDevice(device);
+            return;
+        }
+        List<Entry> entries = byProduct.get(pid);
+        if (entries == null){
+            byProduct.putIfAbsent(pid, new CopyOnWriteArrayList<Entry>());
+            entries = byProduct.get(pid);
+        }
+        entries.add(entry);
+        YubikeyConnector.debug("Yubikey arrived: "+entry);
+        execute(new Runnable(){
+            @Override
+            public void run(){
+                if (closed)
+                    return;
+                if (resolveSerials)
+                    resolveSerial(entry);
+                for (Listener listener: listeners){
+                    listener.deviceArrived(entry);
+                }
+            }
+        });
+    }
+
+    private void left(Device device){
+        final Entry entry = byDevice.remove(device);
+        if (entry == null)
+            return;
+        YubikeyConnector.debug("Yubikey left: "+entry);
+        unindex(entry);
+        boolean queued = execute(new Runnable(){
+            @Override
+            public void run(){
+                for (Listener listener: listeners){
+                    listener.deviceLeft(entry);
+                }
+                LibUsb.unrefDevice(entry.device);
+            }
+        });
+        if (!queued)
+            LibUsb.unrefDevice(entry.device);
+    }
+
+    // marks the entry detached, fails its channels and drops it from the lookup maps
+    private void unindex(Entry entry){
+        entry.attached = false;
+        for (YubikeyChannel channel: entry.channels){
+            channel.markRemoved();
+        }
+        List<Entry> entries = byProduct.get(entry.productId);
+        if (entries != null)
+            entries.remove(entry);
+        if (entry.serial >= 0)
+            bySerial.remove(entry.serial, entry);
+    }
+
+    private void resolveSerial(Entry entry){
+        try (LibUsbTransport transport = LibUsbTransport.open(entry.device)){
+            int serial = YubikeyConnector.read_serial(new YubikeyChannel(transport));
+            entry.serial = serial;
+            if (entry.attached)
+                bySerial.put(serial, entry);
+        }
+        catch (RuntimeException ex){
+            YubikeyConnector.debug("Unable to read serial of "+entry+": "+ex.getMessage());
+        }
+    }
+
+    private boolean execute(Runnable task){
+        try{
+            worker.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException ex){
+            // registry closed
+            return false;
+        }
+    }
+
+    private class Callback implements HotplugCallback {
+        @Override
+        public int processEvent(Context context, Device device, int event, Object userData){
+            // only non-blocking libusb calls are allowed here
+            if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED){
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS
+                        && YubikeyConnector.contains(pids, descriptor.idProduct()))
+                    arrived(device, descriptor.idProduct());
+            }
+            else if (event == LibUsb.HOTPLUG_EVENT_DEVICE_LEFT){
+                left(device);
+            }
+            return 0;   // stay registered
+        }
+    }
+
+    private class RegistryThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r){
+            Thread thread = new Thread(r, "yubikey-registry-"+threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * An attached yubikey.
+     */
+    public class Entry {
+
+        private final Device device;
+        private final short productId;
+        private final int bus;
+        private final int address;
+        private final List<YubikeyChannel> channels = new CopyOnWriteArrayList<YubikeyChannel>();
+        private volatile int serial = -1;
+        private volatile boolean attached = true;
+
+        Entry(Device device, short productId){
+            this.device = device;
+            this.productId = productId;
+            this.bus = LibUsb.getBusNumber(device);
+            this.address = LibUsb.getDeviceAddress(device);
+        }
+
+        /**
+         * Opens and claims the device. The channel is marked removed when the
+         * device leaves; release it with release(channel).
+         */
+        public YubikeyChannel openChannel(){
+            YubikeyChannel channel = new YubikeyChannel(LibUsbTransport.open(device));
+            channels.add(channel);
+            if (!attached)
+                channel.markRemoved();
+            return channel;
+        }
+
+        /** Closes a channel returned by openChannel(). */
+        public void release(YubikeyChannel channel){
+            if (channels.remove(channel))
+                ((LibUsbTransport)channel.getTransport()).close();
+        }
+
+        public Device getDevice(){
+            return device;
+        }
+
+        public short getProductId(){
+            return productId;
+        }
+
+        /** The serial number, or -1 if not resolved. */
+        public int getSerial(){
+            return serial;
+        }
+
+        /** False once the device has left. */
+        public boolean isAttached(){
+            return attached;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Yubikey %04x:%04x bus %03d device %03d%s",
+                    YubikeyConnector.VENDOR_ID & 0xffff, productId & 0xffff, bus, address,
+                    serial >= 0 ? " serial "+serial : "");
+        }
+
+    }
+
+}
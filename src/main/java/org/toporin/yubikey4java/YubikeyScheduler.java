@@ -0,0 +1,391 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+
+/**
+ * Per-device queue of challenge-response requests, run one at a time by a
+ * worker thread.
+ *
+ * Identical requests (same slot, mode, padded challenge and may_block)
+ * waiting or running at the same time share one USB transaction: a login
+ * storm asking a key the same challenge costs one round trip, and every
+ * caller gets its own copy of the response.
+ *
+ * Requests are picked by priority class: INTERACTIVE before BATCH, with
+ * one BATCH request let through every BATCH_SHARE interactive ones while
+ * both are waiting, so batch work slows down but never stalls. Within a
+ * class, requests that may block on a touch (up to 15 seconds) only run
+ * when no non-blocking request is waiting, or after NON_BLOCKING_BURST
+ * non-blocking ones in a row, so touch waits neither starve quick requests
+ * nor wait forever behind them.
+ *
+ * Queue depth and coalescing counts go to the metrics of the channel.
+ */
+public class YubikeyScheduler implements Closeable {
+
+    /** Priority classes, highest first. */
+    public enum Priority {
+        INTERACTIVE,
+        BATCH
+    }
+
+    /** Interactive requests served for each batch request when both wait. */
+    public static final int BATCH_SHARE = 8;
+    /** Non-blocking requests served in a row before a waiting may_block one. */
+    public static final int NON_BLOCKING_BURST = 4;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final YubikeyChannel channel;
+    private final YubikeyMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // queue of priority p for non-blocking (2p) and may_block (2p+1) requests
+    private final List<ArrayDeque<Request>> queues = new ArrayList<ArrayDeque<Request>>();
+    private final Map<Key, Request> inFlight = new HashMap<Key, Request>();
+    private int queued;
+    private int interactiveStreak;
+    private final int[] nonBlockingStreak = new int[Priority.values().length];
+    private boolean closed;
+
+    public YubikeyScheduler(YubikeyChannel channel){
+        this.channel = channel;
+        this.metrics = channel.getMetrics();
+        for (int i=0; i<2*Priority.values().length; i++){
+            queues.add(new ArrayDeque<Request>());
+        }
+        Thread worker = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                work();
+            }
+        }, "yubikey-scheduler-"+threadCount.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public YubikeyScheduler(YubikeyTransport transport){
+        this(new YubikeyChannel(transport));
+    }
+
+    public YubikeyChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * Queues a challenge-response, or joins an identical one already queued
+     * or running. Joining a queued request of a lower class promotes it.
+     * Cancelling the returned future only detaches this caller.
+     *
+     * @throws YubikeyException if the challenge is invalid or the scheduler closed
+     */
+    public CompletableFuture<byte[]> submit(byte[] challenge, byte mode, int slot, boolean variable,
+            boolean may_block, Priority priority){
+        YubikeyConnector.check_challenge(challenge, mode, slot);
+        byte[] payload = new byte[YubikeyConnector.SHA1_MAX_BLOCK_SIZE];
+        YubikeyConnector.pad_challenge(challenge, variable, payload, 0);
+        Key key = new Key(payload, mode, slot, may_block);
+        CompletableFuture<byte[]> waiter = new CompletableFuture<byte[]>();
+
+        lock.lock();
+        try{
+            if (closed)
+                throw new YubikeyException("Yubikey scheduler is closed");
+            metrics.scheduledRequests.increment();
+            Request request = inFlight.get(key);
+            if (request != null){
+                metrics.coalescedRequests.increment();
+                request.waiters.add(waiter);
+                if (request.queued && priority.ordinal() < request.priority.ordinal()){
+                    queue(request).remove(request);
+                    request.priority = priority;
+                    queue(request).add(request);
+                }
+                return waiter;
+            }
+            request = new Request(key, challenge.clone(), variable, priority);
+            request.waiters.add(waiter);
+            inFlight.put(key, request);
+            queue(request).add(request);
+            queued++;
+            metrics.queueDepth = queued;
+            notEmpty.signal();
+            return waiter;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Interactive challenge-response, waiting for the result.
+     */
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        return challenge_response(challenge, mode, slot, variable, may_block, Priority.INTERACTIVE);
+    }
+
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            Priority priority){
+        CompletableFuture<byte[]> future = submit(challenge, mode, slot, variable, may_block, priority);
+        try{
+            return future.get();
+        }
+        catch (InterruptedException ex){
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        catch (ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new YubikeyException("Challenge-response failed", cause);
+        }
+    }
+
+    /** Requests waiting, not counting the running one. */
+    public int getQueueDepth(){
+        lock.lock();
+        try{
+            return queued;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth(Priority priority){
+        lock.lock();
+        try{
+            return queues.get(2*priority.ordinal()).size()+queues.get(2*priority.ordinal()+1).size();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the worker once the running request completes. Queued requests
+     * fail with a YubikeyException.
+     */
+    @Override
+    public void close(){
+        List<Request> dropped = new ArrayList<Request>();
+        lock.lock();
+        try{
+            if (closed)
+                return;
+            closed = true;
+            for (ArrayDeque<Request> queue: queues){
+                for (Request request: queue){
+                    inFlight.remove(request.key);
+                    dropped.add(request);
+                }
+                queue.clear();
+            }
+            queued = 0;
+            metrics.queueDepth = 0;
+            notEmpty.signal();
+        }
+        finally{
+            lock.unlock();
+        }
+        for (Request request: dropped){
+            request.fail(new YubikeyException("Yubikey scheduler is closed"));
+        }
+    }
+
+    private ArrayDeque<Request> queue(Request request){
+        return queues.get(2*request.priority.ordinal()+(request.key.may_block ? 1 : 0));
+    }
+
+    private void work(){
+        while (true){
+            Request request;
+            lock.lock();
+            try{
+                while (queued == 0 && !closed){
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queued == 0)
+                    return;
+                request = next();
+                request.queued = false;
+                queued--;
+                metrics.queueDepth = queued;
+                if (request.abandoned()){
+                    inFlight.remove(request.key);
+                    continue;
+                }
+            }
+            finally{
+                lock.unlock();
+            }
+            byte[] response = null;
+            RuntimeException failure = null;
+            try{
+                response = YubikeyConnector.challenge_response(channel, request.challenge, request.key.mode,
+                        request.key.slot, request.variable, request.key.may_block);
+            }
+            catch (RuntimeException ex){
+                // checked on submit, so the transaction had started: reset
+                // the device before the next request like the other front ends
+                failure = ex;
+                YubikeyConnector.abort(channel);
+            }
+            // no waiter can join once retired, the list below is final
+            retire(request);
+            if (failure != null)
+                request.fail(failure);
+            else
+                request.complete(response);
+        }
+    }
+
+    // called with the lock held
+    private Request next(){
+        ArrayDeque<Request> interactive = any(Priority.INTERACTIVE);
+        ArrayDeque<Request> batch = any(Priority.BATCH);
+        if (interactive != null && (batch == null || interactiveStreak < BATCH_SHARE)){
+            interactiveStreak++;
+            return pick(Priority.INTERACTIVE);
+        }
+        interactiveStreak = 0;
+        return pick(Priority.BATCH);
+    }
+
+    private ArrayDeque<Request> any(Priority priority){
+        ArrayDeque<Request> nonBlocking = queues.get(2*priority.ordinal());
+        if (!nonBlocking.isEmpty())
+            return nonBlocking;
+        ArrayDeque<Request> blocking = queues.get(2*priority.ordinal()+1);
+        return blocking.isEmpty() ? null : blocking;
+    }
+
+    private Request pick(Priority priority){
+        int p = priority.ordinal();
+        ArrayDeque<Request> nonBlocking = queues.get(2*p);
+        ArrayDeque<Request> blocking = queues.get(2*p+1);
+        if (!nonBlocking.isEmpty() && (blocking.isEmpty() || nonBlockingStreak[p] < NON_BLOCKING_BURST)){
+            nonBlockingStreak[p]++;
+            return nonBlocking.poll();
+        }
+        nonBlockingStreak[p] = 0;
+        return blocking.poll();
+    }
+
+    private void retire(Request request){
+        lock.lock();
+        try{
+            inFlight.remove(request.key);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    private static final class Request {
+        final Key key;
+        final byte[] challenge;
+        final boolean variable;
+        Priority priority;
+        boolean queued = true;
+        // guarded by the scheduler lock until retired
+        final List<CompletableFuture<byte[]>> waiters = new ArrayList<CompletableFuture<byte[]>>(1);
+
+        Request(Key key, byte[] challenge, boolean variable, Priority priority){
+            this.key = key;
+            this.challenge = challenge;
+            this.variable = variable;
+            this.priority = priority;
+        }
+
+        // all the callers cancelled while queued, called with the lock held
+        boolean abandoned(){
+            for (CompletableFuture<byte[]> waiter: waiters){
+                if (!waiter.isDone())
+                    return false;
+            }
+            return true;
+        }
+
+        void complete(byte[] response){
+            for (int i=0; i<waiters.size(); i++){
+                waiters.get(i).complete(i == 0 ? response : response.clone());
+            }
+        }
+
+        void fail(RuntimeException ex){
+            for (CompletableFuture<byte[]> waiter: waiters){
+                waiter.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static final class Key {
+        final byte[] payload;
+        final byte mode;
+        final int slot;
+        final boolean may_block;
+        final int hash;
+
+        Key(byte[] payload, byte mode, int slot, boolean may_block){
+            this.payload = payload;
+            this.mode = mode;
+            this.slot = slot;
+            this.may_block = may_block;
+            this.hash = 31*(31*(31*Arrays.hashCode(payload)+mode)+slot)+(may_block ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return mode == other.mode && slot == other.slot && may_block == other.may_block
+                    && Arrays.equals(payload, other.payload);
+        }
+    }
+
+}
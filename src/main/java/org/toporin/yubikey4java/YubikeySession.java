@@ -0,0 +1,352 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.usb4java.Device;
+import org.usb4java.LibUsbException;
+
+/**
+ * Long-lived session with one Yubikey.
+ *
+ * The device is opened and its interface claimed on first use, then kept
+ * claimed across calls: the per-request open, kernel driver detach, claim,
+ * release, reattach and close of YubikeyConnector.main is paid once. The
+ * handle is released (and the kernel driver reattached) only after the
+ * session stayed idle for the idle timeout, or on close(); the next call
+ * reopens it.
+ *
+ * A transient LibUsbException (anything but the device being gone or
+ * inaccessible) releases the handle, reclaims the interface and retries
+ * the challenge-response. Calls are serialized by a fair lock as in
+ * YubikeyClient.
+ *
+ * Open latency and call latency are reported separately in the channel
+ * metrics (getSessionOpenLatency and getChallengeResponseLatency).
+ */
+public class YubikeySession implements Closeable {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 1;
+
+    /** Opens and claims the device; the transport is closed on release if Closeable. */
+    public interface Opener {
+        YubikeyTransport open();
+    }
+
+    private final Opener opener;
+    private final YubikeyChannel channel;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    // guarded by lock
+    private YubikeyTransport transport;
+    private boolean closed;
+    // written by the timer too when the session is busy
+    private volatile ScheduledFuture<?> idleCheck;
+    private volatile long lastUse;
+
+    public YubikeySession(Opener opener){
+        this.opener = opener;
+        this.channel = new YubikeyChannel(new SessionTransport());
+    }
+
+    /**
+     * A session on a libusb device. The device is opened at once, so that
+     * open errors are reported here.
+     */
+    public static YubikeySession open(final Device device){
+        YubikeySession session = new YubikeySession(new Opener(){
+            @Override
+            public YubikeyTransport open(){
+                return LibUsbTransport.open(device);
+            }
+        });
+        session.lock.lock();
+        try{
+            session.ensureOpen();
+        }
+        finally{
+            session.lock.unlock();
+        }
+        return session;
+    }
+
+    /** Idle time after which the device is released; 0 keeps it claimed until close(). */
+    public void setIdleTimeout(long timeout, TimeUnit unit){
+        idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /** Retries of a challenge-response after a transient LibUsbException. */
+    public void setMaxRetries(int maxRetries){
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * The channel of the session. Use it directly only while no other thread
+     * uses this session.
+     */
+    public YubikeyChannel getChannel(){
+        return channel;
+    }
+
+    public YubikeyMetrics getMetrics(){
+        return channel.metrics;
+    }
+
+    /** Whether the device is currently claimed. */
+    public boolean isOpen(){
+        lock.lock();
+        try{
+            return transport != null;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** The device serial number, read from the device on first use. */
+    public int getSerial(){
+        int serial = channel.serial;
+        if (serial >= 0)
+            return serial;
+        acquire();
+        try{
+            if (channel.serial < 0)
+                YubikeyConnector.read_serial(channel);
+            return channel.serial;
+        }
+        finally{
+            done();
+        }
+    }
+
+    public byte[] challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block){
+        byte[] response = new byte[YubikeyConnector.SHA1_DIGEST_SIZE];
+        challenge_response(challenge, mode, slot, variable, may_block, response, 0);
+        return response;
+    }
+
+    public int challenge_response(byte[] challenge, byte mode, int slot, boolean variable, boolean may_block,
+            byte[] out, int outOff){
+        // invalid arguments fail before anything is sent, without a reset
+        YubikeyConnector.check_challenge(challenge, mode, slot);
+        acquire();
+        boolean success = false;
+        try{
+            int retries = 0;
+            while (true){
+                try{
+                    // open outside of the call latency
+                    ensureOpen();
+                    int len = YubikeyConnector.challenge_response(channel, challenge, mode, slot, variable, may_block, out, outOff);
+                    success = true;
+                    return len;
+                }
+                catch (LibUsbException ex){
+                    release(false);
+                    if (!RetryPolicy.isTransient(ex) || retries++ >= maxRetries)
+                        throw ex;
+                    YubikeyConnector.debug("Reclaiming yubikey after: "+ex.getMessage());
+                    channel.metrics.sessionRecoveries.increment();
+                }
+            }
+        }
+        finally{
+            if (!success && transport != null)
+                YubikeyConnector.abort(channel);
+            done();
+        }
+    }
+
+    /**
+     * Releases the device and ends the session.
+     */
+    @Override
+    public void close(){
+        lock.lock();
+        try{
+            closed = true;
+            release(true);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    private void acquire(){
+        try{
+            lock.lockInterruptibly();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new YubikeyException("Interrupted while waiting for YubiKey", ex);
+        }
+        if (closed){
+            lock.unlock();
+            throw new YubikeyException("Yubikey session is closed");
+        }
+    }
+
+    // called with the lock held
+    private void done(){
+        lastUse = System.nanoTime();
+        lock.unlock();
+    }
+
+    // called with the lock held
+    private YubikeyTransport ensureOpen(){
+        if (transport == null){
+            if (closed)
+                throw new YubikeyException("Yubikey session is closed");
+            long start = System.nanoTime();
+            transport = opener.open();
+            channel.metrics.open.record(System.nanoTime()-start);
+            channel.metrics.sessionOpens.increment();
+            lastUse = System.nanoTime();
+            scheduleIdleCheck(idleTimeoutNanos);
+        }
+        return transport;
+    }
+
+    /**
+     * Closes the transport, if open. A clean release first sends the reset
+     * still pending from a lean transaction; otherwise errors are ignored.
+     */
+    private void release(boolean clean){
+        ScheduledFuture<?> idleCheck = this.idleCheck;
+        if (idleCheck != null){
+            idleCheck.cancel(false);
+            this.idleCheck = null;
+        }
+        if (transport == null)
+            return;
+        try{
+            if (clean && channel.resetPending)
+                YubikeyConnector.flush_reset(channel);
+        }
+        catch (RuntimeException ex){
+            YubikeyConnector.debug("Reset before release failed: "+ex.getMessage());
+        }
+        finally{
+            YubikeyTransport released = transport;
+            transport = null;
+            if (released instanceof Closeable){
+                try{
+                    ((Closeable)released).close();
+                }
+                catch (Exception ex){
+                    YubikeyConnector.debug("Error closing yubikey: "+ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void scheduleIdleCheck(long delayNanos){
+        if (idleTimeoutNanos <= 0)
+            return;
+        idleCheck = IdleTimer.TIMER.schedule(new Runnable(){
+            @Override
+            public void run(){
+                checkIdle();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void checkIdle(){
+        if (!lock.tryLock()){
+            // in use: check again one timeout later, without blocking the
+            // timer shared by all sessions
+            scheduleIdleCheck(idleTimeoutNanos);
+            return;
+        }
+        try{
+            if (transport == null)
+                return;
+            long idle = System.nanoTime()-lastUse;
+            long timeout = idleTimeoutNanos;
+            if (timeout > 0 && idle >= timeout && !lock.hasQueuedThreads()){
+                YubikeyConnector.debug("Releasing idle yubikey");
+                channel.metrics.idleReleases.increment();
+                release(true);
+            }
+            else{
+                scheduleIdleCheck(Math.max(timeout-idle, TimeUnit.MILLISECONDS.toNanos(1)));
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /** Opens the device lazily and delegates the reports to it. */
+    private class SessionTransport implements YubikeyTransport {
+        @Override
+        public void writeReport(byte[] report){
+            ensureOpen().writeReport(report);
+        }
+
+        @Override
+        public void readReport(byte[] report){
+            ensureOpen().readReport(report);
+        }
+
+        @Override
+        public void writeReport(byte[] report, int timeoutMillis){
+            ensureOpen().writeReport(report, timeoutMillis);
+        }
+
+        @Override
+        public void readReport(byte[] report, int timeoutMillis){
+            ensureOpen().readReport(report, timeoutMillis);
+        }
+
+        @Override
+        public String toString(){
+            return "session("+transport+")";
+        }
+    }
+
+    // one timer thread for the idle checks of all sessions
+    private static class IdleTimer {
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "yubikey-session-idle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
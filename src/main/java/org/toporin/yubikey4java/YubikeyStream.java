@@ -0,0 +1,453 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+
+/**
+ * Streams a publisher of challenges through several keys holding the same
+ * secret, for batch jobs deriving responses for large challenge sets.
+ *
+ * Each challenge goes to the key with the fewest requests of this stream
+ * in flight, as a BATCH request of its YubikeyScheduler, so interactive
+ * callers of the same keys keep their priority. Up to inFlightPerDevice
+ * requests are given to each key: while the key computes one response,
+ * the next challenge is already padded and queued, and the worker starts
+ * framing it as soon as the key is free.
+ *
+ * Upstream demand follows capacity: the stream requests as many challenges
+ * as keys times inFlightPerDevice, then one more each time a result is
+ * delivered downstream. A slow subscriber therefore slows the upstream
+ * down instead of growing a buffer, and memory stays bounded by the
+ * capacity whatever the size of the challenge set.
+ *
+ * Results carry the index of their challenge in the upstream sequence.
+ * They are delivered in that order when the stream is ordered, otherwise
+ * as the keys answer them. A failed challenge-response is delivered as a
+ * Result holding the exception rather than ending the stream. Results are
+ * delivered on the executor (the common pool by default, as for
+ * SubmissionPublisher), never on the worker of a key, and only one
+ * subscriber is accepted.
+ */
+public class YubikeyStream implements Flow.Processor<byte[], YubikeyStream.Result> {
+
+    /** Requests of the stream given to each key at a time. */
+    public static final int DEFAULT_IN_FLIGHT_PER_DEVICE = 2;
+
+    private final List<YubikeyScheduler> devices;
+    private final int slot;
+    private final boolean variable;
+    private final boolean ordered;
+    private final int capacity;
+    private final Executor executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock
+    private final int[] inFlight;
+    private final Result[] window;
+    private final ArrayDeque<Result> ready = new ArrayDeque<Result>();
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super Result> downstream;
+    private long demand;
+    private long received;
+    private long emitted;
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    private boolean cancelled;
+    private boolean terminated;
+
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Runnable drainTask = new Runnable(){
+        @Override
+        public void run(){
+            drain();
+        }
+    };
+
+    public YubikeyStream(List<YubikeyScheduler> devices, int slot, boolean variable, boolean ordered){
+        this(devices, slot, variable, ordered, DEFAULT_IN_FLIGHT_PER_DEVICE, ForkJoinPool.commonPool());
+    }
+
+    public YubikeyStream(List<YubikeyScheduler> devices, int slot, boolean variable, boolean ordered,
+            int inFlightPerDevice, Executor executor){
+        if (devices.isEmpty())
+            throw new IllegalArgumentException("No yubikey");
+        if (inFlightPerDevice < 1)
+            throw new IllegalArgumentException("Invalid in-flight count:"+inFlightPerDevice);
+        this.devices = new ArrayList<YubikeyScheduler>(devices);
+        this.slot = slot;
+        this.variable = variable;
+        this.ordered = ordered;
+        this.capacity = devices.size()*inFlightPerDevice;
+        this.executor = executor;
+        this.inFlight = new int[devices.size()];
+        this.window = new Result[capacity];
+    }
+
+    /** Challenges that can be in the stream at a time. */
+    public int getCapacity(){
+        return capacity;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription){
+        lock.lock();
+        try{
+            if (upstream != null || cancelled){
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        finally{
+            lock.unlock();
+        }
+        subscription.request(capacity);
+    }
+
+    @Override
+    public void onNext(byte[] challenge){
+        final long index;
+        final int device;
+        lock.lock();
+        try{
+            if (cancelled || upstreamDone)
+                return;
+            if (received-emitted >= capacity){
+                upstreamError = new IllegalStateException("More challenges published than requested");
+                upstreamDone = true;
+                cancelled = true;
+                index = -1;
+                device = -1;
+            }
+            else{
+                index = received++;
+                device = leastBusy();
+                inFlight[device]++;
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+        if (index < 0){
+            cancelUpstream();
+            signal();
+            return;
+        }
+        final byte[] copy = challenge.clone();
+        CompletableFuture<byte[]> future;
+        try{
+            future = devices.get(device).submit(copy, YubikeyConnector.MODE_HMAC, slot, variable, false, Priority.BATCH);
+        }
+        catch (RuntimeException ex){
+            future = new CompletableFuture<byte[]>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete(new BiConsumer<byte[], Throwable>(){
+            @Override
+            public void accept(byte[] response, Throwable failure){
+                complete(new Result(index, copy, response, failure), device);
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        lock.lock();
+        try{
+            if (upstreamDone)
+                return;
+            upstreamError = throwable;
+            upstreamDone = true;
+        }
+        finally{
+            lock.unlock();
+        }
+        signal();
+    }
+
+    @Override
+    public void onComplete(){
+        lock.lock();
+        try{
+            upstreamDone = true;
+        }
+        finally{
+            lock.unlock();
+        }
+        signal();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber){
+        lock.lock();
+        try{
+            if (downstream != null){
+                subscriber.onSubscribe(new Flow.Subscription(){
+                    @Override
+                    public void request(long n){
+                    }
+
+                    @Override
+                    public void cancel(){
+                    }
+                });
+                subscriber.onError(new IllegalStateException("YubikeyStream accepts a single subscriber"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        finally{
+            lock.unlock();
+        }
+        subscriber.onSubscribe(new Flow.Subscription(){
+            @Override
+            public void request(long n){
+                YubikeyStream.this.request(n);
+            }
+
+            @Override
+            public void cancel(){
+                YubikeyStream.this.cancel();
+            }
+        });
+        signal();
+    }
+
+    private void request(long n){
+        lock.lock();
+        try{
+            if (n <= 0){
+                upstreamError = new IllegalArgumentException("Non-positive request:"+n);
+                upstreamDone = true;
+                cancelled = true;
+            }
+            else{
+                demand = (demand+n < 0) ? Long.MAX_VALUE : demand+n;
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+        if (n <= 0)
+            cancelUpstream();
+        signal();
+    }
+
+    private void cancel(){
+        lock.lock();
+        try{
+            cancelled = true;
+            terminated = true;
+            ready.clear();
+        }
+        finally{
+            lock.unlock();
+        }
+        cancelUpstream();
+    }
+
+    private void cancelUpstream(){
+        Flow.Subscription subscription;
+        lock.lock();
+        try{
+            subscription = upstream;
+        }
+        finally{
+            lock.unlock();
+        }
+        if (subscription != null)
+            subscription.cancel();
+    }
+
+    // called with the lock held
+    private int leastBusy(){
+        int best = 0;
+        for (int i=1; i<inFlight.length; i++){
+            if (inFlight[i] < inFlight[best])
+                best = i;
+        }
+        return best;
+    }
+
+    private void complete(Result result, int device){
+        lock.lock();
+        try{
+            inFlight[device]--;
+            if (terminated)
+                return;
+            if (ordered)
+                window[(int)(result.index % capacity)] = result;
+            else
+                ready.add(result);
+        }
+        finally{
+            lock.unlock();
+        }
+        signal();
+    }
+
+    // runs drain on the executor unless it is already running
+    private void signal(){
+        if (wip.getAndIncrement() == 0)
+            executor.execute(drainTask);
+    }
+
+    private void drain(){
+        int missed = 1;
+        do{
+            Flow.Subscriber<? super Result> subscriber;
+            int delivered = 0;
+            while (true){
+                Result next;
+                lock.lock();
+                try{
+                    subscriber = downstream;
+                    if (terminated || cancelled || subscriber == null || demand == 0)
+                        break;
+                    next = poll();
+                    if (next == null)
+                        break;
+                    demand--;
+                    emitted++;
+                }
+                finally{
+                    lock.unlock();
+                }
+                subscriber.onNext(next);
+                delivered++;
+            }
+            requestMore(delivered);
+            Throwable error = null;
+            boolean finish = false;
+            lock.lock();
+            try{
+                subscriber = downstream;
+                // every challenge received has been delivered, or the protocol was broken
+                boolean done = cancelled ? upstreamError != null : upstreamDone && emitted == received;
+                if (!terminated && subscriber != null && done){
+                    terminated = true;
+                    finish = true;
+                    error = upstreamError;
+                }
+            }
+            finally{
+                lock.unlock();
+            }
+            if (finish){
+                if (error != null)
+                    subscriber.onError(error);
+                else
+                    subscriber.onComplete();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // called with the lock held
+    private Result poll(){
+        if (!ordered)
+            return ready.poll();
+        int i = (int)(emitted % capacity);
+        Result next = window[i];
+        window[i] = null;
+        return next;
+    }
+
+    private void requestMore(int delivered){
+        if (delivered == 0)
+            return;
+        Flow.Subscription subscription;
+        lock.lock();
+        try{
+            if (upstreamDone || cancelled)
+                return;
+            subscription = upstream;
+        }
+        finally{
+            lock.unlock();
+        }
+        subscription.request(delivered);
+    }
+
+    /**
+     * Response, or failure, for one challenge of the stream.
+     */
+    public static final class Result {
+
+        private final long index;
+        private final byte[] challenge;
+        private final byte[] response;
+        private final Throwable failure;
+
+        Result(long index, byte[] challenge, byte[] response, Throwable failure){
+            this.index = index;
+            this.challenge = challenge;
+            this.response = response;
+            this.failure = failure;
+        }
+
+        /** Position of the challenge in the upstream sequence, from 0. */
+        public long getIndex(){
+            return index;
+        }
+
+        public byte[] getChallenge(){
+            return challenge;
+        }
+
+        /**
+         * @throws YubikeyException if the challenge-response failed
+         */
+        public byte[] getResponse(){
+            if (failure instanceof YubikeyException)
+                throw (YubikeyException)failure;
+            if (failure != null)
+                throw new YubikeyException("Challenge-response failed", failure);
+            return response;
+        }
+
+        public Throwable getFailure(){
+            return failure;
+        }
+
+        public boolean isSuccess(){
+            return failure == null;
+        }
+    }
+
+}
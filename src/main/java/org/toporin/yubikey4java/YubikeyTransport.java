@@ -0,0 +1,71 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+package org.toporin.yubikey4java;
+
+/**
+ * Carries 8-byte HID feature reports between the host and a Yubikey.
+ *
+ * The protocol logic in YubikeyConnector only needs these two primitives,
+ * so it can run against a real device (LibUsbTransport) or a software
+ * emulation (EmulatedYubikey). Each comes with a variant taking a timeout,
+ * through which a call with a deadline bounds every transfer.
+ */
+public interface YubikeyTransport {
+
+    /**
+     * Sends a feature report to the device (HID SET_REPORT).
+     *
+     * @param report
+     *            The report to send, usually 7 data bytes and a flags byte.
+     */
+    void writeReport(byte[] report);
+
+    /**
+     * Reads a feature report from the device (HID GET_REPORT).
+     *
+     * @param report
+     *            Buffer of _FEATURE_RPT_SIZE bytes filled with the report.
+     */
+    void readReport(byte[] report);
+
+    /**
+     * Sends a feature report, giving up after the timeout. Transports that
+     * cannot bound a transfer ignore it.
+     *
+     * @param timeoutMillis
+     *            At least 1, and at most YubikeyConnector._USB_TIMEOUT_MS.
+     */
+    default void writeReport(byte[] report, int timeoutMillis){
+        writeReport(report);
+    }
+
+    /**
+     * Reads a feature report, giving up after the timeout. Transports that
+     * cannot bound a transfer ignore it.
+     */
+    default void readReport(byte[] report, int timeoutMillis){
+        readReport(report);
+    }
+
+}
@@ -23,66 +23,109 @@
 
 package org.toporin.yubikey4java;
 
+import java.nio.ByteBuffer;
 
 public class YubikeyUtil {
     
     public static final short _CRC_OK_RESIDUAL = (short)0xf0b8;
     
-    public static short crc16(byte[] data, int dataOff, int dataLength){
-    //Calculate an ISO13239 CRC checksum of the input buffer.
+    /** Initial state for crc16_update. */
+    public static final int CRC16_INIT = 0xffff;
     
-        int m_crc = 0xffff;
-        for (int i=dataOff; i<dataOff+dataLength; i++){
-            m_crc ^= (data[i] & 0xff);
+    // ISO13239 (reflected polynomial 0x8408) remainder of each byte value
+    private static final char[] CRC16_TABLE = new char[256];
+    static {
+        for (int b=0; b<256; b++){
+            int m_crc = b;
             for (int k=0; k<8; k++){
                 if ((m_crc & 1) != 0)
                     m_crc = (m_crc >>> 1) ^ 0x8408;
                   else
                     m_crc = m_crc >>> 1;
             }
+            CRC16_TABLE[b] = (char)m_crc;
+        }
+    }
+    
+    /**
+     * Feeds bytes into a running ISO13239 CRC. Start from CRC16_INIT and
+     * cast the final state to short to get the same value as crc16().
+     */
+    public static int crc16_update(int crc, byte[] data, int dataOff, int dataLength){
+        for (int i=dataOff; i<dataOff+dataLength; i++){
+            crc = (crc >>> 8) ^ CRC16_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+    public static int crc16_update(int crc, byte data){
+        return (crc >>> 8) ^ CRC16_TABLE[(crc ^ data) & 0xff];
+    }
+    /**
+     * Feeds bytes of a heap or direct buffer into a running CRC, using
+     * absolute reads: the buffer position is left untouched.
+     */
+    public static int crc16_update(int crc, ByteBuffer data, int dataOff, int dataLength){
+        if (data.hasArray())
+            return crc16_update(crc, data.array(), data.arrayOffset()+dataOff, dataLength);
+        for (int i=dataOff; i<dataOff+dataLength; i++){
+            crc = (crc >>> 8) ^ CRC16_TABLE[(crc ^ data.get(i)) & 0xff];
         }
-        return (short)(m_crc & 0xffff);
+        return crc;
+    }
+    
+    public static short crc16(byte[] data, int dataOff, int dataLength){
+    //Calculate an ISO13239 CRC checksum of the input buffer.
+        return (short)crc16_update(CRC16_INIT, data, dataOff, dataLength);
     }
     public static short crc16(byte[] data){
     //Calculate an ISO13239 CRC checksum of the input buffer.
         return crc16(data, 0, data.length);
     }
+    public static short crc16(ByteBuffer data, int dataOff, int dataLength){
+        return (short)crc16_update(CRC16_INIT, data, dataOff, dataLength);
+    }
+    public static short crc16(ByteBuffer data){
+    //CRC of the remaining bytes, the buffer position is not modified.
+        return crc16(data, data.position(), data.remaining());
+    }
     public static boolean validate_crc16(byte[] data){
         return crc16(data) == _CRC_OK_RESIDUAL;
     }
     public static boolean validate_crc16(byte[] data, int dataOff, int dataLength){
         return crc16(data, dataOff, dataLength) == _CRC_OK_RESIDUAL;
     }
+    public static boolean validate_crc16(ByteBuffer data, int dataOff, int dataLength){
+        return crc16(data, dataOff, dataLength) == _CRC_OK_RESIDUAL;
+    }
+    public static boolean validate_crc16(ByteBuffer data){
+        return crc16(data) == _CRC_OK_RESIDUAL;
+    }
     
     public static String toHexString(byte[] bytes) {
-
-            final String hexChars = "0123456789ABCDEF";
-            StringBuffer sbTmp = new StringBuffer();
-            char[] cTmp = new char[2];
-            
-            if (bytes==null){
-                return new String("null");
-            }
-            
-            for (int i = 0; i < bytes.length; i++) {
-                    cTmp[0] = hexChars.charAt((bytes[i] & 0xF0) >>> 4);
-                    cTmp[1] = hexChars.charAt(bytes[i] & 0x0F);
-                    sbTmp.append(cTmp);
-            }
-            
-            return sbTmp.toString();
+        if (bytes==null){
+            return "null";
+        }
+        return HexCodec.HEX.encode(bytes);
     }
     public static String toHexString(byte bytes) {
-
-            final String hexChars = "0123456789ABCDEF";
-            StringBuffer sbTmp = new StringBuffer();
-            char[] cTmp = new char[2];
-            
-            cTmp[0] = hexChars.charAt((bytes & 0xF0) >>> 4);
-            cTmp[1] = hexChars.charAt(bytes & 0x0F);
-            sbTmp.append(cTmp);
-            
-            return sbTmp.toString();
+        return HexCodec.HEX.encode(bytes);
+    }
+    
+    /** Modhex digits for the values 0 to 15, the keyboard-layout safe hex used by OTPs. */
+    public static final String MODHEX_CHARS = "cbdefghijklnrtuv";
+    
+    public static String toModhexString(byte[] bytes){
+        return HexCodec.MODHEX.encode(bytes);
+    }
+    
+    /**
+     * Decodes len modhex characters (len even) of s starting at off into out.
+     * Upper case digits are accepted.
+     * 
+     * @return false if a character is not a modhex digit
+     */
+    public static boolean fromModhexString(CharSequence s, int off, int len, byte[] out, int outOff){
+        return HexCodec.MODHEX.decode(s, off, len, out, outOff) >= 0;
     }
     
 }
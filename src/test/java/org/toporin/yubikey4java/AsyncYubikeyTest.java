@@ -0,0 +1,204 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+
+/**
+ * AsyncYubikey and AsyncYubikeyEngine against EmulatedYubikey, through
+ * EmulatedAsyncTransport.
+ */
+class AsyncYubikeyTest {
+
+    private static final byte[] SECRET = "0123456789abcdefghij".getBytes();
+
+    private final YubikeyEventLoop loop = new YubikeyEventLoop();
+
+    @AfterEach
+    void closeLoop(){
+        loop.close();
+    }
+
+    @Test
+    void answersFixedAndVariableChallenges() throws Exception{
+        EmulatedYubikey key = new EmulatedYubikey(SECRET, SECRET);
+        key.setVariableLength(1, true);
+        AsyncYubikey device = new AsyncYubikey(new EmulatedAsyncTransport(key, loop, 0, TimeUnit.MILLISECONDS), loop);
+        byte[] challenge = "challenge".getBytes();
+
+        byte[] variable = device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 1, true, false).get();
+        byte[] fixed = device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 2, false, false).get();
+
+        assertArrayEquals(hmac(challenge), variable);
+        assertArrayEquals(hmac(Arrays.copyOf(challenge, 64)), fixed);
+        assertEquals(2, device.getChannel().getMetrics().getTransactions());
+        device.close();
+    }
+
+    @Test
+    void leanModeFoldsTheResetIntoTheNextTransaction() throws Exception{
+        AsyncYubikey device = new AsyncYubikey(new EmulatedAsyncTransport(new EmulatedYubikey(SECRET, SECRET), loop,
+                0, TimeUnit.MILLISECONDS), loop);
+        YubikeyChannel channel = device.getChannel();
+        channel.setLean(true);
+        byte[] challenge = new byte[64];
+        Arrays.fill(challenge, (byte)1);
+        device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 2, false, false).get();
+
+        byte[] response = device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 2, false, false).get();
+
+        assertArrayEquals(hmac(challenge), response);
+        // folded reset, 10 reports, 10 pre-write polls, one response poll, 3 response reads
+        assertEquals(25, channel.getLastTransactionTransfers());
+        assertTrue(channel.isResetPending());
+        device.close();
+    }
+
+    @Test
+    void timeoutIsCountedAndTheNextRequestSucceeds() throws Exception{
+        EmulatedYubikey key = new EmulatedYubikey(SECRET, SECRET);
+        key.setRequireTouch(2, true);
+        key.setTouchDelay(1, TimeUnit.HOURS);
+        AsyncYubikey device = new AsyncYubikey(new EmulatedAsyncTransport(key, loop, 0, TimeUnit.MILLISECONDS), loop);
+        byte[] challenge = "touch".getBytes();
+
+        ExecutionException ex = assertThrows(ExecutionException.class,
+                () -> device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 2, true, false).get());
+
+        assertInstanceOf(YubikeyTimeoutException.class, ex.getCause());
+        YubikeyMetrics metrics = device.getChannel().getMetrics();
+        assertEquals(1, metrics.getTimeouts());
+        assertEquals(1, metrics.getExceptions());
+        key.setRequireTouch(2, false);
+        assertArrayEquals(hmac(Arrays.copyOf(challenge, 64)),
+                device.challenge_response(challenge, YubikeyConnector.MODE_HMAC, 2, true, false).get());
+        device.close();
+    }
+
+    @Test
+    void cancelledRequestResetsTheDevice() throws Exception{
+        EmulatedYubikey key = new EmulatedYubikey(SECRET, SECRET);
+        key.setComputeLatency(50, TimeUnit.MILLISECONDS);
+        AsyncYubikey device = new AsyncYubikey(new EmulatedAsyncTransport(key, loop, 0, TimeUnit.MILLISECONDS), loop);
+
+        CompletableFuture<byte[]> cancelled = device.challenge_response("first".getBytes(), YubikeyConnector.MODE_HMAC, 2, true, false);
+        CompletableFuture<byte[]> next = device.challenge_response("second".getBytes(), YubikeyConnector.MODE_HMAC, 2, true, false);
+        Thread.sleep(10);
+        cancelled.cancel(false);
+
+        assertArrayEquals(hmac(Arrays.copyOf("second".getBytes(), 64)), next.get(5, TimeUnit.SECONDS));
+        assertEquals(0, device.getPending());
+        device.close();
+    }
+
+    @Test
+    void engineClosesLoopsOnlyAfterTransfersCompleted() throws Exception{
+        YubikeyEventLoop engineLoop = new YubikeyEventLoop();
+        AsyncYubikeyEngine engine = new AsyncYubikeyEngine(Collections.singletonList(engineLoop));
+        EmulatedYubikey key = new EmulatedYubikey(SECRET, SECRET);
+        key.setRequireTouch(2, true);
+        key.setTouchDelay(1, TimeUnit.HOURS);
+        TrackingTransport transport = new TrackingTransport(key, engineLoop);
+        engine.add(transport, engineLoop);
+
+        CompletableFuture<byte[]> running = engine.challenge_response("touch".getBytes(), YubikeyConnector.MODE_HMAC, 2, true, true);
+        CompletableFuture<byte[]> queued = engine.challenge_response("queued".getBytes(), YubikeyConnector.MODE_HMAC, 2, true, true);
+        Thread.sleep(50);
+        engine.close();
+
+        assertTrue(running.isCancelled());
+        assertTrue(queued.isCompletedExceptionally());
+        assertTrue(transport.closed);
+        assertEquals(0, transport.inFlightAtClose);
+        assertFalse(engine.getDevices().iterator().hasNext());
+    }
+
+    private static byte[] hmac(byte[] message) throws Exception{
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA1"));
+        return mac.doFinal(message);
+    }
+
+    // records the transfers in flight when the transport is closed
+    private static final class TrackingTransport extends EmulatedAsyncTransport implements Closeable {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        volatile boolean closed;
+        volatile int inFlightAtClose = -1;
+
+        TrackingTransport(YubikeyTransport device, YubikeyEventLoop loop){
+            super(device, loop, 1, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void submitWrite(byte[] report, ReportCallback callback){
+            inFlight.incrementAndGet();
+            super.submitWrite(report, track(callback));
+        }
+
+        @Override
+        public void submitRead(byte[] report, ReportCallback callback){
+            inFlight.incrementAndGet();
+            super.submitRead(report, track(callback));
+        }
+
+        private ReportCallback track(final ReportCallback callback){
+            return new ReportCallback(){
+                @Override
+                public void completed(RuntimeException error){
+                    inFlight.decrementAndGet();
+                    callback.completed(error);
+                }
+            };
+        }
+
+        @Override
+        public void close(){
+            inFlightAtClose = inFlight.get();
+            closed = true;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+
+/**
+ * YubikeyGateway and YubikeyGatewayClient over localhost, serving an
+ * EmulatedYubikey.
+ */
+class YubikeyGatewayTest {
+
+    private static final byte[] SECRET = "0123456789abcdefghij".getBytes();
+    private static final int SERIAL = 4242;
+
+    private EmulatedYubikey key;
+    private YubikeyScheduler scheduler;
+    private YubikeyGateway gateway;
+    private YubikeyGatewayClient client;
+
+    @BeforeEach
+    void start() throws Exception{
+        key = new EmulatedYubikey(SECRET, SECRET);
+        scheduler = new YubikeyScheduler(key);
+        gateway = new YubikeyGateway(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        gateway.addDevice(SERIAL, scheduler);
+        client = YubikeyGatewayClient.connect(gateway.getLocalAddress());
+    }
+
+    @AfterEach
+    void stop() throws Exception{
+        client.close();
+        gateway.close();
+        scheduler.close();
+    }
+
+    @Test
+    void listsServedKeys(){
+        assertEquals(Collections.singletonList(SERIAL), client.getSerials());
+    }
+
+    @Test
+    void pipelinedRequestsAreAllAnswered() throws Exception{
+        // reading pauses at 8 pending requests, so the key never looks saturated
+        gateway.setMaxInFlight(8);
+        List<byte[]> challenges = new ArrayList<byte[]>();
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i=0; i<200; i++){
+            byte[] challenge = ("challenge-"+i).getBytes();
+            challenges.add(challenge);
+            futures.add(client.submit(i%2 == 0 ? SERIAL : 0, challenge, 2, false, false, Priority.INTERACTIVE));
+        }
+
+        for (int i=0; i<futures.size(); i++){
+            assertArrayEquals(hmac(Arrays.copyOf(challenges.get(i), 64)), futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(200, gateway.getRequestCount());
+        assertEquals(0, gateway.getRejectedCount());
+        assertEquals(0, client.getPendingCount());
+    }
+
+    @Test
+    void saturatedKeyAnswersBusy() throws Exception{
+        key.setComputeLatency(20, TimeUnit.MILLISECONDS);
+        gateway.setMaxQueueDepth(2);
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i=0; i<20; i++){
+            futures.add(client.submit(SERIAL, ("busy-"+i).getBytes(), 1, false, false, Priority.INTERACTIVE));
+        }
+
+        int answered = 0;
+        int busy = 0;
+        for (int i=0; i<futures.size(); i++){
+            try{
+                assertArrayEquals(hmac(Arrays.copyOf(("busy-"+i).getBytes(), 64)), futures.get(i).get(5, TimeUnit.SECONDS));
+                answered++;
+            }
+            catch (ExecutionException ex){
+                assertTrue(ex.getCause() instanceof YubikeyException);
+                assertEquals("Yubikey busy", ex.getCause().getMessage());
+                busy++;
+            }
+        }
+        assertTrue(answered > 0);
+        assertTrue(busy > 0);
+        assertEquals(busy, gateway.getRejectedCount());
+        // the key is free again once its queue drained
+        assertArrayEquals(hmac(Arrays.copyOf("again".getBytes(), 64)),
+                client.challenge_response(SERIAL, "again".getBytes(), YubikeyConnector.MODE_HMAC, 1, false, false));
+    }
+
+    private static byte[] hmac(byte[] message) throws Exception{
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA1"));
+        return mac.doFinal(message);
+    }
+
+}
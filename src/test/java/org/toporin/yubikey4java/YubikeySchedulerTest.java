@@ -0,0 +1,123 @@
+/*
+ * Java code to talk to YubiKeys
+ * Loosely based on python-yubico (https://github.com/Yubico/python-yubico)
+ * Only partial support (mainly HMAC-SHA1 challenge-response)
+ *
+ * (c) 2015 by Toporin - 1P7kS1SX2ETDD2Sgyk51BKWUo7YXME928V
+ * Sources available on https://github.com/Toporin
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************
+ */
+
+
+package org.toporin.yubikey4java;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyException;
+import org.toporin.yubikey4java.YubikeyConnector.YubikeyTimeoutException;
+import org.toporin.yubikey4java.YubikeyScheduler.Priority;
+
+/**
+ * YubikeyScheduler against EmulatedYubikey.
+ */
+class YubikeySchedulerTest {
+
+    private static final byte[] SECRET = "0123456789abcdefghij".getBytes();
+
+    @Test
+    void failedRequestResetsTheDeviceBeforeTheNextOne() throws Exception{
+        EmulatedYubikey key = new EmulatedYubikey(SECRET, SECRET);
+        key.setRequireTouch(2, true);
+        key.setTouchDelay(1, TimeUnit.HOURS);
+        ResetCounter transport = new ResetCounter(key);
+        YubikeyScheduler scheduler = new YubikeyScheduler(transport);
+        try{
+            // the device is left waiting for a touch
+            ExecutionException ex = assertThrows(ExecutionException.class,
+                    () -> scheduler.submit("first".getBytes(), YubikeyConnector.MODE_HMAC, 2, false, false,
+                            Priority.INTERACTIVE).get(10, TimeUnit.SECONDS));
+
+            assertInstanceOf(YubikeyTimeoutException.class, ex.getCause());
+            assertEquals(1, transport.resets.get());
+            key.setRequireTouch(2, false);
+            assertArrayEquals(hmac(Arrays.copyOf("second".getBytes(), 64)),
+                    scheduler.submit("second".getBytes(), YubikeyConnector.MODE_HMAC, 2, false, false,
+                            Priority.INTERACTIVE).get(5, TimeUnit.SECONDS));
+        }
+        finally{
+            scheduler.close();
+        }
+    }
+
+    @Test
+    void rejectedChallengeNeverReachesTheDevice(){
+        ResetCounter transport = new ResetCounter(new EmulatedYubikey(SECRET, SECRET));
+        YubikeyScheduler scheduler = new YubikeyScheduler(transport);
+        try{
+            assertThrows(YubikeyException.class, () -> scheduler.submit(new byte[65], YubikeyConnector.MODE_HMAC, 2,
+                    false, false, Priority.INTERACTIVE));
+            assertThrows(YubikeyException.class, () -> scheduler.submit(new byte[8], YubikeyConnector.MODE_HMAC, 3,
+                    false, false, Priority.INTERACTIVE));
+            assertEquals(0, transport.writes.get());
+        }
+        finally{
+            scheduler.close();
+        }
+    }
+
+    private static byte[] hmac(byte[] message) throws Exception{
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA1"));
+        return mac.doFinal(message);
+    }
+
+    // counts the reports written, and the reset reports among them
+    private static final class ResetCounter implements YubikeyTransport {
+        final YubikeyTransport device;
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicInteger resets = new AtomicInteger();
+
+        ResetCounter(YubikeyTransport device){
+            this.device = device;
+        }
+
+        @Override
+        public void writeReport(byte[] report){
+            writes.incrementAndGet();
+            if (report[7] == (byte)(YubikeyConnector.SLOT_WRITE_FLAG | 0x0f))
+                resets.incrementAndGet();
+            device.writeReport(report);
+        }
+
+        @Override
+        public void readReport(byte[] report){
+            device.readReport(report);
+        }
+    }
+
+}